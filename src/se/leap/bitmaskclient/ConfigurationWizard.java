@@ -169,6 +169,11 @@ implements ProviderListFragment.Callbacks, NewProviderDialogInterface, ProviderD
 			ConfigHelper.removeFromSharedPref(Provider.KEY);
 			setResult(RESULT_CANCELED, mConfigState);
 		}
+		else if(resultCode == ProviderAPI.PROVIDER_SET_UP_CANCELLED) {
+			// Cancelled with back, the list is shown again already
+			mProgressBar.setVisibility(ProgressBar.GONE);
+			progressbar_description.setVisibility(TextView.GONE);
+		}
 		else if(resultCode == ProviderAPI.CORRECTLY_DOWNLOADED_CERTIFICATE) {
 			mProgressBar.incrementProgressBy(1);
 		    mProgressBar.setVisibility(ProgressBar.GONE);
@@ -211,6 +216,14 @@ implements ProviderListFragment.Callbacks, NewProviderDialogInterface, ProviderD
     
     @Override
     public void onBackPressed() {
+    	if(mProgressBar.getVisibility() == ProgressBar.VISIBLE) {
+    		// Back while setting up a provider goes back to the list
+    		cancelSettingUpProvider();
+    		mProgressBar.setVisibility(ProgressBar.GONE);
+    		progressbar_description.setVisibility(TextView.GONE);
+    		showAllProviders();
+    		return;
+    	}
     	try {
 			if(ConfigHelper.getJsonFromSharedPref(Provider.KEY) == null || ConfigHelper.getJsonFromSharedPref(Provider.KEY).length() == 0) {
 				askDashboardToQuitApp();
@@ -497,6 +510,7 @@ implements ProviderListFragment.Callbacks, NewProviderDialogInterface, ProviderD
 	}
 	
 	public void cancelSettingUpProvider() {
+		ProviderAPI.cancelSetUpProvider();
 		provider_list_fragment = (ProviderListFragment) getFragmentManager().findFragmentByTag(ProviderListFragment.TAG);
 		if(provider_list_fragment != null && ConfigHelper.sharedPrefContainsKey(ProviderItem.DANGER_ON)) {
 			provider_list_fragment.removeLastItem();
@@ -21,6 +21,7 @@ import org.json.JSONObject;
 
 import se.leap.bitmaskclient.R;
 import se.leap.bitmaskclient.ProviderAPIResultReceiver.Receiver;
+import se.leap.openvpn.OpenVPN;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.DialogFragment;
@@ -79,6 +80,7 @@ public class Dashboard extends Activity implements LogInDialog.LogInDialogInterf
 		app = this;
 		
 		PRNGFixes.apply();
+		OpenVPN.openLogJournalInBackground(this);
 	//	mProgressBar = (ProgressBar) findViewById(R.id.progressbar_dashboard);
 	//    mProgressBar = (ProgressBar) findViewById(R.id.eipProgress);
 	//	eipStatus = (TextView) findViewById(R.id.eipStatus);
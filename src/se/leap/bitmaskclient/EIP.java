@@ -16,16 +16,16 @@
  */
  package se.leap.bitmaskclient;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Vector;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import se.leap.bitmaskclient.R;
 import se.leap.openvpn.ConfigParser;
 import se.leap.openvpn.ConfigParser.ConfigParseError;
@@ -83,7 +83,9 @@ public final class EIP extends IntentService {
 	private static String mPending = null;
 	
 	private static int parsedEipSerial;
-	private static JSONObject eipDefinition = null;
+	private static EipServiceDefinition eipDefinition = null;
+	// The stored eip-service.json eipDefinition was parsed from
+	private static String eipDefinitionString = null;
 	
 	private static OVPNGateway activeGateway = null;
 
@@ -98,9 +100,9 @@ public final class EIP extends IntentService {
 		context = getApplicationContext();
 		
 		try {
-			eipDefinition = ConfigHelper.getJsonFromSharedPref(KEY);
+			loadEipDefinition();
 			parsedEipSerial = ConfigHelper.getIntFromSharedPref(PARSED_SERIAL);
-		} catch (JSONException e) {
+		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
@@ -266,6 +268,19 @@ public final class EIP extends IntentService {
 		}
 	}
 
+	/**
+	 * Parses eip-service.json from SharedPreferences, unless it is the document
+	 * eipDefinition already comes from. ProviderAPI leaves it untouched when the
+	 * provider answers that it wasn't modified.
+	 */
+	private static void loadEipDefinition() throws IOException {
+		String eip_definition_string = ConfigHelper.getStringFromSharedPref(KEY);
+		if (eipDefinition == null || !eip_definition_string.equals(eipDefinitionString)) {
+			eipDefinition = EipServiceDefinition.read(new StringReader(eip_definition_string));
+			eipDefinitionString = eip_definition_string;
+		}
+	}
+
 	/**
 	 * Loads eip-service.json from SharedPreferences and calls {@link updateGateways()}
 	 * to parse gateway definitions.
@@ -273,9 +288,9 @@ public final class EIP extends IntentService {
 	 */
 	private void updateEIPService() {
 		try {
-			eipDefinition = ConfigHelper.getJsonFromSharedPref(EIP.KEY);
+			loadEipDefinition();
 			parsedEipSerial = ConfigHelper.getIntFromSharedPref(PARSED_SERIAL);
-		} catch (JSONException e) {
+		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
@@ -287,7 +302,7 @@ public final class EIP extends IntentService {
 				vpl.removeProfile(context, profile);
 			}
 		}
-		if (eipDefinition.optInt("serial") > parsedEipSerial)
+		if (eipDefinition != null && eipDefinition.getSerial() > parsedEipSerial)
 			updateGateways();
 	}
 	
@@ -309,37 +324,13 @@ public final class EIP extends IntentService {
 	 * TODO Store the OVPNGateways (as Serializable) in SharedPreferences
 	 */
 	private void updateGateways(){
-		JSONArray gatewaysDefined = null;
-		
-		try {
-			gatewaysDefined = eipDefinition.getJSONArray("gateways");
-		} catch (JSONException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		}
-		
-		for ( int i=0 ; i < gatewaysDefined.length(); i++ ){
-			
-			JSONObject gw = null;
-			
-			try {
-				gw = gatewaysDefined.getJSONObject(i);
-			} catch (JSONException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			
-			try {
-				if ( gw.getJSONObject("capabilities").getJSONArray("transport").toString().contains("openvpn") ){
-					new OVPNGateway(gw);
-				}
-			} catch (JSONException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		for ( EipServiceDefinition.Gateway gw : eipDefinition.getGateways() ){
+			if ( gw.getTransport().contains("openvpn") ){
+				new OVPNGateway(gw);
 			}
 		}
 		
-		ConfigHelper.saveSharedPref(PARSED_SERIAL, eipDefinition.optInt(Provider.API_RETURN_SERIAL));
+		ConfigHelper.saveSharedPref(PARSED_SERIAL, eipDefinition.getSerial());
 	}
 
 	/**
@@ -355,7 +346,7 @@ public final class EIP extends IntentService {
 		
 		private String mName;
 		private VpnProfile mVpnProfile;
-		private JSONObject mGateway;
+		private EipServiceDefinition.Gateway mGateway;
 		private HashMap<String,Vector<Vector<String>>> options = new HashMap<String, Vector<Vector<String>>>();
 
 		
@@ -391,12 +382,12 @@ public final class EIP extends IntentService {
 		}
 		
 		/**
-		 * Build a gateway object from a JSON OpenVPN gateway definition in eip-service.json
+		 * Build a gateway object from an OpenVPN gateway definition in eip-service.json
 		 * and create a VpnProfile belonging to it.
 		 * 
-		 * @param gateway The JSON OpenVPN gateway definition to parse
+		 * @param gateway The OpenVPN gateway definition to parse
 		 */
-		protected OVPNGateway(JSONObject gateway){
+		protected OVPNGateway(EipServiceDefinition.Gateway gateway){
 
 			mGateway = gateway;
 			
@@ -405,14 +396,9 @@ public final class EIP extends IntentService {
 			Collection<VpnProfile> profiles = vpl.getProfiles();
 			for (Iterator<VpnProfile> it = profiles.iterator(); it.hasNext(); ){
 				VpnProfile p = it.next();
-				try {
-					if ( p.mName.contains( gateway.getString("host") ) )
-						it.remove();
-						vpl.removeProfile(context, p);
-				} catch (JSONException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+				if ( p.mName.contains( gateway.getHost() ) )
+					it.remove();
+				vpl.removeProfile(context, p);
 			}
 			
 			this.parseOptions();
@@ -432,23 +418,20 @@ public final class EIP extends IntentService {
 		private void setUniqueProfileName(ProfileManager profileManager) {
 			int i=0;
 
-			String newname;
-			try {
-				newname = mGateway.getString("host");
-				while(profileManager.getProfileByName(newname)!=null) {
-					i++;
-					if(i==1)
-						newname = getString(R.string.converted_profile);
-					else
-						newname = getString(R.string.converted_profile_i,i);
-				}
-
-				mVpnProfile.mName=newname;
-			} catch (JSONException e) {
-				// TODO Auto-generated catch block
+			String newname = mGateway.getHost();
+			if (newname == null) {
 				Log.v(TAG,"Couldn't read gateway name for profile creation!");
-				e.printStackTrace();
+				return;
+			}
+			while(profileManager.getProfileByName(newname)!=null) {
+				i++;
+				if(i==1)
+					newname = getString(R.string.converted_profile);
+				else
+					newname = getString(R.string.converted_profile_i,i);
 			}
+
+			mVpnProfile.mName=newname;
 		}
 
 		/**
@@ -457,78 +440,43 @@ public final class EIP extends IntentService {
 		private void parseOptions(){
 			
 			// FIXME move these to a common API (& version) definition place, like ProviderAPI or ConfigHelper
-			String common_options = "openvpn_configuration";
 			String remote = "ip_address";
-			String ports = "ports";
-			String protos = "protocols";
-			String capabilities = "capabilities";
 			String location_key = "location";
-			String locations = "locations";
 			
 			Vector<String> arg = new Vector<String>();
 			Vector<Vector<String>> args = new Vector<Vector<String>>();
 			
-			try {
-				JSONObject def = (JSONObject) eipDefinition.get(common_options);
-				Iterator keys = def.keys();
-				Vector<Vector<String>> value = new Vector<Vector<String>>();
-				while ( keys.hasNext() ){
-					String key = keys.next().toString();
-					
-					arg.add(key);
-					for ( String word : def.getString(key).split(" ") )
-						arg.add(word);
-					value.add( (Vector<String>) arg.clone() );
-					options.put(key, (Vector<Vector<String>>) value.clone());
-					value.clear();
-					arg.clear();
-				}
-			} catch (JSONException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			Vector<Vector<String>> value = new Vector<Vector<String>>();
+			for ( Map.Entry<String, String> option : eipDefinition.getOpenvpnConfiguration().entrySet() ){
+				String key = option.getKey();
+				
+				arg.add(key);
+				for ( String word : option.getValue().split(" ") )
+					arg.add(word);
+				value.add( (Vector<String>) arg.clone() );
+				options.put(key, (Vector<Vector<String>>) value.clone());
+				value.clear();
+				arg.clear();
 			}
 			
-			try {
-				arg.add(remote);
-				arg.add(mGateway.getString(remote));
-			} catch (JSONException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+			arg.add(remote);
+			arg.add(mGateway.getIpAddress());
 			args.add((Vector<String>) arg.clone());
 			options.put("remote", (Vector<Vector<String>>) args.clone() );
 			arg.clear();
 			args.clear();
 
-
-			
-			try {
-				
-				arg.add(location_key);
-				String locationText = "";
-				locationText = eipDefinition.getJSONObject(locations).getJSONObject(mGateway.getString(location_key)).getString("name");		
+			arg.add(location_key);
+			String locationText = eipDefinition.getLocationName(mGateway.getLocation());
+			if (locationText != null)
 				arg.add(locationText);
-
-			} catch (JSONException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
 			args.add((Vector<String>) arg.clone());
 			options.put("location", (Vector<Vector<String>>) args.clone() );
 
 			arg.clear();
 			args.clear();
-			JSONArray protocolsJSON = null;
 			arg.add("proto");
-			try {
-				protocolsJSON = mGateway.getJSONObject(capabilities).getJSONArray(protos);
-			} catch (JSONException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			Vector<String> protocols = new Vector<String>();
-			for ( int i=0; i<protocolsJSON.length(); i++ )
-				protocols.add(protocolsJSON.optString(i));
+			List<String> protocols = mGateway.getProtocols();
 			if ( protocols.contains("udp"))
 				arg.add("udp");
 			else if ( protocols.contains("tcp"))
@@ -539,15 +487,9 @@ public final class EIP extends IntentService {
 			args.clear();
 			
 			
-			String port = null;
+			List<String> ports = mGateway.getPorts();
 			arg.add("port");
-			try {
-				port = mGateway.getJSONObject(capabilities).getJSONArray(ports).optString(0);
-			} catch (JSONException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			arg.add(port);
+			arg.add(ports.isEmpty() ? "" : ports.get(0));
 			args.add((Vector<String>) arg.clone());
 			options.put("port", (Vector<Vector<String>>) args.clone());
 			args.clear();
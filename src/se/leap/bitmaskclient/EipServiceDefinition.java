@@ -0,0 +1,243 @@
+package se.leap.bitmaskclient;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.JsonToken;
+
+/**
+ * eip-service.json as read from the provider: gateways, the names of their
+ * locations and the OpenVPN options shared by all of them.
+ *
+ * Built straight from the stream, so a document with hundreds of gateways
+ * is never held as a tree of JSONObjects.
+ */
+public class EipServiceDefinition {
+
+	public static class Gateway {
+		private String mHost;
+		private String mIpAddress;
+		private String mLocation;
+		private List<String> mTransport = Collections.emptyList();
+		private List<String> mProtocols = Collections.emptyList();
+		private List<String> mPorts = Collections.emptyList();
+
+		public String getHost() {
+			return mHost;
+		}
+
+		public String getIpAddress() {
+			return mIpAddress;
+		}
+
+		/** @return key for EipServiceDefinition.getLocationName, null if the gateway has none */
+		public String getLocation() {
+			return mLocation;
+		}
+
+		public List<String> getTransport() {
+			return mTransport;
+		}
+
+		public List<String> getProtocols() {
+			return mProtocols;
+		}
+
+		public List<String> getPorts() {
+			return mPorts;
+		}
+	}
+
+	private int mSerial;
+	private final List<Gateway> mGateways = new ArrayList<Gateway>();
+	private final Map<String, String> mLocationNames = new HashMap<String, String>();
+	// In the order of the document
+	private final Map<String, String> mOpenvpnConfiguration = new LinkedHashMap<String, String>();
+
+	private EipServiceDefinition() {}
+
+	/**
+	 * Reads the whole document and closes reader.
+	 * @throws IOException if it isn't an eip-service.json, e.g. an error answer
+	 */
+	public static EipServiceDefinition read(Reader reader) throws IOException {
+		return read(new PlatformJsonTokens(reader));
+	}
+
+	/**
+	 * Reads the whole document and closes json.
+	 * @throws IOException if it isn't an eip-service.json, e.g. an error answer
+	 */
+	public static EipServiceDefinition read(JsonTokens json) throws IOException {
+		EipServiceDefinition definition = new EipServiceDefinition();
+		boolean has_serial = false;
+		try {
+			json.beginObject();
+			while (json.hasNext()) {
+				String name = json.nextName();
+				if (name.equals(Provider.API_RETURN_SERIAL)) {
+					definition.mSerial = json.nextInt();
+					has_serial = true;
+				} else if (name.equals("gateways"))
+					definition.readGateways(json);
+				else if (name.equals("locations"))
+					definition.readLocations(json);
+				else if (name.equals("openvpn_configuration"))
+					readOptions(json, definition.mOpenvpnConfiguration);
+				else
+					json.skipValue();
+			}
+			json.endObject();
+		} catch (RuntimeException e) {
+			// JsonReader throws IllegalStateException and NumberFormatException for unexpected tokens
+			throw new IOException("Not an eip-service.json: " + e.getMessage());
+		} finally {
+			json.close();
+		}
+		if (!has_serial)
+			throw new IOException("eip-service.json without " + Provider.API_RETURN_SERIAL);
+		return definition;
+	}
+
+	/**
+	 * Checks that reader holds an eip-service.json without building the
+	 * definition, for a document that is only stored. Closes reader.
+	 * @return the serial of the document
+	 * @throws IOException if it isn't an eip-service.json, e.g. an error answer
+	 */
+	public static int readSerial(Reader reader) throws IOException {
+		return readSerial(new PlatformJsonTokens(reader));
+	}
+
+	/**
+	 * Like readSerial(Reader), closes json.
+	 */
+	public static int readSerial(JsonTokens json) throws IOException {
+		Integer serial = null;
+		try {
+			json.beginObject();
+			while (json.hasNext()) {
+				if (json.nextName().equals(Provider.API_RETURN_SERIAL))
+					serial = json.nextInt();
+				else
+					json.skipValue();
+			}
+			json.endObject();
+		} catch (RuntimeException e) {
+			throw new IOException("Not an eip-service.json: " + e.getMessage());
+		} finally {
+			json.close();
+		}
+		if (serial == null)
+			throw new IOException("eip-service.json without " + Provider.API_RETURN_SERIAL);
+		return serial;
+	}
+
+	public int getSerial() {
+		return mSerial;
+	}
+
+	public List<Gateway> getGateways() {
+		return mGateways;
+	}
+
+	/**
+	 * @return display name of a gateway location, null if it isn't described
+	 */
+	public String getLocationName(String location) {
+		return mLocationNames.get(location);
+	}
+
+	/**
+	 * @return option and its arguments separated by spaces, in the order of the document
+	 */
+	public Map<String, String> getOpenvpnConfiguration() {
+		return mOpenvpnConfiguration;
+	}
+
+	private void readGateways(JsonTokens json) throws IOException {
+		json.beginArray();
+		while (json.hasNext()) {
+			Gateway gateway = new Gateway();
+			json.beginObject();
+			while (json.hasNext()) {
+				String name = json.nextName();
+				if (name.equals("host"))
+					gateway.mHost = json.nextString();
+				else if (name.equals("ip_address"))
+					gateway.mIpAddress = json.nextString();
+				else if (name.equals("location"))
+					gateway.mLocation = json.nextString();
+				else if (name.equals("capabilities"))
+					readCapabilities(json, gateway);
+				else
+					json.skipValue();
+			}
+			json.endObject();
+			mGateways.add(gateway);
+		}
+		json.endArray();
+	}
+
+	private static void readCapabilities(JsonTokens json, Gateway gateway) throws IOException {
+		json.beginObject();
+		while (json.hasNext()) {
+			String name = json.nextName();
+			if (name.equals("transport"))
+				gateway.mTransport = readStrings(json);
+			else if (name.equals("protocols"))
+				gateway.mProtocols = readStrings(json);
+			else if (name.equals("ports"))
+				gateway.mPorts = readStrings(json);
+			else
+				json.skipValue();
+		}
+		json.endObject();
+	}
+
+	private void readLocations(JsonTokens json) throws IOException {
+		json.beginObject();
+		while (json.hasNext()) {
+			String key = json.nextName();
+			json.beginObject();
+			while (json.hasNext()) {
+				if (json.nextName().equals("name"))
+					mLocationNames.put(key, json.nextString());
+				else
+					json.skipValue();
+			}
+			json.endObject();
+		}
+		json.endObject();
+	}
+
+	private static void readOptions(JsonTokens json, Map<String, String> options) throws IOException {
+		json.beginObject();
+		while (json.hasNext()) {
+			String name = json.nextName();
+			JsonToken token = json.peek();
+			if (token == JsonToken.STRING || token == JsonToken.NUMBER)
+				options.put(name, json.nextString());
+			else if (token == JsonToken.BOOLEAN)
+				options.put(name, String.valueOf(json.nextBoolean()));
+			else
+				json.skipValue();
+		}
+		json.endObject();
+	}
+
+	private static List<String> readStrings(JsonTokens json) throws IOException {
+		List<String> strings = new ArrayList<String>(4);
+		json.beginArray();
+		while (json.hasNext())
+			strings.add(json.nextString());
+		json.endArray();
+		return strings;
+	}
+}
@@ -1,8 +1,10 @@
 package se.leap.bitmaskclient;
 
 import se.leap.bitmaskclient.R;
+import se.leap.openvpn.ConnectionState;
 import se.leap.openvpn.LogWindow;
 import se.leap.openvpn.OpenVPN;
+import se.leap.openvpn.OpenVpnManagementThread;
 import se.leap.openvpn.OpenVPN.StateListener;
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -90,6 +92,7 @@ public class EipServiceFragment extends Fragment implements StateListener, OnChe
 		super.onResume();
 
 		OpenVPN.addStateListener(this);
+		OpenVpnManagementThread.setViewVisible(true);
 	}
 
 	@Override
@@ -97,6 +100,7 @@ public class EipServiceFragment extends Fragment implements StateListener, OnChe
 		super.onPause();
 
 		OpenVPN.removeStateListener(this);
+		OpenVpnManagementThread.setViewVisible(false);
 	}
 	
 	@Override
@@ -159,9 +163,7 @@ public class EipServiceFragment extends Fragment implements StateListener, OnChe
 	}
 	
 	@Override
-	public void updateState(final String state, final String logmessage, final int localizedResId) {
-		// Note: "states" are not organized anywhere...collected state strings:
-		//		NOPROCESS,NONETWORK,BYTECOUNT,AUTH_FAILED + some parsing thing ( WAIT(?),AUTH,GET_CONFIG,ASSIGN_IP,CONNECTED,SIGINT )
+	public void updateState(final ConnectionState state, final String logmessage) {
 		getActivity().runOnUiThread(new Runnable() {
 
 			@Override
@@ -169,28 +171,31 @@ public class EipServiceFragment extends Fragment implements StateListener, OnChe
 				if (eipStatus != null) {
 					boolean switchState = true;
 					String statusMessage = "";
-					String prefix = getString(localizedResId);
-					if (state.equals("CONNECTED")){
-
+					switch (state) {
+					case CONNECTED:
 						statusMessage = getString(R.string.eip_state_connected);
 						getActivity().findViewById(R.id.eipProgress).setVisibility(View.GONE);
 						mEipStartPending = false;
-					} else if (state.equals("BYTECOUNT")) {
-					statusMessage = getString(R.string.eip_state_connected); getActivity().findViewById(R.id.eipProgress).setVisibility(View.GONE);
-                                                mEipStartPending = false;
-						
-					} else if ( (state.equals("NOPROCESS") && !mEipStartPending ) || state.equals("EXITING") || state.equals("FATAL")) {
+						break;
+					case NOPROCESS:
+						if (mEipStartPending) {
+							statusMessage = logmessage;
+							break;
+						}
+						// fall through
+					case EXITING:
+					case FATAL:
 						statusMessage = getString(R.string.eip_state_not_connected);
 						getActivity().findViewById(R.id.eipProgress).setVisibility(View.GONE);
 						mEipStartPending = false;
 						switchState = false;
-					} else if (state.equals("NOPROCESS")){
-						statusMessage = logmessage;
-					} else if (state.equals("ASSIGN_IP")){ //don't show assigning message in eipStatus
+						break;
+					case ASSIGN_IP:
+						//don't show assigning message in eipStatus
 						statusMessage = (String) eipStatus.getText();
-					}
-					else {
-						statusMessage = prefix + " " + logmessage;
+						break;
+					default:
+						statusMessage = getString(state.getResId()) + " " + logmessage;
 					}
 					
 					eipAutoSwitched = true;
@@ -0,0 +1,46 @@
+package se.leap.bitmaskclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import android.util.JsonToken;
+
+/**
+ * The calls of android.util.JsonReader the provider definitions are read
+ * with. On the device they go to the platform reader, see
+ * PlatformJsonTokens. JVM tests, where android.jar only has stubs, read
+ * the same documents with a reader of their own.
+ */
+public interface JsonTokens extends Closeable {
+
+	JsonToken peek() throws IOException;
+
+	boolean hasNext() throws IOException;
+
+	void beginObject() throws IOException;
+
+	void endObject() throws IOException;
+
+	void beginArray() throws IOException;
+
+	void endArray() throws IOException;
+
+	String nextName() throws IOException;
+
+	/**
+	 * @return a string, or the text of a number
+	 */
+	String nextString() throws IOException;
+
+	/**
+	 * @return a number, or a string holding one
+	 */
+	int nextInt() throws IOException;
+
+	boolean nextBoolean() throws IOException;
+
+	/**
+	 * Skips the next value, with everything nested in it.
+	 */
+	void skipValue() throws IOException;
+}
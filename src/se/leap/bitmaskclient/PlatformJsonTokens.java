@@ -0,0 +1,79 @@
+package se.leap.bitmaskclient;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+/**
+ * JsonTokens read by android.util.JsonReader, strict JSON only.
+ */
+public class PlatformJsonTokens implements JsonTokens {
+
+	private final JsonReader mReader;
+
+	public PlatformJsonTokens(Reader reader) {
+		mReader = new JsonReader(reader);
+	}
+
+	@Override
+	public JsonToken peek() throws IOException {
+		return mReader.peek();
+	}
+
+	@Override
+	public boolean hasNext() throws IOException {
+		return mReader.hasNext();
+	}
+
+	@Override
+	public void beginObject() throws IOException {
+		mReader.beginObject();
+	}
+
+	@Override
+	public void endObject() throws IOException {
+		mReader.endObject();
+	}
+
+	@Override
+	public void beginArray() throws IOException {
+		mReader.beginArray();
+	}
+
+	@Override
+	public void endArray() throws IOException {
+		mReader.endArray();
+	}
+
+	@Override
+	public String nextName() throws IOException {
+		return mReader.nextName();
+	}
+
+	@Override
+	public String nextString() throws IOException {
+		return mReader.nextString();
+	}
+
+	@Override
+	public int nextInt() throws IOException {
+		return mReader.nextInt();
+	}
+
+	@Override
+	public boolean nextBoolean() throws IOException {
+		return mReader.nextBoolean();
+	}
+
+	@Override
+	public void skipValue() throws IOException {
+		mReader.skipValue();
+	}
+
+	@Override
+	public void close() throws IOException {
+		mReader.close();
+	}
+}
@@ -16,10 +16,11 @@
  */
  package se.leap.bitmaskclient;
 
-import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.net.CookieHandler;
@@ -33,7 +34,6 @@ import java.net.URLConnection;
 import java.net.URLEncoder;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
-import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
@@ -44,7 +44,10 @@ import java.security.interfaces.RSAPrivateKey;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -52,7 +55,6 @@ import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 
 import org.apache.http.client.ClientProtocolException;
@@ -97,6 +99,7 @@ public class ProviderAPI extends IntentService {
     SESSION_ID_COOKIE_KEY = "session_id_cookie_key",
     SESSION_ID_KEY = "session_id",
     ERRORS = "errors",
+    CANCELLED_KEY = "cancelled",
     UPDATE_PROGRESSBAR = "update_progressbar",
     CURRENT_PROGRESS = "current_progress",
     TAG = "provider_api_tag"
@@ -115,7 +118,8 @@ public class ProviderAPI extends IntentService {
     PROVIDER_OK = 11,
     PROVIDER_NOK = 12,
     CORRECTLY_DOWNLOADED_ANON_CERTIFICATE = 13,
-    INCORRECTLY_DOWNLOADED_ANON_CERTIFICATE = 14
+    INCORRECTLY_DOWNLOADED_ANON_CERTIFICATE = 14,
+    PROVIDER_SET_UP_CANCELLED = 15
     ;
 
     private static boolean 
@@ -126,6 +130,33 @@ public class ProviderAPI extends IntentService {
     
     private static String last_provider_main_url;
     private static boolean last_danger_on = false;
+
+    // Upper bound for each download of setUpProvider
+    private static final int BOOTSTRAP_STEP_TIMEOUT = 20000;
+    private static final ExecutorService bootstrap_executor = Executors.newCachedThreadPool();
+    private static volatile ProviderBootstrap current_bootstrap;
+
+    // Read from the stored provider.json, which is kept as downloaded
+    private static ProviderDefinition provider_definition;
+    private static String provider_definition_string;
+
+    // Validators of provider.json and eip-service.json, kept next to the documents
+    private static final ProviderCache document_cache = new ProviderCache(new ProviderCache.Store() {
+		@Override
+		public String get(String key) {
+			return ConfigHelper.sharedPrefContainsKey(key) ? ConfigHelper.getStringFromSharedPref(key) : null;
+		}
+
+		@Override
+		public void put(String key, String value) {
+			ConfigHelper.saveSharedPref(key, value);
+		}
+
+		@Override
+		public void remove(String key) {
+			ConfigHelper.removeFromSharedPref(key);
+		}
+	});
     
 	public ProviderAPI() {
 		super("ProviderAPI");
@@ -158,27 +189,39 @@ public class ProviderAPI extends IntentService {
 		Bundle parameters = command.getBundleExtra(PARAMETERS);
 		
 		if(action.equalsIgnoreCase(SET_UP_PROVIDER)) {
+			ProviderConnections.Flow flow = ProviderConnections.beginFlow("bootstrap");
 			Bundle result = setUpProvider(parameters);
+			Log.d(TAG, flow.end().toString());
 			if(result.getBoolean(RESULT_KEY)) {
 				receiver.send(PROVIDER_OK, Bundle.EMPTY);
+			} else if(result.getBoolean(CANCELLED_KEY)) {
+				receiver.send(PROVIDER_SET_UP_CANCELLED, Bundle.EMPTY);
 			} else { 
 				receiver.send(PROVIDER_NOK, result);
 			}
 		} else if (action.equalsIgnoreCase(SRP_AUTH)) {
+			ProviderConnections.Flow flow = ProviderConnections.beginFlow("login");
 			Bundle session_id_bundle = authenticateBySRP(parameters);
+			Log.d(TAG, flow.end().toString());
 			if(session_id_bundle.getBoolean(RESULT_KEY)) {
 				receiver.send(SRP_AUTHENTICATION_SUCCESSFUL, session_id_bundle);
 			} else {
 				receiver.send(SRP_AUTHENTICATION_FAILED, session_id_bundle);
 			}
 		} else if (action.equalsIgnoreCase(LOG_OUT)) {
-			if(logOut(parameters)) {
+			ProviderConnections.Flow flow = ProviderConnections.beginFlow("logout");
+			boolean logged_out = logOut(parameters);
+			Log.d(TAG, flow.end().toString());
+			if(logged_out) {
 				receiver.send(LOGOUT_SUCCESSFUL, Bundle.EMPTY);
 			} else {
 				receiver.send(LOGOUT_FAILED, Bundle.EMPTY);
 			}
 		} else if (action.equalsIgnoreCase(DOWNLOAD_CERTIFICATE)) {
-			if(getNewCert(parameters)) {
+			ProviderConnections.Flow flow = ProviderConnections.beginFlow("certificate");
+			boolean downloaded = getNewCert(parameters);
+			Log.d(TAG, flow.end().toString());
+			if(downloaded) {
 				receiver.send(CORRECTLY_DOWNLOADED_CERTIFICATE, Bundle.EMPTY);
 			} else {
 				receiver.send(INCORRECTLY_DOWNLOADED_CERTIFICATE, Bundle.EMPTY);
@@ -386,22 +429,25 @@ public class ProviderAPI extends IntentService {
 		InputStream is = null;
 		HttpsURLConnection urlConnection = (HttpsURLConnection)new URL(url).openConnection();
 		urlConnection.setRequestMethod(request_method);
-		urlConnection.setChunkedStreamingMode(0);
 		urlConnection.setSSLSocketFactory(getProviderSSLSocketFactory());
+		// A known length instead of chunks, and the connection stays open for the next request
+		byte[] body = formatHttpParameters(parameters).getBytes("UTF-8");
+		urlConnection.setDoOutput(true);
+		urlConnection.setFixedLengthStreamingMode(body.length);
 		try {
 			
-			DataOutputStream writer = new DataOutputStream(urlConnection.getOutputStream());
-			writer.writeBytes(formatHttpParameters(parameters));
+			OutputStream writer = urlConnection.getOutputStream();
+			writer.write(body);
 			writer.close();
 
 			is = urlConnection.getInputStream();
-			String plain_response = new Scanner(is).useDelimiter("\\A").next();
+			String plain_response = ProviderConnections.read(is);
 			json_response = new JSONObject(plain_response);
 		} finally {
 			InputStream error_stream = urlConnection.getErrorStream();
 			if(error_stream != null) {
-				String error_response = new Scanner(error_stream).useDelimiter("\\A").next();
-				urlConnection.disconnect();
+				// Read to the end, the connection can still be reused
+				String error_response = ProviderConnections.read(error_stream);
 				Log.d("Error", error_response);
 				json_response = new JSONObject(error_response);
 				if(!json_response.isNull(ERRORS) || json_response.has(ERRORS)) {
@@ -444,27 +490,7 @@ public class ProviderAPI extends IntentService {
 	 * @return a bundle with a boolean value mapped to a key named RESULT_KEY, and which is true if the update was successful. 
 	 */
 	private Bundle setUpProvider(Bundle task) {
-//<<<<<<< HEAD
-//		Bundle result = new Bundle();
-//		int progress = 0;
-//		boolean danger_on = task.getBoolean(ProviderItem.DANGER_ON);
-//		String provider_main_url = task.getString(Provider.MAIN_URL);
-//		if(downloadCACert(provider_main_url, danger_on)) {
-//			broadcast_progress(progress++);
-//			result.putBoolean(RESULT_KEY, true);
-//			if(getAndSetProviderJson(provider_main_url)) {
-//				broadcast_progress(progress++);
-//				if(getAndSetEipServiceJson())
-//					broadcast_progress(progress++);
-//			}
-//		}
-//		return result;
-//	}
-//	
-//	
-//=======
 		int progress = 0;
-		Bundle current_download = new Bundle();
 		
 		if(task != null && task.containsKey(ProviderItem.DANGER_ON) && task.containsKey(Provider.MAIN_URL)) {
 			last_danger_on = task.getBoolean(ProviderItem.DANGER_ON);
@@ -472,25 +498,156 @@ public class ProviderAPI extends IntentService {
 			CA_CERT_DOWNLOADED = PROVIDER_JSON_DOWNLOADED = EIP_SERVICE_JSON_DOWNLOADED = false;
 		}
 
-		if(!CA_CERT_DOWNLOADED)
-			current_download = downloadCACert(last_provider_main_url, last_danger_on);
-		if(CA_CERT_DOWNLOADED || (current_download.containsKey(RESULT_KEY) && current_download.getBoolean(RESULT_KEY))) {
+		int done = 0;
+		if(CA_CERT_DOWNLOADED) {
+			done = ProviderBootstrap.CA_CERT;
+			if(PROVIDER_JSON_DOWNLOADED)
+				done = ProviderBootstrap.PROVIDER_JSON;
+		}
+		for(int i = 0; i < done; i++)
 			broadcast_progress(progress++);
-			CA_CERT_DOWNLOADED = true;
-			if(!PROVIDER_JSON_DOWNLOADED)
-				current_download = getAndSetProviderJson(last_provider_main_url); 
-			if(PROVIDER_JSON_DOWNLOADED || (current_download.containsKey(RESULT_KEY) && current_download.getBoolean(RESULT_KEY))) {
-				broadcast_progress(progress++);
-				PROVIDER_JSON_DOWNLOADED = true;
-				current_download = getAndSetEipServiceJson(); 
-				if(current_download.containsKey(RESULT_KEY) && current_download.getBoolean(RESULT_KEY)) {
-					broadcast_progress(progress++);
-					EIP_SERVICE_JSON_DOWNLOADED = true;
-				}
-			}
+
+		BootstrapSteps steps = new BootstrapSteps(last_provider_main_url, last_danger_on, progress);
+		ProviderBootstrap bootstrap = new ProviderBootstrap(bootstrap_executor, BOOTSTRAP_STEP_TIMEOUT);
+		current_bootstrap = bootstrap;
+		try {
+			bootstrap.run(steps, done, storedEipServiceUrl(last_provider_main_url), likelyApiHost(last_provider_main_url));
+		} catch (TimeoutException e) {
+			Log.d(TAG, e.getMessage());
+			steps.fail(getResources().getString(R.string.server_is_down_message));
+		} catch (CancellationException e) {
+			steps.cancelled();
+		} catch (Exception e) {
+			String reason_to_fail = e.getLocalizedMessage();
+			if(reason_to_fail == null)
+				reason_to_fail = getResources().getString(R.string.setting_up_provider_failed_message);
+			steps.fail(reason_to_fail);
+		} finally {
+			current_bootstrap = null;
+			Log.d(TAG, "bootstrap took " + bootstrap.getElapsed() + " ms: " + bootstrap.getTimings());
 		}
 		
-		return current_download;
+		return steps.mResult;
+	}
+
+	/**
+	 * Stops a running setUpProvider, it reports PROVIDER_SET_UP_CANCELLED.
+	 */
+	public static void cancelSetUpProvider() {
+		ProviderBootstrap bootstrap = current_bootstrap;
+		if(bootstrap != null)
+			bootstrap.cancel();
+	}
+
+	/**
+	 * Runs the downloads of setUpProvider for ProviderBootstrap, mResult keeps
+	 * the outcome of the last step like setUpProvider always returned it.
+	 */
+	private class BootstrapSteps implements ProviderBootstrap.Steps {
+		private final String provider_main_url;
+		private final boolean danger_on;
+		private int progress;
+		volatile Bundle mResult = new Bundle();
+
+		BootstrapSteps(String provider_main_url, boolean danger_on, int progress) {
+			this.provider_main_url = provider_main_url;
+			this.danger_on = danger_on;
+			this.progress = progress;
+		}
+
+		@Override
+		public boolean downloadCACert() {
+			mResult = ProviderAPI.this.downloadCACert(provider_main_url, danger_on);
+			return mResult.getBoolean(RESULT_KEY);
+		}
+
+		@Override
+		public String downloadProviderJson() throws IOException {
+			mResult = getAndSetProviderJson(provider_main_url);
+			if(!mResult.getBoolean(RESULT_KEY))
+				return null;
+			return getProviderDefinition().getEipServiceUrl();
+		}
+
+		@Override
+		public String downloadEipServiceJson(String url) {
+			return downloadWithProviderCA(url, true, EIP.KEY);
+		}
+
+		@Override
+		public boolean setEipServiceJson(String url, String eip_service_json) {
+			mResult = ProviderAPI.this.setEipServiceJson(eip_service_json);
+			if(mResult.getBoolean(RESULT_KEY))
+				document_cache.commit(EIP.KEY, url);
+			return mResult.getBoolean(RESULT_KEY);
+		}
+
+		@Override
+		public void stepDone(int steps) {
+			broadcast_progress(progress++);
+			if(steps == ProviderBootstrap.CA_CERT)
+				CA_CERT_DOWNLOADED = true;
+			else if(steps == ProviderBootstrap.PROVIDER_JSON)
+				PROVIDER_JSON_DOWNLOADED = true;
+			else if(steps == ProviderBootstrap.EIP_SERVICE_JSON)
+				EIP_SERVICE_JSON_DOWNLOADED = true;
+		}
+
+		void fail(String reason_to_fail) {
+			Bundle result = new Bundle();
+			result.putString(ERRORS, reason_to_fail);
+			result.putBoolean(RESULT_KEY, false);
+			mResult = result;
+		}
+
+		void cancelled() {
+			Bundle result = new Bundle();
+			result.putBoolean(CANCELLED_KEY, true);
+			result.putBoolean(RESULT_KEY, false);
+			mResult = result;
+		}
+	}
+
+	/**
+	 * @return eip-service.json url of the stored provider.json if it belongs to the provider at provider_main_url
+	 */
+	private String storedEipServiceUrl(String provider_main_url) {
+		try {
+			ProviderDefinition provider_definition = getProviderDefinition();
+			if(!new URL(provider_main_url).getHost().equals(provider_definition.getDomain()))
+				return null;
+			return provider_definition.getEipServiceUrl();
+		} catch (MalformedURLException e) {
+			return null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return host the api of the provider at provider_main_url has by convention, api.domain
+	 */
+	private String likelyApiHost(String provider_main_url) {
+		try {
+			return "api." + new URL(provider_main_url).getHost();
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the stored provider.json, unless it is the one provider_definition was read from.
+	 */
+	private static synchronized ProviderDefinition getProviderDefinition() throws IOException {
+		String provider_dot_json_string = ConfigHelper.getStringFromSharedPref(Provider.KEY);
+		if(provider_definition == null || !provider_dot_json_string.equals(provider_definition_string))
+			setProviderDefinition(ProviderDefinition.read(new StringReader(provider_dot_json_string)), provider_dot_json_string);
+		return provider_definition;
+	}
+
+	private static synchronized void setProviderDefinition(ProviderDefinition definition, String provider_dot_json_string) {
+		provider_definition = definition;
+		provider_definition_string = provider_dot_json_string;
 	}
 	
 	private Bundle downloadCACert(String provider_main_url, boolean danger_on) {
@@ -531,18 +688,26 @@ public class ProviderAPI extends IntentService {
 	private Bundle getAndSetProviderJson(String provider_main_url) {
 		Bundle result = new Bundle();
 
-		String provider_dot_json_string = downloadWithProviderCA(provider_main_url + "/provider.json", true);
+		String provider_dot_json_url = provider_main_url + "/provider.json";
+		String provider_dot_json_string = downloadWithProviderCA(provider_dot_json_url, true, Provider.KEY);
+		if(provider_dot_json_string == null) {
+			// Not modified, what we stored from it is current
+			result.putBoolean(RESULT_KEY, true);
+			return result;
+		}
 
 		try {
-			JSONObject provider_json = new JSONObject(provider_dot_json_string);
-			String name = provider_json.getString(Provider.NAME);
-			//TODO setProviderName(name);
+			ProviderDefinition definition = ProviderDefinition.read(new StringReader(provider_dot_json_string));
+			//TODO setProviderName(definition.getName(...));
 			
-			ConfigHelper.saveSharedPref(Provider.KEY, provider_json);
-			ConfigHelper.saveSharedPref(EIP.ALLOWED_ANON, provider_json.getJSONObject(Provider.SERVICE).getBoolean(EIP.ALLOWED_ANON));
+			// Stored as downloaded, it was only checked
+			ConfigHelper.saveSharedPref(Provider.KEY, provider_dot_json_string);
+			ConfigHelper.saveSharedPref(EIP.ALLOWED_ANON, definition.allowsAnonymous());
+			setProviderDefinition(definition, provider_dot_json_string);
+			document_cache.commit(Provider.KEY, provider_dot_json_url);
 
 			result.putBoolean(RESULT_KEY, true);
-		} catch (JSONException e) {
+		} catch (IOException e) {
 			//TODO Error message should be contained in that provider_dot_json_string
 			String reason_to_fail = pickErrorMessage(provider_dot_json_string);
 			result.putString(ERRORS, reason_to_fail);
@@ -557,20 +722,16 @@ public class ProviderAPI extends IntentService {
 		return PROVIDER_JSON_DOWNLOADED;
 	}
 
-	private Bundle getAndSetEipServiceJson() {
+	private Bundle setEipServiceJson(String eip_service_json_string) {
 		Bundle result = new Bundle();
-		String eip_service_json_string = "";
 		try {
-			JSONObject provider_json = ConfigHelper.getJsonFromSharedPref(Provider.KEY);
-			String eip_service_url = provider_json.getString(Provider.API_URL) +  "/" + provider_json.getString(Provider.API_VERSION) + "/" + EIP.SERVICE_API_PATH;
-			eip_service_json_string = downloadWithProviderCA(eip_service_url, true);
-			JSONObject eip_service_json = new JSONObject(eip_service_json_string);
-			eip_service_json.getInt(Provider.API_RETURN_SERIAL);
+			// Only stored here, so only checked, without a model or a JSONObject tree of every gateway
+			EipServiceDefinition.readSerial(new StringReader(eip_service_json_string));
 
-			ConfigHelper.saveSharedPref(EIP.KEY, eip_service_json);
+			ConfigHelper.saveSharedPref(EIP.KEY, eip_service_json_string);
 
 			result.putBoolean(RESULT_KEY, true);
-		} catch (JSONException e) {
+		} catch (IOException e) {
 			String reason_to_fail = pickErrorMessage(eip_service_json_string);
 			result.putString(ERRORS, reason_to_fail);
 			result.putBoolean(RESULT_KEY, false);
@@ -621,7 +782,7 @@ public class ProviderAPI extends IntentService {
 			url_connection.setConnectTimeout(seconds_of_timeout*1000);
 			if(!LeapSRPSession.getToken().isEmpty())
 				url_connection.addRequestProperty(LeapSRPSession.TOKEN, LeapSRPSession.getToken());
-			json_file_content = new Scanner(url_connection.getInputStream()).useDelimiter("\\A").next();
+			json_file_content = ProviderConnections.read(url_connection.getInputStream());
 		} catch (MalformedURLException e) {
 			json_file_content = formatErrorMessage(R.string.malformed_url);
 		} catch(SocketTimeoutException e) {
@@ -648,6 +809,16 @@ public class ProviderAPI extends IntentService {
 	 * @return an empty string if it fails, the url content if not. 
 	 */
 	private String downloadWithProviderCA(String url_string, boolean danger_on) {
+		return downloadWithProviderCA(url_string, danger_on, null);
+	}
+
+	/**
+	 * Like {@link #downloadWithProviderCA(String, boolean)}, but asks the provider whether the document
+	 * stored under the document key changed.
+	 * @param document SharedPreferences key of the stored document, null to always download it
+	 * @return null if the stored document is still current
+	 */
+	private String downloadWithProviderCA(String url_string, boolean danger_on, String document) {
 		String json_file_content = "";
 
 		try {
@@ -656,9 +827,16 @@ public class ProviderAPI extends IntentService {
 			HttpsURLConnection urlConnection =
 					(HttpsURLConnection)url.openConnection();
 			urlConnection.setSSLSocketFactory(getProviderSSLSocketFactory());
+			// A bootstrap step given up on doesn't keep its thread forever
+			urlConnection.setReadTimeout(BOOTSTRAP_STEP_TIMEOUT);
 			if(!LeapSRPSession.getToken().isEmpty())
 				urlConnection.addRequestProperty(LeapSRPSession.TOKEN, LeapSRPSession.getToken());
-			json_file_content = new Scanner(urlConnection.getInputStream()).useDelimiter("\\A").next();
+			if(document != null) {
+				if(ConfigHelper.sharedPrefContainsKey(document))
+					document_cache.prepare(urlConnection, document);
+				json_file_content = document_cache.read(urlConnection, document);
+			} else
+				json_file_content = ProviderConnections.read(urlConnection.getInputStream());
 		} catch (CertificateException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -686,25 +864,9 @@ public class ProviderAPI extends IntentService {
 	
 	private javax.net.ssl.SSLSocketFactory getProviderSSLSocketFactory() throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException, KeyManagementException {
 		String provider_cert_string = ConfigHelper.getStringFromSharedPref(Provider.CA_CERT);
-
-		java.security.cert.Certificate provider_certificate = ConfigHelper.parseX509CertificateFromString(provider_cert_string);
-
-		// Create a KeyStore containing our trusted CAs
-		String keyStoreType = KeyStore.getDefaultType();
-		KeyStore keyStore = KeyStore.getInstance(keyStoreType);
-		keyStore.load(null, null);
-		keyStore.setCertificateEntry("provider_ca_certificate", provider_certificate);
-
-		// Create a TrustManager that trusts the CAs in our KeyStore
-		String tmfAlgorithm = TrustManagerFactory.getDefaultAlgorithm();
-		TrustManagerFactory tmf = TrustManagerFactory.getInstance(tmfAlgorithm);
-		tmf.init(keyStore);
-
-		// Create an SSLContext that uses our TrustManager
-		SSLContext context = SSLContext.getInstance("TLS");
-		context.init(null, tmf.getTrustManagers(), null);
-
-		return context.getSocketFactory();
+		// Built once per CA, a new CA gets a new context
+		// The same factory for every request, idle connections are only reused for it
+		return ProviderConnections.getSocketFactory(ProviderTrust.getContext(provider_cert_string));
 	}
 	
 	/**
@@ -742,7 +904,7 @@ public class ProviderAPI extends IntentService {
 			HttpsURLConnection urlConnection = (HttpsURLConnection)url.openConnection();
 			urlConnection.setSSLSocketFactory(context.getSocketFactory());
 			urlConnection.setHostnameVerifier(hostnameVerifier);
-			string = new Scanner(urlConnection.getInputStream()).useDelimiter("\\A").next();
+			string = ProviderConnections.read(urlConnection.getInputStream());
 			System.out.println("String ignoring certificate = " + string);
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -776,6 +938,7 @@ public class ProviderAPI extends IntentService {
 			urlConnection.setSSLSocketFactory(getProviderSSLSocketFactory());
 
 			int responseCode = urlConnection.getResponseCode();
+			ProviderConnections.discard(urlConnection);
 			broadcast_progress(progress++);
 			LeapSRPSession.setToken("");
 			Log.d(TAG, Integer.toString(responseCode));
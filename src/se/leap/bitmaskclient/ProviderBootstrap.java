@@ -0,0 +1,250 @@
+package se.leap.bitmaskclient;
+
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Downloads what a provider needs before it can be used: ca.crt, then
+ * provider.json, then eip-service.json.
+ *
+ * The documents depend on each other, but the waiting doesn't have to.
+ * If eip-service.json was fetched before, its host is resolved while the
+ * CA downloads. As soon as the CA is verified, provider.json and the
+ * eip-service.json at the known url are fetched together. The prefetched
+ * document is used if the new provider.json still points to that url.
+ *
+ * The first time nothing is known, the three downloads wait for each
+ * other. Only the lookup of the likely api host overlaps with the CA.
+ *
+ * Every step has its own timeout, cancel() stops waiting from any thread.
+ */
+public class ProviderBootstrap {
+
+	public interface Steps {
+		/** @return true if the CA was downloaded and is valid */
+		boolean downloadCACert() throws Exception;
+
+		/**
+		 * Downloads and stores provider.json, unless the stored one is current.
+		 * @return url of eip-service.json, null if provider.json was not valid
+		 */
+		String downloadProviderJson() throws Exception;
+
+		/** @return the document, null if the stored one is still current */
+		String downloadEipServiceJson(String url) throws Exception;
+
+		/** @return true if the document was valid and is stored */
+		boolean setEipServiceJson(String url, String eip_service_json) throws Exception;
+
+		/** Called on the calling thread after each step that succeeded */
+		void stepDone(int steps);
+	}
+
+	public static final int
+	CA_CERT = 1,
+	PROVIDER_JSON = 2,
+	EIP_SERVICE_JSON = 3;
+
+	private static class Step<T> {
+		final String mName;
+		final long mStart = System.nanoTime();
+		volatile long mEnd = 0;
+		Future<T> mFuture;
+
+		Step(String name) {
+			mName = name;
+		}
+	}
+
+	private final ExecutorService mExecutor;
+	private final long mStepTimeout;
+	private final long mStart = System.nanoTime();
+	private final List<Step<?>> mSteps = new ArrayList<Step<?>>();
+	private volatile boolean mCancelled = false;
+
+	/**
+	 * @param step_timeout ms each step may take
+	 */
+	public ProviderBootstrap(ExecutorService executor, long step_timeout) {
+		mExecutor = executor;
+		mStepTimeout = step_timeout;
+	}
+
+	/**
+	 * Runs the steps not done yet.
+	 * @param done steps done by an earlier run
+	 * @param known_eip_service_url eip-service.json url of the stored provider.json, or null
+	 * @param likely_api_host where eip-service.json probably is when no url is known, or null
+	 * @return number of steps done, EIP_SERVICE_JSON if the provider can be used
+	 * @throws TimeoutException if a step took too long
+	 * @throws CancellationException if cancel() was called
+	 */
+	public int run(Steps steps, int done, String known_eip_service_url, String likely_api_host) throws Exception {
+		try {
+			return runSteps(steps, done, known_eip_service_url, likely_api_host);
+		} finally {
+			// A prefetch nobody needed or steps left by a timeout
+			cancelSteps();
+		}
+	}
+
+	private int runSteps(final Steps steps, int done, final String known_eip_service_url, String likely_api_host) throws Exception {
+		if (done < PROVIDER_JSON) {
+			final String host = known_eip_service_url != null ? hostOf(known_eip_service_url) : likely_api_host;
+			if (host != null) {
+				start("resolve " + host, new Callable<InetAddress>() {
+					@Override
+					public InetAddress call() throws Exception {
+						// Warms the resolver cache for the request later on
+						return InetAddress.getByName(host);
+					}
+				});
+			}
+		}
+
+		if (done < CA_CERT) {
+			boolean valid = await(start("ca.crt", new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return steps.downloadCACert();
+				}
+			}));
+			if (!valid)
+				return done;
+			steps.stepDone(done = CA_CERT);
+		}
+
+		Step<String> prefetch = null;
+		String eip_service_url = known_eip_service_url;
+		if (done < PROVIDER_JSON) {
+			if (known_eip_service_url != null) {
+				prefetch = start("eip-service.json prefetch", new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						return steps.downloadEipServiceJson(known_eip_service_url);
+					}
+				});
+			}
+			eip_service_url = await(start("provider.json", new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return steps.downloadProviderJson();
+				}
+			}));
+			if (eip_service_url == null)
+				return done;
+			steps.stepDone(done = PROVIDER_JSON);
+		} else if (eip_service_url == null) {
+			return done;
+		}
+
+		String eip_service_json;
+		final String url = eip_service_url;
+		if (prefetch != null && eip_service_url.equals(known_eip_service_url)) {
+			eip_service_json = await(prefetch);
+		} else {
+			if (prefetch != null)
+				prefetch.mFuture.cancel(true);
+			eip_service_json = await(start("eip-service.json", new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return steps.downloadEipServiceJson(url);
+				}
+			}));
+		}
+		if (eip_service_json != null && !steps.setEipServiceJson(url, eip_service_json))
+			return done;
+		steps.stepDone(done = EIP_SERVICE_JSON);
+		return done;
+	}
+
+	/**
+	 * Stops the run, it throws a CancellationException right away.
+	 */
+	public void cancel() {
+		mCancelled = true;
+		cancelSteps();
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * @return ms since the bootstrap was created
+	 */
+	public long getElapsed() {
+		return (System.nanoTime() - mStart) / 1000000;
+	}
+
+	/**
+	 * @return start and duration of every step in ms, relative to the creation
+	 */
+	public synchronized String getTimings() {
+		StringBuilder timings = new StringBuilder();
+		for (Step<?> step : mSteps) {
+			if (timings.length() > 0)
+				timings.append(", ");
+			timings.append(step.mName).append(" at ").append((step.mStart - mStart) / 1000000).append(" ms ");
+			if (step.mEnd == 0)
+				timings.append("unfinished");
+			else
+				timings.append("took ").append((step.mEnd - step.mStart) / 1000000).append(" ms");
+		}
+		return timings.toString();
+	}
+
+	private static String hostOf(String url) {
+		try {
+			return new URL(url).getHost();
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	private synchronized <T> Step<T> start(String name, final Callable<T> work) {
+		if (mCancelled)
+			throw new CancellationException();
+		final Step<T> step = new Step<T>(name);
+		step.mFuture = mExecutor.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				try {
+					return work.call();
+				} finally {
+					step.mEnd = System.nanoTime();
+				}
+			}
+		});
+		mSteps.add(step);
+		return step;
+	}
+
+	private <T> T await(Step<T> step) throws Exception {
+		try {
+			return step.mFuture.get(mStepTimeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			step.mFuture.cancel(true);
+			throw new TimeoutException(step.mName + " took longer than " + mStepTimeout + " ms");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	private synchronized void cancelSteps() {
+		for (Step<?> step : mSteps)
+			step.mFuture.cancel(true);
+	}
+}
@@ -0,0 +1,142 @@
+package se.leap.bitmaskclient;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Revalidates provider documents instead of downloading them again.
+ *
+ * The url, ETag and Last-Modified of every stored document are kept, and
+ * the next request for it sends them as If-None-Match and
+ * If-Modified-Since. A 304 answer means the stored document, and whatever
+ * was parsed from it, is still current: read() returns null and nothing
+ * is parsed again.
+ *
+ * Documents are named by the key they are stored under, the validators of
+ * a response are only kept once commit() says it was stored there. They
+ * never describe a document we don't have, or one from another url.
+ */
+public class ProviderCache {
+
+	/**
+	 * Where the validators live between runs, e.g. SharedPreferences.
+	 */
+	public interface Store {
+		/** @return the value, null if there is none */
+		String get(String key);
+
+		void put(String key, String value);
+
+		void remove(String key);
+	}
+
+	private static final String
+	URL = " url",
+	ETAG = " etag",
+	LAST_MODIFIED = " last_modified"
+	;
+
+	private static class Validators {
+		final String mEtag;
+		final String mLastModified;
+
+		Validators(String etag, String last_modified) {
+			mEtag = etag;
+			mLastModified = last_modified;
+		}
+	}
+
+	private final Store mStore;
+	// Validators of responses not stored yet, by document and url
+	private final Map<String, Validators> mPending = new HashMap<String, Validators>();
+	private int mNotModified = 0;
+	private int mDownloads = 0;
+
+	public ProviderCache(Store store) {
+		mStore = store;
+	}
+
+	/**
+	 * Makes the request conditional if document was stored from its url.
+	 * @param document key the document is stored under
+	 */
+	public synchronized void prepare(HttpURLConnection connection, String document) {
+		if (!connection.getURL().toString().equals(mStore.get(document + URL)))
+			return;
+		String etag = mStore.get(document + ETAG);
+		String last_modified = mStore.get(document + LAST_MODIFIED);
+		if (etag != null)
+			connection.setRequestProperty("If-None-Match", etag);
+		if (last_modified != null)
+			connection.setRequestProperty("If-Modified-Since", last_modified);
+	}
+
+	/**
+	 * Reads the response to a request made after prepare().
+	 * @return the new document, null if the stored one is still current
+	 */
+	public String read(HttpURLConnection connection, String document) throws IOException {
+		if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			ProviderConnections.discard(connection);
+			synchronized (this) {
+				mNotModified++;
+			}
+			return null;
+		}
+		String content = ProviderConnections.read(connection.getInputStream());
+		String etag = connection.getHeaderField("ETag");
+		String last_modified = connection.getHeaderField("Last-Modified");
+		synchronized (this) {
+			mDownloads++;
+			mPending.put(document + " " + connection.getURL(), new Validators(etag, last_modified));
+		}
+		return content;
+	}
+
+	/**
+	 * Keeps the validators of the response read from url, call it once
+	 * its content was stored as document.
+	 */
+	public synchronized void commit(String document, String url) {
+		Validators validators = mPending.remove(document + " " + url);
+		if (validators == null || (validators.mEtag == null && validators.mLastModified == null)) {
+			forget(document);
+			return;
+		}
+		mStore.put(document + URL, url);
+		put(document + ETAG, validators.mEtag);
+		put(document + LAST_MODIFIED, validators.mLastModified);
+	}
+
+	/**
+	 * The next request for document downloads it in full again.
+	 */
+	public synchronized void forget(String document) {
+		mStore.remove(document + URL);
+		mStore.remove(document + ETAG);
+		mStore.remove(document + LAST_MODIFIED);
+	}
+
+	/**
+	 * @return requests answered with 304 so far
+	 */
+	public synchronized int getNotModified() {
+		return mNotModified;
+	}
+
+	/**
+	 * @return documents downloaded in full so far
+	 */
+	public synchronized int getDownloads() {
+		return mDownloads;
+	}
+
+	private void put(String key, String value) {
+		if (value != null)
+			mStore.put(key, value);
+		else
+			mStore.remove(key);
+	}
+}
@@ -0,0 +1,240 @@
+package se.leap.bitmaskclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Keeps connections to the provider alive between requests.
+ *
+ * HttpsURLConnection already pools idle keep-alive connections per host,
+ * but only for the same SSLSocketFactory instance and only once a
+ * response was read to the end and closed. All provider requests get the
+ * factory from here, one per SSLContext, and read responses with read().
+ * Connections the pool can't reuse still resume the TLS session from the
+ * session cache of the shared context.
+ *
+ * The factory counts the TLS connections it opens, a Flow reports them
+ * together with the wall time of a series of requests.
+ */
+public class ProviderConnections {
+
+	// Session ids seen before, a handshake with a known id was resumed
+	private static final int MAX_SESSION_IDS = 64;
+
+	private static final AtomicInteger sConnections = new AtomicInteger();
+	private static final AtomicInteger sResumed = new AtomicInteger();
+	private static final Map<String, Boolean> sSessionIds = Collections.synchronizedMap(
+			new LinkedHashMap<String, Boolean>() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+					return size() > MAX_SESSION_IDS;
+				}
+			});
+
+	private static SSLContext sContext;
+	private static SSLSocketFactory sFactory;
+
+	/**
+	 * Requests made with the same factory share idle connections.
+	 * @return the same factory as long as the context doesn't change
+	 */
+	public static synchronized SSLSocketFactory getSocketFactory(SSLContext context) {
+		if (context != sContext) {
+			sContext = context;
+			sFactory = new CountingSocketFactory(context.getSocketFactory());
+		}
+		return sFactory;
+	}
+
+	/**
+	 * Reads the whole stream as UTF-8 and closes it, which hands the
+	 * connection back to the pool.
+	 */
+	public static String read(InputStream is) throws IOException {
+		try {
+			Reader reader = new InputStreamReader(is, "UTF-8");
+			StringBuilder sb = new StringBuilder();
+			char[] buffer = new char[4096];
+			int n;
+			while ((n = reader.read(buffer)) != -1)
+				sb.append(buffer, 0, n);
+			return sb.toString();
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Reads and drops the response of a request whose body nobody needs,
+	 * so the connection can be used again.
+	 */
+	public static void discard(HttpURLConnection connection) {
+		try {
+			read(connection.getInputStream());
+		} catch (IOException e) {
+			InputStream error_stream = connection.getErrorStream();
+			if (error_stream != null) {
+				try {
+					read(error_stream);
+				} catch (IOException e1) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return TLS connections opened so far
+	 */
+	public static int getConnections() {
+		return sConnections.get();
+	}
+
+	/**
+	 * @return handshakes that resumed an earlier session so far
+	 */
+	public static int getResumed() {
+		return sResumed.get();
+	}
+
+	public static Flow beginFlow(String name) {
+		return new Flow(name);
+	}
+
+	/**
+	 * Connections and time spent by one series of requests, e.g. a login.
+	 */
+	public static class Flow {
+		private final String mName;
+		private final long mStart;
+		private final int mStartConnections;
+		private final int mStartResumed;
+		private long mMillis;
+		private int mConnections;
+		private int mResumed;
+
+		Flow(String name) {
+			mName = name;
+			mStart = System.nanoTime();
+			mStartConnections = sConnections.get();
+			mStartResumed = sResumed.get();
+		}
+
+		/**
+		 * @return this, to log it right away
+		 */
+		public Flow end() {
+			mMillis = (System.nanoTime() - mStart) / 1000000;
+			mConnections = sConnections.get() - mStartConnections;
+			mResumed = sResumed.get() - mStartResumed;
+			return this;
+		}
+
+		public long getMillis() {
+			return mMillis;
+		}
+
+		/**
+		 * @return TLS handshakes during the flow, new connections each need one
+		 */
+		public int getConnections() {
+			return mConnections;
+		}
+
+		/**
+		 * Resumption is reported by the TLS stack, possibly a little after
+		 * the handshake, so this may miss the last handshake of the flow.
+		 */
+		public int getResumed() {
+			return mResumed;
+		}
+
+		@Override
+		public String toString() {
+			return mName + ": " + mConnections + " handshakes (" + mResumed + " resumed) in " + mMillis + " ms";
+		}
+	}
+
+	private static class CountingSocketFactory extends SSLSocketFactory implements HandshakeCompletedListener {
+		private final SSLSocketFactory mDelegate;
+
+		CountingSocketFactory(SSLSocketFactory delegate) {
+			mDelegate = delegate;
+		}
+
+		private Socket count(Socket socket) {
+			sConnections.incrementAndGet();
+			if (socket instanceof SSLSocket)
+				((SSLSocket) socket).addHandshakeCompletedListener(this);
+			return socket;
+		}
+
+		@Override
+		public void handshakeCompleted(HandshakeCompletedEvent event) {
+			byte[] id = event.getSession().getId();
+			if (id == null || id.length == 0)
+				return;
+			StringBuilder hex = new StringBuilder(id.length * 2);
+			for (byte b : id)
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			if (sSessionIds.put(hex.toString(), Boolean.TRUE) != null)
+				sResumed.incrementAndGet();
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return count(mDelegate.createSocket());
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+			return count(mDelegate.createSocket(s, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return count(mDelegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return count(mDelegate.createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return count(mDelegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			return count(mDelegate.createSocket(address, port, localAddress, localPort));
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return mDelegate.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return mDelegate.getSupportedCipherSuites();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package se.leap.bitmaskclient;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * provider.json as read from the provider, the part of it the client uses.
+ *
+ * Built straight from the stream, like EipServiceDefinition.
+ */
+public class ProviderDefinition {
+
+	private String mApiUrl;
+	private String mApiVersion;
+	private String mDomain;
+	private Boolean mAllowAnonymous;
+
+	private ProviderDefinition() {}
+
+	/**
+	 * Reads the whole document and closes reader.
+	 * @throws IOException if it isn't a provider.json, e.g. an error answer
+	 */
+	public static ProviderDefinition read(Reader reader) throws IOException {
+		return read(new PlatformJsonTokens(reader));
+	}
+
+	/**
+	 * Reads the whole document and closes json.
+	 * @throws IOException if it isn't a provider.json, e.g. an error answer
+	 */
+	public static ProviderDefinition read(JsonTokens json) throws IOException {
+		ProviderDefinition definition = new ProviderDefinition();
+		boolean has_name = false;
+		try {
+			json.beginObject();
+			while (json.hasNext()) {
+				String name = json.nextName();
+				if (name.equals(Provider.API_URL))
+					definition.mApiUrl = json.nextString();
+				else if (name.equals(Provider.API_VERSION))
+					definition.mApiVersion = json.nextString();
+				else if (name.equals(Provider.DOMAIN))
+					definition.mDomain = json.nextString();
+				else if (name.equals(Provider.SERVICE))
+					definition.readService(json);
+				else {
+					has_name |= name.equals(Provider.NAME);
+					json.skipValue();
+				}
+			}
+			json.endObject();
+		} catch (RuntimeException e) {
+			// JsonReader throws IllegalStateException and NumberFormatException for unexpected tokens
+			throw new IOException("Not a provider.json: " + e.getMessage());
+		} finally {
+			json.close();
+		}
+		if (!has_name || definition.mAllowAnonymous == null
+				|| definition.mApiUrl == null || definition.mApiVersion == null)
+			throw new IOException("provider.json without name, api or service description");
+		return definition;
+	}
+
+	/**
+	 * @return url of the eip-service.json of this provider
+	 */
+	public String getEipServiceUrl() {
+		return mApiUrl + "/" + mApiVersion + "/" + EIP.SERVICE_API_PATH;
+	}
+
+	public String getDomain() {
+		return mDomain;
+	}
+
+	public boolean allowsAnonymous() {
+		return mAllowAnonymous;
+	}
+
+	private void readService(JsonTokens json) throws IOException {
+		json.beginObject();
+		while (json.hasNext()) {
+			if (json.nextName().equals(EIP.ALLOWED_ANON))
+				mAllowAnonymous = json.nextBoolean();
+			else
+				json.skipValue();
+		}
+		json.endObject();
+	}
+}
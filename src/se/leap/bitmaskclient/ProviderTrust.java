@@ -0,0 +1,107 @@
+package se.leap.bitmaskclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Holds the SSLContext trusting the CA of the current provider.
+ *
+ * The context is built once per CA, identified by the SHA-256 fingerprint
+ * of the certificate, and shared by all provider requests. Sharing it
+ * also shares its TLS session cache, so later connections to the provider
+ * resume the session instead of doing a full handshake.
+ */
+public class ProviderTrust {
+
+	private static String sPem;
+	private static String sFingerprint;
+	private static SSLContext sContext;
+	private static int sBuilds = 0;
+
+	/**
+	 * @param pem CA certificate as stored in Provider.CA_CERT
+	 * @return context trusting only that CA
+	 */
+	public static synchronized SSLContext getContext(String pem) throws CertificateException, KeyStoreException, NoSuchAlgorithmException, IOException, KeyManagementException {
+		// Same string as last time, not even parsed again
+		if (sContext != null && pem.equals(sPem))
+			return sContext;
+
+		X509Certificate ca = parseCertificate(pem);
+		String fingerprint = fingerprint(ca);
+		if (sContext == null || !fingerprint.equals(sFingerprint)) {
+			sContext = buildContext(ca);
+			sFingerprint = fingerprint;
+			sBuilds++;
+		}
+		sPem = pem;
+		return sContext;
+	}
+
+	/**
+	 * Drops the context, the next request builds a new one.
+	 */
+	public static synchronized void invalidate() {
+		sPem = null;
+		sFingerprint = null;
+		sContext = null;
+	}
+
+	/**
+	 * @return fingerprint of the CA of the cached context, null if there is none
+	 */
+	public static synchronized String getFingerprint() {
+		return sFingerprint;
+	}
+
+	/**
+	 * @return number of contexts built so far
+	 */
+	public static synchronized int getBuilds() {
+		return sBuilds;
+	}
+
+	private static X509Certificate parseCertificate(String pem) throws CertificateException {
+		CertificateFactory cf = CertificateFactory.getInstance("X.509");
+		try {
+			return (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(pem.trim().getBytes("US-ASCII")));
+		} catch (IOException e) {
+			throw new CertificateException(e);
+		}
+	}
+
+	private static String fingerprint(X509Certificate certificate) throws CertificateException, NoSuchAlgorithmException {
+		byte[] digest = MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+		StringBuilder hex = new StringBuilder(digest.length * 2);
+		for (byte b : digest)
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return hex.toString();
+	}
+
+	private static SSLContext buildContext(X509Certificate ca) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException, KeyManagementException {
+		// Create a KeyStore containing our trusted CAs
+		KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		keyStore.load(null, null);
+		keyStore.setCertificateEntry("provider_ca_certificate", ca);
+
+		// Create a TrustManager that trusts the CAs in our KeyStore
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(keyStore);
+
+		// Create an SSLContext that uses our TrustManager
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, tmf.getTrustManagers(), null);
+		return context;
+	}
+}
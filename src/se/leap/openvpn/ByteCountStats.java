@@ -0,0 +1,102 @@
+package se.leap.openvpn;
+
+/**
+ * Traffic counters of the running session as reported by >BYTECOUNT.
+ *
+ * Only primitive values are kept, formatting for the UI is done by the
+ * static helpers when a view actually renders the numbers.
+ */
+public class ByteCountStats {
+
+	private long mIn = 0;
+	private long mOut = 0;
+	// Bytes per second since the previous update
+	private long mRateIn = 0;
+	private long mRateOut = 0;
+	private long mLastUpdate = 0;
+
+	/**
+	 * Records new absolute counters.
+	 * @param now time of the update in milliseconds
+	 */
+	public void update(long in, long out, long now) {
+		long diffin = in - mIn;
+		long diffout = out - mOut;
+		if (diffin < 0 || diffout < 0) {
+			// Counters of a new session
+			diffin = in;
+			diffout = out;
+		}
+
+		long elapsed = now - mLastUpdate;
+		if (mLastUpdate == 0 || elapsed <= 0) {
+			mRateIn = diffin;
+			mRateOut = diffout;
+		} else {
+			mRateIn = diffin * 1000 / elapsed;
+			mRateOut = diffout * 1000 / elapsed;
+		}
+
+		mIn = in;
+		mOut = out;
+		mLastUpdate = now;
+	}
+
+	public void copyTo(ByteCountStats other) {
+		other.mIn = mIn;
+		other.mOut = mOut;
+		other.mRateIn = mRateIn;
+		other.mRateOut = mRateOut;
+		other.mLastUpdate = mLastUpdate;
+	}
+
+	public void reset() {
+		mIn = mOut = mRateIn = mRateOut = mLastUpdate = 0;
+	}
+
+	public boolean hasData() {
+		return mLastUpdate != 0;
+	}
+
+	public long getIn() {
+		return mIn;
+	}
+
+	public long getOut() {
+		return mOut;
+	}
+
+	public long getRateIn() {
+		return mRateIn;
+	}
+
+	public long getRateOut() {
+		return mRateOut;
+	}
+
+	public long getLastUpdate() {
+		return mLastUpdate;
+	}
+
+	public static String formatNetstat(long in, long out, long ratein, long rateout) {
+		return String.format("In: %8s, %8s/s  Out %8s, %8s/s",
+				humanReadableByteCount(in, false),
+				humanReadableByteCount(ratein, false),
+				humanReadableByteCount(out, false),
+				humanReadableByteCount(rateout, false));
+	}
+
+	// From: http://stackoverflow.com/questions/3758606/how-to-convert-byte-size-into-human-readable-format-in-java
+	public static String humanReadableByteCount(long bytes, boolean si) {
+		int unit = si ? 1000 : 1024;
+		if (bytes < unit) return bytes + " B";
+		int exp = 0;
+		long scaled = bytes;
+		while (scaled >= unit) {
+			scaled /= unit;
+			exp++;
+		}
+		String pre = (si ? "kMGTPE" : "KMGTPE").charAt(exp-1) + (si ? "" : "i");
+		return String.format("%.1f %sB", bytes / Math.pow(unit, exp), pre);
+	}
+}
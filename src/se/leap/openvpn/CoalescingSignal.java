@@ -0,0 +1,55 @@
+package se.leap.openvpn;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns any number of wakeups from a producer into at most one pending
+ * drain on the consumer side.
+ *
+ * The producer calls signal() for every new item. Only the first signal
+ * after a drain started schedules a new drain, one frame later so a burst
+ * ends up in a single drain. The consumer calls beginDrain() before it
+ * reads, items arriving during the drain schedule the next one.
+ */
+public class CoalescingSignal {
+
+	public interface Scheduler {
+		/** Runs the drain on the consumer thread after delay ms */
+		void schedule(long delay);
+	}
+
+	private final Scheduler mScheduler;
+	private final long mDelay;
+	private final AtomicBoolean mPending = new AtomicBoolean(false);
+	private final AtomicLong mScheduled = new AtomicLong(0);
+
+	/**
+	 * @param delay ms between the first signal and the drain, e.g. one frame
+	 */
+	public CoalescingSignal(Scheduler scheduler, long delay) {
+		mScheduler = scheduler;
+		mDelay = delay;
+	}
+
+	public void signal() {
+		if (mPending.compareAndSet(false, true)) {
+			mScheduled.incrementAndGet();
+			mScheduler.schedule(mDelay);
+		}
+	}
+
+	/**
+	 * Called by the consumer right before it drains.
+	 */
+	public void beginDrain() {
+		mPending.set(false);
+	}
+
+	/**
+	 * @return number of drains scheduled so far
+	 */
+	public long getScheduled() {
+		return mScheduled.get();
+	}
+}
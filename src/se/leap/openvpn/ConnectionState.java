@@ -0,0 +1,59 @@
+package se.leap.openvpn;
+
+import se.leap.bitmaskclient.R;
+
+/**
+ * States of the OpenVPN connection. The names of the states OpenVPN reports
+ * in >STATE lines match the constants, the rest are set by the app.
+ */
+public enum ConnectionState {
+	CONNECTING(R.string.state_connecting),
+	WAIT(R.string.state_wait),
+	AUTH(R.string.state_auth),
+	GET_CONFIG(R.string.state_get_config),
+	ASSIGN_IP(R.string.state_assign_ip),
+	ADD_ROUTES(R.string.state_add_routes),
+	CONNECTED(R.string.state_connected),
+	RECONNECTING(R.string.state_reconnecting),
+	EXITING(R.string.state_exiting),
+	RESOLVE(R.string.state_resolve),
+	TCP_CONNECT(R.string.state_tcp_connect),
+	FATAL(R.string.eip_state_not_connected),
+	NOPROCESS(R.string.state_noprocess),
+	NONETWORK(R.string.state_nonetwork),
+	AUTH_FAILED(R.string.state_auth_failed),
+	UNKNOWN(R.string.unknown_state);
+
+	private static final ConnectionState[] VALUES = values();
+
+	private final int mResid;
+
+	private ConnectionState(int resid) {
+		mResid = resid;
+	}
+
+	/**
+	 * @return localized description of the state
+	 */
+	public int getResId() {
+		return mResid;
+	}
+
+	/**
+	 * Looks up the state named by line[start,end) without creating a substring.
+	 * @return the state or UNKNOWN
+	 */
+	public static ConnectionState parse(String line, int start, int end) {
+		int length = end - start;
+		for (ConnectionState state : VALUES) {
+			String name = state.name();
+			if (name.length() == length && line.regionMatches(start, name, 0, length))
+				return state;
+		}
+		return UNKNOWN;
+	}
+
+	public static ConnectionState parse(String name) {
+		return parse(name, 0, name.length());
+	}
+}
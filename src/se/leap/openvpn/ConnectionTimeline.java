@@ -0,0 +1,128 @@
+package se.leap.openvpn;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records when a connection attempt passes through the OpenVPN states
+ * (RESOLVE, TCP_CONNECT, WAIT, AUTH, GET_CONFIG, ASSIGN_IP, ADD_ROUTES,
+ * CONNECTED) and how long NEED-OK callbacks and openTun() take.
+ *
+ * Time spent in each phase is kept per gateway across sessions, so
+ * percentiles show whether TLS auth, config pull or tun setup dominate
+ * the time to connected.
+ */
+public class ConnectionTimeline {
+
+	public static final String TIME_TO_CONNECTED = "TIME_TO_CONNECTED";
+
+	private static final int MAX_EVENTS = 64;
+
+	// Phase durations, keyed by "gateway phase", shared by all sessions
+	private static final ConcurrentHashMap<String, LatencyHistogram> sPhases =
+			new ConcurrentHashMap<String, LatencyHistogram>();
+
+	private final String mGateway;
+
+	private boolean mInAttempt = false;
+	private long mAttemptStart = 0;
+	private String mState = null;
+	private long mStateSince = 0;
+
+	// Events of the current attempt
+	private final String[] mEventNames = new String[MAX_EVENTS];
+	private final long[] mEventTimes = new long[MAX_EVENTS];
+	private final long[] mEventDurations = new long[MAX_EVENTS];
+	private int mEvents = 0;
+
+	public ConnectionTimeline(String gateway) {
+		mGateway = gateway;
+	}
+
+	/**
+	 * Starts a new connection attempt, e.g. when the hold is released.
+	 */
+	public synchronized void startAttempt(long now) {
+		mInAttempt = true;
+		mAttemptStart = now;
+		mState = null;
+		mEvents = 0;
+	}
+
+	/**
+	 * Records a state transition. The time spent in the previous state is
+	 * added to its phase histogram.
+	 */
+	public synchronized void state(String state, long now) {
+		if (!mInAttempt)
+			startAttempt(now);
+
+		if (mState != null)
+			getPhaseLatency(mGateway, mState).record(now - mStateSince);
+		addEvent(state, now, -1);
+
+		if ("CONNECTED".equals(state)) {
+			getPhaseLatency(mGateway, TIME_TO_CONNECTED).record(now - mAttemptStart);
+			// Time spent connected is not a connect phase
+			mState = null;
+		} else if ("RECONNECTING".equals(state) || "EXITING".equals(state) || "FATAL".equals(state)) {
+			mState = null;
+			mInAttempt = false;
+		} else {
+			mState = state;
+			mStateSince = now;
+		}
+	}
+
+	/**
+	 * Records a callback like NEED-OK handling or openTun().
+	 */
+	public synchronized void callback(String name, long start, long end) {
+		if (!mInAttempt)
+			startAttempt(start);
+		getPhaseLatency(mGateway, name).record(end - start);
+		addEvent(name, start, end - start);
+	}
+
+	/**
+	 * @return the events of the current attempt relative to its start
+	 */
+	public synchronized String getBreakdown() {
+		StringBuilder sb = new StringBuilder(mGateway);
+		for (int i = 0; i < mEvents; i++) {
+			sb.append(String.format(Locale.ENGLISH, ", %s +%dms", mEventNames[i], mEventTimes[i] - mAttemptStart));
+			if (mEventDurations[i] >= 0)
+				sb.append(String.format(Locale.ENGLISH, " (%dms)", mEventDurations[i]));
+		}
+		return sb.toString();
+	}
+
+	public static LatencyHistogram getPhaseLatency(String gateway, String phase) {
+		String key = gateway + " " + phase;
+		LatencyHistogram histogram = sPhases.get(key);
+		if (histogram == null) {
+			sPhases.putIfAbsent(key, new LatencyHistogram());
+			histogram = sPhases.get(key);
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return phase histograms keyed by "gateway phase", sorted
+	 */
+	public static Map<String, LatencyHistogram> getPhaseLatencies() {
+		return Collections.unmodifiableMap(new TreeMap<String, LatencyHistogram>(sPhases));
+	}
+
+	private void addEvent(String name, long time, long duration) {
+		if (mEvents == MAX_EVENTS)
+			return;
+		mEventNames[mEvents] = name;
+		mEventTimes[mEvents] = time;
+		mEventDurations[mEvents] = duration;
+		mEvents++;
+	}
+}
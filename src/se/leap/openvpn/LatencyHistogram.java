@@ -0,0 +1,86 @@
+package se.leap.openvpn;
+
+import java.util.Locale;
+
+/**
+ * Histogram of durations in milliseconds with power of two buckets.
+ *
+ * Bucket i holds values below 2^i ms, the last bucket everything above.
+ * Percentiles are reported as the upper bound of their bucket, which is
+ * precise enough to tell a 50 ms step from a 2 s step.
+ */
+public class LatencyHistogram {
+
+	// 2^16 ms is a bit more than a minute
+	private static final int BUCKETS = 18;
+
+	private final long[] mCounts = new long[BUCKETS];
+	private long mCount = 0;
+	private long mSum = 0;
+	private long mMax = 0;
+
+	public synchronized void record(long millis) {
+		if (millis < 0)
+			millis = 0;
+		mCounts[bucketFor(millis)]++;
+		mCount++;
+		mSum += millis;
+		if (millis > mMax)
+			mMax = millis;
+	}
+
+	public synchronized long getCount() {
+		return mCount;
+	}
+
+	public synchronized long getMax() {
+		return mMax;
+	}
+
+	public synchronized long getMean() {
+		return mCount == 0 ? 0 : mSum / mCount;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return upper bound in ms of the bucket containing the percentile, 0 if empty
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if (mCount == 0)
+			return 0;
+		long rank = (long) Math.ceil(mCount * percentile / 100.0);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += mCounts[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i), mMax);
+		}
+		return mMax;
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			mCounts[i] = 0;
+		mCount = mSum = mMax = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(Locale.ENGLISH, "n=%d mean=%dms p50=%dms p90=%dms p99=%dms max=%dms",
+				mCount, getMean(), getPercentile(50), getPercentile(90), getPercentile(99), mMax);
+	}
+
+	private static int bucketFor(long millis) {
+		// Number of significant bits, 0 ms lands in bucket 0
+		int bits = 64 - Long.numberOfLeadingZeros(millis);
+		return Math.min(bits, BUCKETS - 1);
+	}
+
+	private static long upperBound(int bucket) {
+		if (bucket == BUCKETS - 1)
+			return Long.MAX_VALUE;
+		return (1L << bucket) - 1;
+	}
+}
@@ -0,0 +1,117 @@
+package se.leap.openvpn;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.zip.GZIPOutputStream;
+
+import se.leap.openvpn.OpenVPN.LogItem;
+import se.leap.openvpn.OpenVPN.LogListener;
+
+import android.content.Context;
+
+/**
+ * Writes the log to a file line by line, optionally gzip compressed.
+ *
+ * Items are formatted one at a time into a reused buffer, so memory use
+ * does not depend on the size of the log.
+ */
+public class LogExporter implements LogListener {
+
+	private final Writer mOut;
+	private final Context mContext;
+	private final StringBuilder mLine = new StringBuilder(256);
+	private final Calendar mCalendar = Calendar.getInstance();
+	private IOException mError;
+	private int mLines = 0;
+
+	/**
+	 * @param context renders resource items, may be null
+	 */
+	public LogExporter(OutputStream out, Context context) {
+		mOut = new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")), 8192);
+		mContext = context;
+	}
+
+	/**
+	 * Exports the whole log of OpenVPN into dir.
+	 * @return the written file, ending in .txt or .txt.gz
+	 */
+	public static File export(Context context, File dir, boolean gzip) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create " + dir);
+		File file = new File(dir, gzip ? "openvpn-log.txt.gz" : "openvpn-log.txt");
+		OutputStream out = new FileOutputStream(file);
+		if (gzip)
+			out = new GZIPOutputStream(out);
+		LogExporter exporter = new LogExporter(out, context);
+		try {
+			OpenVPN.readLog(exporter);
+		} finally {
+			exporter.close();
+		}
+		return file;
+	}
+
+	@Override
+	public void newLog(LogItem item) {
+		if (mError != null)
+			return;
+		mLine.setLength(0);
+		mCalendar.setTimeInMillis(item.getTime());
+		appendTwoDigits(mCalendar.get(Calendar.YEAR) % 100);
+		mLine.append('-');
+		appendTwoDigits(mCalendar.get(Calendar.MONTH) + 1);
+		mLine.append('-');
+		appendTwoDigits(mCalendar.get(Calendar.DAY_OF_MONTH));
+		mLine.append(' ');
+		appendTwoDigits(mCalendar.get(Calendar.HOUR_OF_DAY));
+		mLine.append(':');
+		appendTwoDigits(mCalendar.get(Calendar.MINUTE));
+		mLine.append(':');
+		appendTwoDigits(mCalendar.get(Calendar.SECOND));
+		mLine.append(' ');
+		mLine.append(item.getString(mContext));
+		mLine.append('\n');
+		try {
+			mOut.append(mLine);
+			mLines++;
+		} catch (IOException e) {
+			mError = e;
+		}
+	}
+
+	/**
+	 * @return lines written so far
+	 */
+	public int getLines() {
+		return mLines;
+	}
+
+	/**
+	 * Flushes and closes the output.
+	 * @throws IOException the first error while writing
+	 */
+	public void close() throws IOException {
+		try {
+			mOut.close();
+		} catch (IOException e) {
+			if (mError == null)
+				mError = e;
+		}
+		if (mError != null)
+			throw mError;
+	}
+
+	private void appendTwoDigits(int value) {
+		if (value < 10)
+			mLine.append('0');
+		mLine.append(value);
+	}
+}
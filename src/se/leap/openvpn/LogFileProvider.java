@@ -0,0 +1,99 @@
+package se.leap.openvpn;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+/**
+ * Hands exported log files to the app the log is shared with. Files are
+ * only readable through a URI this app granted permission for.
+ */
+public class LogFileProvider extends ContentProvider {
+
+	public static final String AUTHORITY = "se.leap.bitmaskclient.logs";
+
+	public static File getLogDir(Context context) {
+		return new File(context.getCacheDir(), "logs");
+	}
+
+	public static Uri getUri(File file) {
+		return new Uri.Builder().scheme("content").authority(AUTHORITY).appendPath(file.getName()).build();
+	}
+
+	@Override
+	public boolean onCreate() {
+		return true;
+	}
+
+	@Override
+	public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+		if (!"r".equals(mode))
+			throw new FileNotFoundException("Log files are read only");
+		return ParcelFileDescriptor.open(getFile(uri), ParcelFileDescriptor.MODE_READ_ONLY);
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		File file;
+		try {
+			file = getFile(uri);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		if (projection == null)
+			projection = new String[] { OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE };
+
+		Object[] row = new Object[projection.length];
+		for (int i = 0; i < projection.length; i++) {
+			if (OpenableColumns.DISPLAY_NAME.equals(projection[i]))
+				row[i] = file.getName();
+			else if (OpenableColumns.SIZE.equals(projection[i]))
+				row[i] = file.length();
+		}
+		MatrixCursor cursor = new MatrixCursor(projection, 1);
+		cursor.addRow(row);
+		return cursor;
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		String name = uri.getLastPathSegment();
+		if (name != null && name.endsWith(".gz"))
+			return "application/gzip";
+		return "text/plain";
+	}
+
+	private File getFile(Uri uri) throws FileNotFoundException {
+		String name = uri.getLastPathSegment();
+		// Only plain names inside the log dir
+		if (name == null || name.startsWith(".") || name.indexOf('/') != -1)
+			throw new FileNotFoundException(uri.toString());
+		File file = new File(getLogDir(getContext()), name);
+		if (!file.isFile())
+			throw new FileNotFoundException(uri.toString());
+		return file;
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues values) {
+		throw new UnsupportedOperationException("Log files are read only");
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException("Log files are read only");
+	}
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException("Log files are read only");
+	}
+}
@@ -0,0 +1,313 @@
+package se.leap.openvpn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import se.leap.openvpn.OpenVPN.LogItem;
+import se.leap.openvpn.OpenVPN.LogListener;
+
+import android.util.Log;
+
+/**
+ * Append only log journal in two memory mapped segment files, the current
+ * one and the one before it.
+ *
+ * Items are stored as level, time, resource id and arguments instead of
+ * formatted strings. Appending is a copy into the mapping, the kernel
+ * writes the pages back, so the journal survives the process being killed.
+ *
+ * Segment layout: magic, resource version, then records of
+ *   int length | byte level | long time | int resid | byte hasMessage |
+ *   [string message] | byte argc | args
+ * A zero length follows the last record and the length of a record is
+ * written last, so a record that was cut off by process death reads as the
+ * end of the segment. So does a record that can't be decoded.
+ */
+public class LogJournal implements LogListener {
+
+	private static final String TAG = "se.leap.openvpn.LogJournal";
+
+	private static final int MAGIC = 0x4c4f4731; // LOG1
+	private static final int HEADER = 8;
+	private static final int MAX_STRING = 4096;
+
+	private static final byte ARG_STRING = 0;
+	private static final byte ARG_INT = 1;
+	private static final byte ARG_LONG = 2;
+
+	private final File mCurrent;
+	private final File mPrevious;
+	private final int mSegmentSize;
+	private final int mResourceVersion;
+
+	private MappedByteBuffer mMap;
+	// Records are built here first, then copied into the mapping
+	private final ByteBuffer mRecord;
+
+	/**
+	 * @param dir directory of the segment files
+	 * @param segmentSize bytes per segment, the journal uses up to twice that
+	 * @param resourceVersion changes when resource ids may change, e.g. the
+	 * version code. Resource items of another version are restored as plain text.
+	 */
+	public LogJournal(File dir, int segmentSize, int resourceVersion) {
+		mCurrent = new File(dir, "openvpn-log.0");
+		mPrevious = new File(dir, "openvpn-log.1");
+		mSegmentSize = segmentSize;
+		mResourceVersion = resourceVersion;
+		mRecord = ByteBuffer.allocate(Math.min(segmentSize - HEADER - 8, 64 * 1024));
+	}
+
+	/**
+	 * Reads the stored items and opens the journal for appending.
+	 * @return stored items, oldest first
+	 */
+	public synchronized List<LogItem> open() throws IOException {
+		final ArrayList<LogItem> items = new ArrayList<LogItem>();
+		LogListener collect = new LogListener() {
+			@Override
+			public void newLog(LogItem item) {
+				items.add(item);
+			}
+		};
+		readSegment(mapForReading(mPrevious), collect);
+		int end = readSegment(mapForReading(mCurrent), collect);
+
+		mMap = map(mCurrent);
+		if (end < HEADER || mMap.getInt(0) != MAGIC || mMap.getInt(4) != mResourceVersion) {
+			// New or from another version, keep it as previous and start fresh
+			rotate();
+		} else {
+			// Appending overwrites whatever could not be read
+			mMap.position(end);
+			mMap.putInt(end, 0);
+		}
+		return items;
+	}
+
+	@Override
+	public void newLog(LogItem item) {
+		// Items reach the journal after they were logged, skip what was
+		// cleared meanwhile
+		if (!item.mRestored && item.mSequence >= OpenVPN.getLogStart())
+			append(item);
+	}
+
+	public synchronized void append(LogItem item) {
+		if (mMap == null)
+			return;
+		mRecord.clear();
+		try {
+			encode(item, mRecord);
+		} catch (BufferOverflowException e) {
+			// Larger than a segment, not worth keeping
+			return;
+		}
+		mRecord.flip();
+		try {
+			// 4 bytes for the length, 4 more keep a zero length as end marker
+			if (mMap.remaining() < mRecord.limit() + 8)
+				rotate();
+
+			int start = mMap.position();
+			mMap.position(start + 4);
+			mMap.put(mRecord);
+			mMap.putInt(mMap.position(), 0);
+			mMap.putInt(start, mRecord.limit());
+		} catch (IOException e) {
+			Log.w(TAG, "Could not rotate log journal", e);
+			mMap = null;
+		}
+	}
+
+	/**
+	 * Drops every stored item, e.g. when the user cleared the log.
+	 */
+	public synchronized void clear() {
+		if (mMap == null)
+			return;
+		try {
+			rotate();
+			mPrevious.delete();
+		} catch (IOException e) {
+			Log.w(TAG, "Could not clear log journal", e);
+			mMap = null;
+		}
+	}
+
+	private void rotate() throws IOException {
+		mPrevious.delete();
+		if (mCurrent.exists() && !mCurrent.renameTo(mPrevious))
+			mCurrent.delete();
+		mMap = map(mCurrent);
+		mMap.putInt(0, MAGIC);
+		mMap.putInt(4, mResourceVersion);
+		mMap.position(HEADER);
+	}
+
+	private MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// A new file is zero filled, which reads as the end of the journal
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+		} finally {
+			// The mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Hands every stored item to visitor, oldest first, one at a time. Appends
+	 * are only blocked while the segments are looked up, not while reading.
+	 */
+	public void read(LogListener visitor) {
+		ByteBuffer previous;
+		ByteBuffer current = null;
+		synchronized (this) {
+			previous = mapForReading(mPrevious);
+			if (mMap != null) {
+				// Stays valid when the journal rotates meanwhile
+				current = mMap.duplicate();
+				current.limit(mMap.position());
+				current.position(0);
+			}
+		}
+		readSegment(previous, visitor);
+		readSegment(current, visitor);
+	}
+
+	private ByteBuffer mapForReading(File file) {
+		if (!file.exists() || file.length() < HEADER)
+			return null;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not read log journal " + file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return position after the last record that could be read, -1 if
+	 * segment isn't one
+	 */
+	private int readSegment(ByteBuffer segment, LogListener visitor) {
+		if (segment == null || segment.getInt() != MAGIC)
+			return -1;
+		boolean sameResources = segment.getInt() == mResourceVersion;
+		int end = segment.position();
+		while (segment.remaining() >= 4) {
+			int length = segment.getInt();
+			if (length <= 0 || length > segment.remaining())
+				break;
+			ByteBuffer record = segment.slice();
+			record.limit(length);
+			LogItem item = decode(record, sameResources);
+			if (item == null)
+				break;
+			segment.position(segment.position() + length);
+			end = segment.position();
+			visitor.newLog(item);
+		}
+		return end;
+	}
+
+	static void encode(LogItem item, ByteBuffer out) {
+		out.put((byte) item.mLevel);
+		out.putLong(item.mTime);
+		out.putInt(item.mRessourceId);
+		if (item.mMessage != null) {
+			out.put((byte) 1);
+			putString(out, item.mMessage);
+		} else {
+			out.put((byte) 0);
+		}
+		Object[] args = item.mArgs;
+		int argc = args == null ? 0 : Math.min(args.length, 127);
+		out.put((byte) argc);
+		for (int i = 0; i < argc; i++) {
+			Object arg = args[i];
+			if (arg instanceof Integer) {
+				out.put(ARG_INT);
+				out.putInt((Integer) arg);
+			} else if (arg instanceof Long) {
+				out.put(ARG_LONG);
+				out.putLong((Long) arg);
+			} else {
+				out.put(ARG_STRING);
+				putString(out, String.valueOf(arg));
+			}
+		}
+	}
+
+	/**
+	 * @return null if in doesn't hold a record
+	 */
+	static LogItem decode(ByteBuffer in, boolean sameResources) {
+		try {
+			int level = in.get();
+			long time = in.getLong();
+			int resid = in.getInt();
+			String message = in.get() == 1 ? getString(in) : null;
+			int argc = in.get();
+			if (argc < 0)
+				return null;
+			Object[] args = argc == 0 ? null : new Object[argc];
+			for (int i = 0; i < argc; i++) {
+				byte type = in.get();
+				if (type == ARG_INT)
+					args[i] = in.getInt();
+				else if (type == ARG_LONG)
+					args[i] = in.getLong();
+				else
+					args[i] = getString(in);
+			}
+			LogItem item = new LogItem(level, time, resid, message, args);
+			if (message == null && !sameResources) {
+				// The resource id may point to another string by now
+				item = new LogItem(level, time, 0, item.getString(null), null);
+			}
+			item.mRestored = true;
+			return item;
+		} catch (RuntimeException e) {
+			// Cut off or overwritten, e.g. an unknown format in the arguments
+			return null;
+		}
+	}
+
+	private static void putString(ByteBuffer out, String s) {
+		byte[] bytes;
+		try {
+			bytes = s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		int length = Math.min(bytes.length, MAX_STRING);
+		out.putShort((short) length);
+		out.put(bytes, 0, length);
+	}
+
+	private static String getString(ByteBuffer in) {
+		int length = in.getShort() & 0xffff;
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package se.leap.openvpn;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import se.leap.openvpn.OpenVPN.LogItem;
+import se.leap.openvpn.OpenVPN.LogListener;
+
+/**
+ * Fixed size log buffer for any number of producers, without locks.
+ *
+ * Every entry gets a sequence number. A producer claims the next number,
+ * stamps it into the item and publishes the item into slot seq % capacity,
+ * overwriting the entry that is capacity entries older. Readers check the
+ * stamp to tell a published entry from an overwritten or not yet published
+ * one.
+ *
+ * Listeners do not run on the producer thread. A dispatcher thread hands
+ * new entries to every listener from the listener's own cursor, a listener
+ * that falls more than capacity entries behind skips the lost entries.
+ */
+public class LogRingBuffer {
+
+	private final int mMask;
+	private final AtomicReferenceArray<LogItem> mSlots;
+	private final AtomicLong mNext = new AtomicLong(0);
+
+	private static class Consumer {
+		final LogListener mListener;
+		// Only touched by the dispatcher thread
+		long mCursor;
+
+		Consumer(LogListener listener, long cursor) {
+			mListener = listener;
+			mCursor = cursor;
+		}
+	}
+
+	private final CopyOnWriteArrayList<Consumer> mConsumers = new CopyOnWriteArrayList<Consumer>();
+	private final AtomicLong mDropped = new AtomicLong(0);
+	private volatile Thread mDispatcher;
+	private volatile boolean mDispatcherWaiting = false;
+
+	// Entries handed to a listener in one go
+	private static final int DISPATCH_BATCH = 64;
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	public LogRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mMask = size - 1;
+		mSlots = new AtomicReferenceArray<LogItem>(size);
+	}
+
+	public int getCapacity() {
+		return mMask + 1;
+	}
+
+	/**
+	 * Appends an item. Never blocks.
+	 * @return sequence number of the item
+	 */
+	public long add(LogItem item) {
+		long seq = mNext.getAndIncrement();
+		item.mSequence = seq;
+		int index = (int) (seq & mMask);
+		while (true) {
+			LogItem current = mSlots.get(index);
+			// A producer that lapped us already owns the slot
+			if (current != null && current.mSequence > seq)
+				break;
+			if (mSlots.compareAndSet(index, current, item))
+				break;
+		}
+		if (mDispatcherWaiting)
+			LockSupport.unpark(mDispatcher);
+		return seq;
+	}
+
+	/**
+	 * @return sequence number the next item will get
+	 */
+	public long getNextSequence() {
+		return mNext.get();
+	}
+
+	/**
+	 * @return sequence number of the oldest entry that may still be in the buffer
+	 */
+	public long getOldestSequence() {
+		return Math.max(0, mNext.get() - getCapacity());
+	}
+
+	/**
+	 * @return the entry with this sequence number, null if it was overwritten
+	 * or is not published yet
+	 */
+	public LogItem get(long seq) {
+		LogItem item = mSlots.get((int) (seq & mMask));
+		if (item == null || item.mSequence != seq)
+			return null;
+		return item;
+	}
+
+	/**
+	 * Copies published entries starting at sequence number from into out.
+	 * Overwritten entries are skipped, reading stops at the first entry that
+	 * is not published yet.
+	 * @return cursor to continue reading from
+	 */
+	public long read(long from, List<LogItem> out, int max) {
+		long cursor = Math.max(from, getOldestSequence());
+		long end = mNext.get();
+		int added = 0;
+		while (cursor < end && added < max) {
+			LogItem item = mSlots.get((int) (cursor & mMask));
+			if (item == null || item.mSequence < cursor)
+				break;
+			if (item.mSequence > cursor) {
+				// Lapped while reading, continue with the oldest entry
+				cursor = getOldestSequence();
+				continue;
+			}
+			out.add(item);
+			added++;
+			cursor++;
+		}
+		return cursor;
+	}
+
+	/**
+	 * Registers a listener that gets all entries added from now on.
+	 */
+	public void addListener(LogListener listener) {
+		addListener(listener, mNext.get());
+	}
+
+	/**
+	 * Registers a listener that gets all entries from sequence number cursor on,
+	 * e.g. the cursor returned by the read() that filled its initial view.
+	 */
+	public void addListener(LogListener listener, long cursor) {
+		mConsumers.add(new Consumer(listener, cursor));
+		startDispatcher();
+	}
+
+	public void removeListener(LogListener listener) {
+		for (Consumer c : mConsumers)
+			if (c.mListener == listener)
+				mConsumers.remove(c);
+	}
+
+	/**
+	 * @return entries a listener fell behind on and never got
+	 */
+	public long getDropped() {
+		return mDropped.get();
+	}
+
+	private synchronized void startDispatcher() {
+		if (mDispatcher != null)
+			return;
+		Thread dispatcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, "OpenVPNLogDispatch");
+		dispatcher.setDaemon(true);
+		mDispatcher = dispatcher;
+		dispatcher.start();
+	}
+
+	private void dispatch() {
+		LogItem[] batch = new LogItem[DISPATCH_BATCH];
+		while (true) {
+			boolean delivered = false;
+			for (Consumer c : mConsumers)
+				delivered |= deliver(c, batch);
+			if (delivered)
+				continue;
+
+			// Producers unpark us after publishing while this flag is set
+			mDispatcherWaiting = true;
+			if (!hasPending())
+				LockSupport.park(this);
+			mDispatcherWaiting = false;
+		}
+	}
+
+	private boolean deliver(Consumer c, LogItem[] batch) {
+		int n = 0;
+		long cursor = c.mCursor;
+		long oldest = getOldestSequence();
+		if (cursor < oldest) {
+			mDropped.addAndGet(oldest - cursor);
+			cursor = oldest;
+		}
+		while (n < batch.length) {
+			LogItem item = get(cursor);
+			if (item == null)
+				break;
+			batch[n++] = item;
+			cursor++;
+		}
+		c.mCursor = cursor;
+		for (int i = 0; i < n; i++) {
+			c.mListener.newLog(batch[i]);
+			batch[i] = null;
+		}
+		return n > 0;
+	}
+
+	private boolean hasPending() {
+		for (Consumer c : mConsumers) {
+			if (c.mCursor < getOldestSequence() || get(c.mCursor) != null)
+				return true;
+		}
+		return false;
+	}
+}
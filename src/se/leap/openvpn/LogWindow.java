@@ -1,5 +1,8 @@
 package se.leap.openvpn;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Vector;
 
 import se.leap.bitmaskclient.R;
@@ -14,10 +17,13 @@ import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
 import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Handler.Callback;
 import android.os.Message;
+import android.preference.PreferenceManager;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -29,14 +35,23 @@ import android.widget.ListAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
+import se.leap.openvpn.OpenVPN.ByteCountListener;
 import se.leap.openvpn.OpenVPN.LogItem;
 import se.leap.openvpn.OpenVPN.LogListener;
 import se.leap.openvpn.OpenVPN.StateListener;
 
-public class LogWindow extends ListActivity implements StateListener  {
+public class LogWindow extends ListActivity implements StateListener, ByteCountListener  {
 	private static final int START_VPN_CONFIG = 0;
 	private String[] mBconfig=null;
 
+	// Rendered entries and the cursor behind them outlive the window, reopening
+	// it only reads what was logged in between. Only used on the UI thread.
+	private static final Vector<String> sEntries = new Vector<String>();
+	private static long sLogCursor = 0;
+	// Log start and level the entries were read with
+	private static long sLogStart = -1;
+	private static int sLogLevel = -1;
+
 
 	class LogWindowListAdapter implements ListAdapter, LogListener, Callback {
 
@@ -44,12 +59,16 @@ public class LogWindow extends ListActivity implements StateListener  {
 
 		private static final int MESSAGE_CLEARLOG = 1;
 
-		private Vector<String> myEntries=new Vector<String>();
+		private Vector<String> myEntries=sEntries;
 
 		private Handler mHandler;
 
 		private Vector<DataSetObserver> observers=new Vector<DataSetObserver>();
 
+		// At most one MESSAGE_NEWLOG is pending, it drains everything new
+		private CoalescingSignal mNewLogSignal;
+		private static final long NEWLOG_FRAME_MS = 16;
+
 
 		public LogWindowListAdapter() {
 			initLogBuffer();
@@ -57,34 +76,87 @@ public class LogWindow extends ListActivity implements StateListener  {
 			if (mHandler == null) {
 				mHandler = new Handler(this);
 			}
+			mNewLogSignal = new CoalescingSignal(new CoalescingSignal.Scheduler() {
+				@Override
+				public void schedule(long delay) {
+					mHandler.sendEmptyMessageDelayed(MESSAGE_NEWLOG, delay);
+				}
+			}, NEWLOG_FRAME_MS);
 
-			OpenVPN.addLogListener(this);
+			OpenVPN.addLogListener(this, sLogCursor);
 		}
 
 
 
+		/**
+		 * Keeps the entries of an earlier window unless the log was cleared
+		 * or the level changed since.
+		 */
 		private void initLogBuffer() {
+			if (sLogStart != OpenVPN.getLogStart() || sLogLevel != OpenVPN.getLogLevel())
+				resetLogBuffer();
+			else
+				appendNewEntries();
+		}
+
+		private void resetLogBuffer() {
 			myEntries.clear();
-			for (LogItem litem : OpenVPN.getlogbuffer()) {
-				myEntries.add(litem.getString(getContext()));				
-			}
+			sLogCursor = 0;
+			sLogStart = OpenVPN.getLogStart();
+			sLogLevel = OpenVPN.getLogLevel();
+			appendNewEntries();
 		}
 
-		String getLogStr() {
-			String str = "";
-			for(String entry:myEntries) {
-				str+=entry + '\n';
+		/**
+		 * @return true if entries were added
+		 */
+		private boolean appendNewEntries() {
+			ArrayList<LogItem> items = new ArrayList<LogItem>();
+			sLogCursor = OpenVPN.getLogSince(sLogCursor, items);
+			int level = OpenVPN.getLogLevel();
+			int before = myEntries.size();
+			// Entries render once and keep their string
+			for (LogItem litem : items) {
+				if (litem.getLevel() <= level)
+					myEntries.add(litem.getString(getContext()));				
 			}
-			return str;
+			boolean added = myEntries.size() != before;
+			// No more than a fresh read would show, trimmed in bulk
+			int capacity = OpenVPN.getLogCapacity();
+			if (myEntries.size() > 2 * capacity)
+				myEntries.subList(0, myEntries.size() - capacity).clear();
+			return added;
 		}
 
-
 		private void shareLog() {
-			Intent shareIntent = new Intent(Intent.ACTION_SEND);
-			shareIntent.putExtra(Intent.EXTRA_TEXT, getLogStr());
-			shareIntent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.bitmask_openvpn_log_file));
-			shareIntent.setType("text/plain");
-			startActivity(Intent.createChooser(shareIntent, "Send Logfile"));
+			// The log is streamed to a file off the UI thread and shared as a
+			// content URI, a large log does not fit into an Intent extra
+			new AsyncTask<Void, Void, File>() {
+				@Override
+				protected File doInBackground(Void... params) {
+					try {
+						// Plain text opens in every mail app
+						return LogExporter.export(getApplicationContext(),
+								LogFileProvider.getLogDir(getApplicationContext()), false);
+					} catch (IOException e) {
+						OpenVPN.logError("Could not export log: " + e.getLocalizedMessage());
+						return null;
+					}
+				}
+
+				@Override
+				protected void onPostExecute(File log) {
+					if (log == null)
+						return;
+					Uri uri = LogFileProvider.getUri(log);
+					Intent shareIntent = new Intent(Intent.ACTION_SEND);
+					shareIntent.putExtra(Intent.EXTRA_STREAM, uri);
+					shareIntent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.bitmask_openvpn_log_file));
+					shareIntent.setType(getContentResolver().getType(uri));
+					shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+					startActivity(Intent.createChooser(shareIntent, "Send Logfile"));
+				}
+			}.execute();
 		}
 
 		@Override
@@ -157,27 +229,25 @@ public class LogWindow extends ListActivity implements StateListener  {
 
 		@Override
 		public void newLog(LogItem logmessage) {
-			Message msg = Message.obtain();
-			msg.what=MESSAGE_NEWLOG;
-			Bundle mbundle=new Bundle();
-			mbundle.putString("logmessage", logmessage.getString(getBaseContext()));
-			msg.setData(mbundle);
-			mHandler.sendMessage(msg);
+			// Filtered on the log thread, the UI never sees these
+			if (logmessage.getLevel() > OpenVPN.getLogLevel())
+				return;
+			// Only a wakeup, the UI thread reads the entries from its cursor
+			mNewLogSignal.signal();
 		}
 
 		@Override
 		public boolean handleMessage(Message msg) {
 			// We have been called
 			if(msg.what==MESSAGE_NEWLOG) {
-
-				String logmessage = msg.getData().getString("logmessage");
-				myEntries.add(logmessage);
-
-				for (DataSetObserver observer : observers) {
-					observer.onChanged();
+				mNewLogSignal.beginDrain();
+				if (appendNewEntries()) {
+					for (DataSetObserver observer : observers) {
+						observer.onChanged();
+					}
 				}
 			} else if (msg.what == MESSAGE_CLEARLOG) {
-				initLogBuffer();
+				resetLogBuffer();
 				for (DataSetObserver observer : observers) {
 					observer.onInvalidated();
 				}
@@ -186,6 +256,13 @@ public class LogWindow extends ListActivity implements StateListener  {
 			return true;
 		}
 
+		/**
+		 * Shows the entries of the current log level again.
+		 */
+		void refilter() {
+			mHandler.sendEmptyMessage(MESSAGE_CLEARLOG);
+		}
+
 		void clearLog() {
 			// Actually is probably called from GUI Thread as result of the user 
 			// pressing a button. But better safe than sorry
@@ -227,12 +304,40 @@ public class LogWindow extends ListActivity implements StateListener  {
 
 		} else if(item.getItemId()==R.id.send) {
 			ladapter.shareLog();
+		} else if(item.getItemId()==R.id.loglevel) {
+			showLogLevelDialog();
+			return true;
+		} else if(item.getItemId()==R.id.bytecount) {
+			// The service reads it when the next connection starts
+			boolean display = !item.isChecked();
+			PreferenceManager.getDefaultSharedPreferences(this).edit()
+			.putBoolean(OpenVpnService.DISPLAY_BYTECOUNT_PREF, display).commit();
+			item.setChecked(display);
+			return true;
 		}
 
 		return super.onOptionsItemSelected(item);
 
 	}
 
+	private void showLogLevelDialog() {
+		Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle(R.string.log_level);
+		// The array follows the LogItem levels, which start at 1
+		builder.setSingleChoiceItems(R.array.log_levels, OpenVPN.getLogLevel() - 1, new OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				int level = which + 1;
+				PreferenceManager.getDefaultSharedPreferences(LogWindow.this).edit()
+				.putInt(OpenVPN.LOGLEVEL_PREF, level).commit();
+				OpenVPN.setLogLevel(level);
+				ladapter.refilter();
+				dialog.dismiss();
+			}
+		});
+		builder.show();
+	}
+
 	protected Context getContext() {
 		return this;
 	}
@@ -241,6 +346,8 @@ public class LogWindow extends ListActivity implements StateListener  {
 	public boolean onCreateOptionsMenu(Menu menu) {
 		MenuInflater inflater = getMenuInflater();
 		inflater.inflate(R.menu.logmenu, menu);
+		menu.findItem(R.id.bytecount).setChecked(PreferenceManager.getDefaultSharedPreferences(this)
+				.getBoolean(OpenVpnService.DISPLAY_BYTECOUNT_PREF, false));
 		return true;
 	}
 
@@ -249,6 +356,14 @@ public class LogWindow extends ListActivity implements StateListener  {
 	protected void onResume() {
 		super.onResume();
 		OpenVPN.addStateListener(this);
+		OpenVPN.addByteCountListener(this);
+		OpenVpnManagementThread.setViewVisible(true);
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		OpenVpnManagementThread.setViewVisible(false);
 	}
 
 	@Override
@@ -287,6 +402,7 @@ public class LogWindow extends ListActivity implements StateListener  {
 	protected void onStop() {
 		super.onStop();
 		OpenVPN.removeStateListener(this);
+		OpenVPN.removeByteCountListener(this);
 	}
 
 	@Override
@@ -317,13 +433,13 @@ public class LogWindow extends ListActivity implements StateListener  {
 	}
 
 	@Override
-	public void updateState(final String status,final String logmessage, final int resid) {
+	public void updateState(final ConnectionState state, final String logmessage) {
 		runOnUiThread(new Runnable() {
 
 			@Override
 			public void run() {
-				String prefix=getString(resid) + ":";
-				if (status.equals("BYTECOUNT") || status.equals("NOPROCESS") )
+				String prefix=getString(state.getResId()) + ":";
+				if (state == ConnectionState.NOPROCESS)
 					prefix="";
 				mSpeedView.setText(prefix + logmessage);
 			}
@@ -331,6 +447,12 @@ public class LogWindow extends ListActivity implements StateListener  {
 
 	}
 
+	@Override
+	public void updateByteCount(long in, long out, long ratein, long rateout) {
+		// Already called on the UI thread
+		mSpeedView.setText(ByteCountStats.formatNetstat(in, out, ratein, rateout));
+	}
+
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
@@ -0,0 +1,322 @@
+package se.leap.openvpn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single writer for commands to the OpenVPN management interface.
+ *
+ * Any thread may queue commands, only the writer thread touches the socket.
+ * Commands queued together are written with a single write() call, so
+ * commands from different threads can never interleave. Every command
+ * expects exactly one SUCCESS: or ERROR: line as reply, replies are matched
+ * to commands in the order the commands were written.
+ *
+ * The round trip time from queueing a command to its reply is kept per
+ * command verb (hold, needok, signal, ...) for the lifetime of the process.
+ */
+public class ManagementCommandChannel implements Runnable {
+
+	public interface FileDescriptorSender {
+		/** Attaches fds to the next write on the socket, null stops attaching */
+		void setFileDescriptorsForSend(FileDescriptor[] fds);
+	}
+
+	/**
+	 * A queued command. Completes when OpenVPN replied, or with a null
+	 * reply if the channel closed before that.
+	 */
+	public static class Command implements Future<String> {
+		private final String mCommand;
+		private final FileDescriptor[] mFds;
+		private final CountDownLatch mWritten = new CountDownLatch(1);
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		private final long mQueuedAt = System.nanoTime();
+		private volatile String mReply;
+		private volatile boolean mSuccess = false;
+		private volatile long mRoundTrip = -1;
+
+		Command(String command, FileDescriptor[] fds) {
+			mCommand = command;
+			mFds = fds;
+		}
+
+		/**
+		 * @return first word of the command, e.g. "needok" or "signal"
+		 */
+		public String getVerb() {
+			int end = 0;
+			while (end < mCommand.length() && !Character.isWhitespace(mCommand.charAt(end)))
+				end++;
+			return mCommand.substring(0, end);
+		}
+
+		/**
+		 * @return ms from queueing the command until its reply, -1 without reply
+		 */
+		public long getRoundTrip() {
+			return mRoundTrip;
+		}
+
+		public String getCommand() {
+			return mCommand;
+		}
+
+		void written() {
+			mWritten.countDown();
+		}
+
+		void complete(String reply, boolean success) {
+			mReply = reply;
+			mSuccess = success;
+			// A failed command is never written, release waiters anyway
+			mWritten.countDown();
+			mDone.countDown();
+		}
+
+		/**
+		 * @return true if OpenVPN answered with SUCCESS:
+		 */
+		public boolean isSuccess() {
+			return mSuccess;
+		}
+
+		/**
+		 * Waits until the command has been handed to the socket.
+		 * @return false on timeout
+		 */
+		public boolean awaitWritten(long timeout, TimeUnit unit) throws InterruptedException {
+			return mWritten.await(timeout, unit);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			// Commands cannot be taken back once queued
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return mDone.getCount() == 0;
+		}
+
+		@Override
+		public String get() throws InterruptedException {
+			mDone.await();
+			return mReply;
+		}
+
+		@Override
+		public String get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+			if (!mDone.await(timeout, unit))
+				throw new TimeoutException("No reply for " + mCommand.trim());
+			return mReply;
+		}
+	}
+
+	private final OutputStream mOut;
+	private final FileDescriptorSender mFdSender;
+
+	private final ConcurrentLinkedQueue<Command> mOutgoing = new ConcurrentLinkedQueue<Command>();
+	private final ConcurrentLinkedQueue<Command> mAwaitingReply = new ConcurrentLinkedQueue<Command>();
+
+	// Only used by the writer thread
+	private final ByteArrayOutputStream mBatch = new ByteArrayOutputStream(1024);
+	private final ArrayList<Command> mBatchCommands = new ArrayList<Command>();
+
+	// Round trip times per command verb, shared by all sessions
+	private static final ConcurrentHashMap<String, LatencyHistogram> sLatencies =
+			new ConcurrentHashMap<String, LatencyHistogram>();
+
+	private volatile Thread mWriterThread;
+	private volatile boolean mClosed = false;
+
+	public ManagementCommandChannel(OutputStream out, FileDescriptorSender fdSender) {
+		mOut = out;
+		mFdSender = fdSender;
+	}
+
+	/**
+	 * Returns a command that already failed, for callers without a channel.
+	 */
+	public static Command failed(String command) {
+		Command c = new Command(command, null);
+		c.complete(null, false);
+		return c;
+	}
+
+	public Command send(String command) {
+		return send(command, null);
+	}
+
+	/**
+	 * Queues a command whose write carries fds as ancillary data.
+	 */
+	public Command send(String command, FileDescriptor[] fds) {
+		Command c = new Command(command, fds);
+		enqueue(c);
+		wakeWriter();
+		return c;
+	}
+
+	/**
+	 * Queues several commands that will be written together.
+	 */
+	public Command[] send(String... commands) {
+		Command[] queued = new Command[commands.length];
+		for (int i = 0; i < commands.length; i++) {
+			queued[i] = new Command(commands[i], null);
+			enqueue(queued[i]);
+		}
+		wakeWriter();
+		return queued;
+	}
+
+	/**
+	 * Hands a SUCCESS: or ERROR: line from the reader to the oldest written command.
+	 * @return the completed command or null if no command was waiting
+	 */
+	public Command processReply(String line, boolean success) {
+		Command c = mAwaitingReply.poll();
+		if (c != null) {
+			c.mRoundTrip = (System.nanoTime() - c.mQueuedAt) / 1000000;
+			getLatency(c.getVerb()).record(c.mRoundTrip);
+			c.complete(line, success);
+		}
+		return c;
+	}
+
+	/**
+	 * @return round trip histogram of a command verb, created on first use
+	 */
+	public static LatencyHistogram getLatency(String verb) {
+		LatencyHistogram histogram = sLatencies.get(verb);
+		if (histogram == null) {
+			sLatencies.putIfAbsent(verb, new LatencyHistogram());
+			histogram = sLatencies.get(verb);
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return all round trip histograms sorted by verb
+	 */
+	public static Map<String, LatencyHistogram> getLatencies() {
+		return Collections.unmodifiableMap(new TreeMap<String, LatencyHistogram>(sLatencies));
+	}
+
+	/**
+	 * Stops the writer and fails all commands that did not get a reply.
+	 */
+	public void close() {
+		mClosed = true;
+		wakeWriter();
+		failAll(mOutgoing);
+		failAll(mAwaitingReply);
+	}
+
+	@Override
+	public void run() {
+		mWriterThread = Thread.currentThread();
+		try {
+			while (!mClosed) {
+				if (mOutgoing.isEmpty()) {
+					LockSupport.park(this);
+					continue;
+				}
+				writeBatch();
+			}
+		} catch (IOException e) {
+			// Socket closed, the reader notices as well
+		} finally {
+			mClosed = true;
+			failAll(mOutgoing);
+			failAll(mAwaitingReply);
+		}
+	}
+
+	private void enqueue(Command c) {
+		mOutgoing.add(c);
+		// close() might have drained the queue just before the add
+		if (mClosed)
+			failAll(mOutgoing);
+	}
+
+	private void wakeWriter() {
+		Thread writer = mWriterThread;
+		if (writer != null)
+			LockSupport.unpark(writer);
+	}
+
+	private void writeBatch() throws IOException {
+		mBatch.reset();
+		mBatchCommands.clear();
+
+		Command c;
+		while ((c = mOutgoing.peek()) != null) {
+			// A command with fds gets a write of its own, the fds stick to that write
+			if (c.mFds != null && !mBatchCommands.isEmpty())
+				break;
+
+			mOutgoing.poll();
+			// Register before writing, the reply may arrive before write() returns
+			mAwaitingReply.add(c);
+			mBatch.write(encode(c.mCommand));
+			mBatchCommands.add(c);
+
+			if (c.mFds != null)
+				break;
+		}
+
+		Command first = mBatchCommands.get(0);
+		if (first.mFds != null) {
+			mFdSender.setFileDescriptorsForSend(first.mFds);
+			try {
+				mBatch.writeTo(mOut);
+				mOut.flush();
+			} finally {
+				// The socket would otherwise attach the fds to every following write
+				mFdSender.setFileDescriptorsForSend(null);
+			}
+		} else {
+			mBatch.writeTo(mOut);
+			mOut.flush();
+		}
+
+		for (Command written : mBatchCommands)
+			written.written();
+	}
+
+	private static byte[] encode(String command) {
+		try {
+			return command.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void failAll(ConcurrentLinkedQueue<Command> queue) {
+		Command c;
+		while ((c = queue.poll()) != null)
+			c.complete(null, false);
+	}
+}
@@ -0,0 +1,129 @@
+package se.leap.openvpn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Splits the byte stream of the OpenVPN management interface into lines.
+ *
+ * Bytes are read directly into a reusable buffer and scanned in place for '\n'.
+ * Only completed lines are decoded to Strings, partial lines stay in the buffer
+ * until the rest arrives. A trailing '\r' is stripped.
+ *
+ * Not thread safe, meant to be owned by the management reader thread.
+ */
+public class ManagementLineFramer {
+
+	public interface LineHandler {
+		void processLine(String line);
+	}
+
+	private static final int DEFAULT_BUFFER_SIZE = 2048;
+
+	private byte[] mBuffer;
+	// Start of the first unprocessed line
+	private int mStart = 0;
+	// End of valid data
+	private int mEnd = 0;
+	// Everything before this offset has already been scanned for newlines
+	private int mScanned = 0;
+
+	public ManagementLineFramer() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+
+	public ManagementLineFramer(int initialSize) {
+		mBuffer = new byte[initialSize];
+	}
+
+	/**
+	 * Reads once from the stream into the free space of the buffer.
+	 * @return number of bytes read or -1 at end of stream
+	 */
+	public int read(InputStream in) throws IOException {
+		ensureSpace();
+		int numbytesread = in.read(mBuffer, mEnd, mBuffer.length - mEnd);
+		if(numbytesread > 0)
+			mEnd += numbytesread;
+		return numbytesread;
+	}
+
+	/**
+	 * Appends bytes that were read elsewhere.
+	 */
+	public void feed(byte[] data, int offset, int length) {
+		while(length > 0) {
+			ensureSpace();
+			int chunk = Math.min(length, mBuffer.length - mEnd);
+			System.arraycopy(data, offset, mBuffer, mEnd, chunk);
+			mEnd += chunk;
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+
+	/**
+	 * Hands every completed line to the handler, keeps the incomplete rest.
+	 * @return number of lines processed
+	 */
+	public int drainLines(LineHandler handler) {
+		int lines = 0;
+		for(int i = mScanned; i < mEnd; i++) {
+			if(mBuffer[i] != '\n')
+				continue;
+
+			int lineEnd = i;
+			if(lineEnd > mStart && mBuffer[lineEnd-1] == '\r')
+				lineEnd--;
+
+			String line = decode(mStart, lineEnd - mStart);
+			// Consume the line before calling out, so a throwing handler does not replay it
+			mStart = i + 1;
+			lines++;
+			handler.processLine(line);
+		}
+		mScanned = mEnd;
+
+		if(mStart == mEnd) {
+			mStart = mEnd = mScanned = 0;
+		}
+		return lines;
+	}
+
+	/**
+	 * @return number of buffered bytes that do not form a complete line yet
+	 */
+	public int pending() {
+		return mEnd - mStart;
+	}
+
+	private String decode(int offset, int length) {
+		try {
+			// '\n' never occurs inside a multibyte UTF-8 sequence, so a complete line is always decodable
+			return new String(mBuffer, offset, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void ensureSpace() {
+		if(mEnd < mBuffer.length)
+			return;
+
+		if(mStart > 0) {
+			// Move the partial line to the front
+			int pending = mEnd - mStart;
+			System.arraycopy(mBuffer, mStart, mBuffer, 0, pending);
+			mScanned -= mStart;
+			mEnd = pending;
+			mStart = 0;
+		} else {
+			// A single line larger than the buffer
+			byte[] newBuffer = new byte[mBuffer.length * 2];
+			System.arraycopy(mBuffer, 0, newBuffer, 0, mEnd);
+			mBuffer = newBuffer;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package se.leap.openvpn;
+
+/**
+ * Decides when the status notification is really posted.
+ *
+ * Content equal to what is already shown is dropped. Different content is
+ * posted at most once per interval, updates in between only replace the
+ * pending content and the last one is posted when the interval is over.
+ * A connection flapping between RECONNECTING, WAIT and AUTH this way costs
+ * one post per interval instead of one per state. The last state before the
+ * service stops goes through updateNow(), nothing scheduled would post it.
+ *
+ * Not thread safe, all calls come from the main thread.
+ */
+public class NotificationRenderer {
+
+	public interface Target {
+		void post(int icon, String text, String ticker, boolean ongoing);
+
+		void cancel();
+	}
+
+	private static class Content {
+		int mIcon;
+		String mText;
+		String mTicker;
+		boolean mOngoing;
+
+		void set(int icon, String text, String ticker, boolean ongoing) {
+			mIcon = icon;
+			mText = text;
+			mTicker = ticker;
+			mOngoing = ongoing;
+		}
+
+		boolean sameAs(Content other) {
+			return mIcon == other.mIcon && mOngoing == other.mOngoing
+					&& equals(mText, other.mText) && equals(mTicker, other.mTicker);
+		}
+
+		private static boolean equals(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+	private final Target mTarget;
+	private final CoalescingSignal.Scheduler mScheduler;
+	private final long mInterval;
+
+	private final Content mPosted = new Content();
+	private final Content mWanted = new Content();
+	private boolean mVisible = false;
+	private boolean mPending = false;
+	private boolean mScheduled = false;
+	private long mLastPost;
+
+	private int mPosts = 0;
+	private int mDropped = 0;
+
+	/**
+	 * @param scheduler calls flush() on the main thread after the delay
+	 * @param interval minimum ms between two posts
+	 */
+	public NotificationRenderer(Target target, CoalescingSignal.Scheduler scheduler, long interval) {
+		mTarget = target;
+		mScheduler = scheduler;
+		mInterval = interval;
+	}
+
+	public void update(int icon, String text, String ticker, boolean ongoing, long now) {
+		mWanted.set(icon, text, ticker, ongoing);
+		if (mVisible && mWanted.sameAs(mPosted)) {
+			// Also drops content still waiting for the interval
+			if (mPending)
+				mDropped++;
+			mPending = false;
+			mDropped++;
+			return;
+		}
+		if (mPending)
+			mDropped++;
+		mPending = true;
+		postOrSchedule(now);
+	}
+
+	/**
+	 * Like update(), but different content is posted right away even inside
+	 * the interval.
+	 */
+	public void updateNow(int icon, String text, String ticker, boolean ongoing, long now) {
+		update(icon, text, ticker, ongoing, now);
+		if (mPending)
+			post(now);
+	}
+
+	/**
+	 * Posts the pending content if the interval is over.
+	 */
+	public void flush(long now) {
+		mScheduled = false;
+		if (mPending)
+			postOrSchedule(now);
+	}
+
+	/**
+	 * Removes the notification right away, pending content is dropped.
+	 */
+	public void cancel() {
+		mPending = false;
+		if (mVisible) {
+			mVisible = false;
+			mTarget.cancel();
+		}
+	}
+
+	private void postOrSchedule(long now) {
+		long wait = mPosts == 0 ? 0 : mLastPost + mInterval - now;
+		if (wait <= 0) {
+			post(now);
+		} else if (!mScheduled) {
+			mScheduled = true;
+			mScheduler.schedule(wait);
+		}
+	}
+
+	private void post(long now) {
+		mTarget.post(mWanted.mIcon, mWanted.mText, mWanted.mTicker, mWanted.mOngoing);
+		mPosted.set(mWanted.mIcon, mWanted.mText, mWanted.mTicker, mWanted.mOngoing);
+		mVisible = true;
+		mPending = false;
+		mLastPost = now;
+		mPosts++;
+	}
+
+	/**
+	 * @return number of notifications actually posted
+	 */
+	public int getPosts() {
+		return mPosts;
+	}
+
+	/**
+	 * @return number of updates that never got posted
+	 */
+	public int getDropped() {
+		return mDropped;
+	}
+}
@@ -1,36 +1,57 @@
 package se.leap.openvpn;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import se.leap.bitmaskclient.R;
 
 
 import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 public class OpenVPN {
 
 
-	public static LinkedList<LogItem> logbuffer;
+	private static final int MAXLOGENTRIES = 512;
 
-	private static Vector<LogListener> logListener;
-	private static Vector<StateListener> stateListener;
-	private static String[] mBconfig;
+	private static final LogRingBuffer logbuffer = new LogRingBuffer(MAXLOGENTRIES);
+	// Entries before this sequence number were cleared by the user
+	private static volatile long mLogStart = 0;
+
+	private static volatile LogJournal mLogJournal;
+	private static final AtomicBoolean mLogJournalRequested = new AtomicBoolean(false);
 
-	private static String mLaststatemsg;
+	// Most verbose level that is logged, more verbose lines are not even created
+	private static volatile int mLogLevel = LogItem.VERBOSE;
+	public static final String LOGLEVEL_PREF = "loglevel";
+	private static final int LOG_JOURNAL_SEGMENT = 256 * 1024;
 
-	private static String mLaststate;
+	private static final StateBus mStateBus = new StateBus();
+	private static Vector<ByteCountListener> byteCountListener;
+	private static String[] mBconfig;
 
-	private static int mLastStateresid=R.string.state_noprocess;
+	// Written by the management thread, read when the coalesced update is dispatched
+	private static final ByteCountStats mByteCount = new ByteCountStats();
+	private static final ByteCountStats mByteCountSnapshot = new ByteCountStats();
+	private static boolean mByteCountPending = false;
+	private static Handler mMainHandler;
+	private static final TrafficHistory mTrafficHistory = new TrafficHistory();
+
+	// Bytecount updates are delivered at most once per UI frame
+	private static final long BYTECOUNT_FRAME_MS = 16;
 	public static String TAG="se.leap.openvpn.OpenVPN";
 
 	static {
-		logbuffer  = new LinkedList<LogItem>();
-		logListener = new Vector<OpenVPN.LogListener>();
-		stateListener = new Vector<OpenVPN.StateListener>();
+		byteCountListener = new Vector<OpenVPN.ByteCountListener>();
 		logInformation();
 	}
 
@@ -39,11 +60,18 @@ public class OpenVPN {
 		public static final int INFO = 2;
 		public static final int VERBOSE = 3;
 
-		private Object [] mArgs = null;
-		private String mMessage = null;
-		private int mRessourceId;
+		Object [] mArgs = null;
+		String mMessage = null;
+		int mRessourceId;
 		// Default log priority
 		int mLevel = INFO;
+		long mTime = System.currentTimeMillis();
+		// Read back from the journal of an earlier run
+		boolean mRestored = false;
+		// Position in the log, set when the item is added
+		long mSequence = -1;
+		// Rendered once, the log window shows the same items again and again
+		private String mRendered;
 
 		public LogItem(int ressourceId, Object[] args) {
 			mRessourceId = ressourceId;
@@ -74,16 +102,41 @@ public class OpenVPN {
 			mLevel = loglevel;
 		}
 
+		LogItem(int loglevel, long time, int ressourceId, String message, Object[] args) {
+			mLevel = loglevel;
+			mTime = time;
+			mRessourceId = ressourceId;
+			mMessage = message;
+			mArgs = args;
+		}
+
+		public long getTime() {
+			return mTime;
+		}
+
+
+		public long getSequence() {
+			return mSequence;
+		}
+
+		public int getLevel() {
+			return mLevel;
+		}
 
 		public String getString(Context c) {
 			if(mMessage !=null) {
 				return mMessage;
 			} else {
 				if(c!=null) {
-					if(mArgs == null)
-						return c.getString(mRessourceId);
-					else
-						return c.getString(mRessourceId,mArgs);
+					String rendered = mRendered;
+					if(rendered == null) {
+						if(mArgs == null)
+							rendered = c.getString(mRessourceId);
+						else
+							rendered = c.getString(mRessourceId,mArgs);
+						mRendered = rendered;
+					}
+					return rendered;
 				} else {
 					String str = String.format(Locale.ENGLISH,"Log (no context) resid %d", mRessourceId);
 					if(mArgs !=null)
@@ -95,9 +148,6 @@ public class OpenVPN {
 		}
 	}
 
-	private static final int MAXLOGENTRIES = 500;
-
-
 	public static final String MANAGMENT_PREFIX = "M:";
 
 
@@ -105,86 +155,303 @@ public class OpenVPN {
 
 
 
+	/**
+	 * Called on the log dispatch thread, never on the thread that logged.
+	 */
 	public interface LogListener {
 		void newLog(LogItem logItem);
 	}
 
+	/**
+	 * Called on the executor the listener was registered with.
+	 */
 	public interface StateListener {
-		void updateState(String state, String logmessage, int localizedResId);
+		void updateState(ConnectionState state, String logmessage);
+	}
+
+	/**
+	 * Called on the main thread with the traffic counters of the session and the
+	 * rates in bytes per second. Updates are coalesced, ticks may be skipped.
+	 */
+	public interface ByteCountListener {
+		void updateByteCount(long in, long out, long ratein, long rateout);
+	}
+
+	/**
+	 * Logs a line OpenVPN sent with its own time and level.
+	 */
+	static void logMessage(int level, long time, String message) {
+		if (level > mLogLevel)
+			return;
+		newlogItem(new LogItem(level, time, 0, message, null));
+	}
+
+	/**
+	 * @param level LogItem.ERROR, INFO or VERBOSE
+	 */
+	public static void setLogLevel(int level) {
+		mLogLevel = level;
 	}
 
-	synchronized static void logMessage(int level,String prefix, String message)
+	public static int getLogLevel() {
+		return mLogLevel;
+	}
+
+	/**
+	 * Lets producers skip building lines nobody wants.
+	 */
+	public static boolean isLoggable(int level) {
+		return level <= mLogLevel;
+	}
+
+	static void logMessage(int level,String prefix, String message)
 	{
 		newlogItem(new LogItem(prefix +  message));
 		Log.d("OpenVPN log item", message);
 	}
 
-	synchronized static void clearLog() {
-		logbuffer.clear();
+	/**
+	 * @return sequence number of the first entry the user did not clear
+	 */
+	public static long getLogStart() {
+		return mLogStart;
+	}
+
+	/**
+	 * @return entries the log keeps, older ones drop out
+	 */
+	public static int getLogCapacity() {
+		return MAXLOGENTRIES;
+	}
+
+	static void clearLog() {
+		mLogStart = logbuffer.getNextSequence();
+		// Cleared lines are not exported or restored either
+		LogJournal journal = mLogJournal;
+		if (journal != null)
+			journal.clear();
 		logInformation();
 	}
 
+	/**
+	 * Restores the log of earlier runs from the journal in the files dir and
+	 * keeps writing new entries to it. Only the first call has an effect.
+	 */
+	public static synchronized void openLogJournal(Context c) {
+		if (mLogJournal != null)
+			return;
+		int version = 0;
+		try {
+			version = c.getPackageManager().getPackageInfo(c.getPackageName(), 0).versionCode;
+		} catch (NameNotFoundException e) {
+			// Only stored resource ids depend on it
+		}
+		LogJournal journal = new LogJournal(c.getFilesDir(), LOG_JOURNAL_SEGMENT, version);
+		List<LogItem> previous;
+		try {
+			previous = journal.open();
+		} catch (IOException e) {
+			Log.w(TAG, "Could not open log journal", e);
+			return;
+		}
+		mLogJournal = journal;
+
+		// What this run logged so far goes to the journal first
+		ArrayList<LogItem> current = new ArrayList<LogItem>();
+		long cursor = logbuffer.read(0, current, logbuffer.getCapacity());
+		for (LogItem item : current)
+			journal.append(item);
+
+		// The buffer only appends, so what this run logged so far stays
+		// first. The restored entries are framed as the earlier block they are.
+		int skip = Math.max(0, previous.size() - MAXLOGENTRIES / 2);
+		if (skip < previous.size()) {
+			logbuffer.add(restoredMarker(R.string.log_restored, previous.get(skip).mTime));
+			for (LogItem item : previous.subList(skip, previous.size()))
+				logbuffer.add(item);
+			logbuffer.add(restoredMarker(R.string.log_restored_end, previous.get(previous.size() - 1).mTime));
+		}
+
+		// The journal skips restored entries
+		logbuffer.addListener(journal, cursor);
+	}
+
+	/**
+	 * Opens the journal on a worker thread, it maps and decodes the files of
+	 * the last run. Callers on the UI thread never wait for it.
+	 */
+	public static void openLogJournalInBackground(Context c) {
+		if (!mLogJournalRequested.compareAndSet(false, true))
+			return;
+		final Context context = c.getApplicationContext();
+		new Thread("OpenVPN log journal") {
+			@Override
+			public void run() {
+				openLogJournal(context);
+			}
+		}.start();
+	}
+
+	private static LogItem restoredMarker(int ressourceId, long time) {
+		LogItem marker = new LogItem(LogItem.INFO, time, ressourceId, null, null);
+		// Not journaled, it is written again on the next restore
+		marker.mRestored = true;
+		return marker;
+	}
+
 	private static void logInformation() {
 
 		logInfo(R.string.mobile_info,Build.MODEL, Build.BOARD,Build.BRAND,Build.VERSION.SDK_INT);
 	}
 
-	public synchronized static void addLogListener(LogListener ll){
-		logListener.add(ll);
+	public static void addLogListener(LogListener ll){
+		logbuffer.addListener(ll);
 	}
 
-	public synchronized static void removeLogListener(LogListener ll) {
-		logListener.remove(ll);
+	/**
+	 * Registers a listener that gets every entry from sequence number cursor on,
+	 * so nothing is lost or seen twice after getLogSince().
+	 */
+	public static void addLogListener(LogListener ll, long cursor){
+		logbuffer.addListener(ll, cursor);
+	}
+
+	public static void removeLogListener(LogListener ll) {
+		logbuffer.removeListener(ll);
 	}
 
 
-	public synchronized static void addStateListener(StateListener sl){
-		stateListener.add(sl);
-		if(mLaststate!=null)
-			sl.updateState(mLaststate, mLaststatemsg, mLastStateresid);
-	}	
+	/**
+	 * Registers a listener that gets states on the main thread, starting with
+	 * the last state.
+	 */
+	public static void addStateListener(StateListener sl){
+		addStateListener(sl, StateBus.mainThread());
+	}
+
+	/**
+	 * Registers a listener that gets states on its own executor.
+	 */
+	public static void addStateListener(StateListener sl, Executor executor){
+		mStateBus.subscribe(sl, executor);
+	}
 
-	private static int getLocalizedState(String state){
-		if (state.equals("CONNECTING")) 
-			return R.string.state_connecting;
-		else if (state.equals("WAIT"))
-			return R.string.state_wait;
-		else if (state.equals("AUTH"))
-			return R.string.state_auth;
-		else if (state.equals("GET_CONFIG"))
-			return R.string.state_get_config;
-		else if (state.equals("ASSIGN_IP"))
-			return R.string.state_assign_ip;
-		else if (state.equals("ADD_ROUTES"))
-			return R.string.state_add_routes;
-		else if (state.equals("CONNECTED"))
-			return R.string.state_connected;
-		else if (state.equals("RECONNECTING"))
-			return R.string.state_reconnecting;
-		else if (state.equals("EXITING"))
-			return R.string.state_exiting;
-		else if (state.equals("RESOLVE"))
-			return R.string.state_resolve;
-		else if (state.equals("TCP_CONNECT"))
-			return R.string.state_tcp_connect;
-		else if (state.equals("FATAL"))
-			return R.string.eip_state_not_connected;
-		else
-			return R.string.unknown_state;
+	public static void removeStateListener(StateListener sl) {
+		mStateBus.unsubscribe(sl);
+	}
+
+	public static void addByteCountListener(ByteCountListener bl) {
+		byteCountListener.add(bl);
+		synchronized (mByteCount) {
+			if (!mByteCount.hasData())
+				return;
+		}
+		scheduleByteCountDispatch();
+	}
+
+	public static void removeByteCountListener(ByteCountListener bl) {
+		byteCountListener.remove(bl);
+	}
+
+	/**
+	 * Stores the counters of a >BYTECOUNT tick. Nothing is formatted here and
+	 * listeners are only woken if somebody is listening.
+	 */
+	static void updateByteCount(long in, long out) {
+		long now = System.currentTimeMillis();
+		synchronized (mByteCount) {
+			mByteCount.update(in, out, now);
+		}
+		mTrafficHistory.add(in, out, now);
+		if (!byteCountListener.isEmpty())
+			scheduleByteCountDispatch();
+	}
 
+	public static void resetByteCount() {
+		synchronized (mByteCount) {
+			mByteCount.reset();
+		}
+		mTrafficHistory.reset();
 	}
 
-	public synchronized static void removeStateListener(StateListener sl) {
-		stateListener.remove(sl);
+	/**
+	 * @return per second and per minute traffic of the current session
+	 */
+	public static TrafficHistory getTrafficHistory() {
+		return mTrafficHistory;
 	}
 
+	private static void scheduleByteCountDispatch() {
+		synchronized (mByteCount) {
+			if (mByteCountPending)
+				return;
+			mByteCountPending = true;
+		}
+		if (mMainHandler == null)
+			mMainHandler = new Handler(Looper.getMainLooper());
+		mMainHandler.postDelayed(mDispatchByteCount, BYTECOUNT_FRAME_MS);
+	}
 
-	synchronized public static LogItem[] getlogbuffer() {
+	private static final Runnable mDispatchByteCount = new Runnable() {
+		@Override
+		public void run() {
+			// Only the main thread touches the snapshot
+			synchronized (mByteCount) {
+				mByteCountPending = false;
+				mByteCount.copyTo(mByteCountSnapshot);
+			}
+			for (ByteCountListener bl : byteCountListener) {
+				bl.updateByteCount(mByteCountSnapshot.getIn(), mByteCountSnapshot.getOut(),
+						mByteCountSnapshot.getRateIn(), mByteCountSnapshot.getRateOut());
+			}
+		}
+	};
+
+
+	/**
+	 * Hands the log since it was last cleared to visitor one item at a time,
+	 * from the journal if it is open, otherwise from memory. Like the log
+	 * window, items above the current log level are left out.
+	 */
+	public static void readLog(final LogListener visitor) {
+		final int level = mLogLevel;
+		LogListener filter = new LogListener() {
+			@Override
+			public void newLog(LogItem item) {
+				if (item.mLevel <= level)
+					visitor.newLog(item);
+			}
+		};
+		LogJournal journal = mLogJournal;
+		if (journal != null) {
+			journal.read(filter);
+		} else {
+			for (LogItem item : getlogbuffer())
+				filter.newLog(item);
+		}
+	}
 
-		// The stoned way of java to return an array from a vector
-		// brought to you by eclipse auto complete
-		return (LogItem[]) logbuffer.toArray(new LogItem[logbuffer.size()]);
+	public static LogItem[] getlogbuffer() {
+		ArrayList<LogItem> items = new ArrayList<LogItem>(MAXLOGENTRIES);
+		getLogSince(0, items);
+		return items.toArray(new LogItem[items.size()]);
+	}
 
+	/**
+	 * Adds the entries from sequence number cursor on to out. Entries that
+	 * were cleared or dropped out of the buffer are skipped.
+	 * @return cursor for the next call
+	 */
+	public static long getLogSince(long cursor, List<LogItem> out) {
+		cursor = Math.max(cursor, mLogStart);
+		long end = logbuffer.getNextSequence();
+		while (cursor < end) {
+			long next = logbuffer.read(cursor, out, MAXLOGENTRIES);
+			if (next == cursor)
+				break;
+			cursor = next;
+		}
+		return cursor;
 	}
 	public static void logBuilderConfig(String[] bconfig) {
 		mBconfig = bconfig;
@@ -200,21 +467,9 @@ public class OpenVPN {
 
 	}
 
-	public static void updateStateString (String state, String msg) {	
-		int rid = getLocalizedState(state);
-		updateStateString(state, msg,rid);
-	}
-
-	public synchronized static void updateStateString(String state, String msg, int resid) {
-		if (! "BYTECOUNT".equals(state)) {
-			mLaststate= state;
-			mLaststatemsg = msg;
-			mLastStateresid = resid;
-
-			for (StateListener sl : stateListener) {
-				sl.updateState(state,msg,resid);
-			}
-		}
+	public static void updateState(ConnectionState state, String msg) {
+		// Queued for every listener, nobody is called on this thread
+		mStateBus.publish(state, msg);
 	}
 
 	public static void logInfo(String message) {
@@ -226,13 +481,7 @@ public class OpenVPN {
 	}
 
 	private static void newlogItem(LogItem logItem) {
-		logbuffer.addLast(logItem);
-		if(logbuffer.size()>MAXLOGENTRIES)
-			logbuffer.removeFirst();
-
-		for (LogListener ll : logListener) {
-			ll.newLog(logItem);
-		}
+		logbuffer.add(logItem);
 	}
 
 	public static void logError(String msg) {
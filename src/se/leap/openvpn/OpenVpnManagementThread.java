@@ -10,8 +10,17 @@ import java.net.SocketAddress;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
+import java.util.ArrayList;
 import java.util.LinkedList;
-import java.util.Vector;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -19,6 +28,7 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
 import se.leap.bitmaskclient.R;
+import se.leap.openvpn.OpenVPN.LogItem;
 import android.content.SharedPreferences;
 import android.net.LocalServerSocket;
 import android.net.LocalSocket;
@@ -28,28 +38,59 @@ import android.preference.PreferenceManager;
 import android.util.Base64;
 import android.util.Log;
 
-public class OpenVpnManagementThread implements Runnable {
+public class OpenVpnManagementThread implements Runnable, ManagementLineFramer.LineHandler {
 
 	private static final String TAG = "openvpn";
-	private LocalSocket mSocket;
+	private volatile LocalSocket mSocket;
+	private volatile ManagementCommandChannel mCommands;
 	private VpnProfile mProfile;
 	private OpenVpnService mOpenVPNService;
 	private LinkedList<FileDescriptor> mFDList=new LinkedList<FileDescriptor>();
-	private int mBytecountinterval=2;
+	private int mBytecountinterval=currentBytecountInterval();
 	private long mLastIn=0; 
 	private long mLastOut=0;
 	private LocalServerSocket mServerSocket;
 	private boolean mReleaseHold=true;
 	private boolean mWaitingForRelease=false;
 	private long mLastHoldRelease=0; 
+	private ScheduledFuture<?> mPendingHoldRelease;
+	private ConnectionTimeline mTimeline;
+	private final CountDownLatch mStopped = new CountDownLatch(1);
+
+	// Minimum time between two hold releases, gives a flapping network time to settle
+	private static final long HOLD_RELEASE_INTERVAL=3000;
+	// Upper bound for waiting on the writer thread
+	private static final long WRITE_TIMEOUT=1000;
+
+	// Delayed hold releases run here, the management reader thread never sleeps
+	private static final ScheduledExecutorService sHoldReleaser =
+			Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "OpenVPNHoldRelease");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	// Running sessions. Copy on write, so stopping and inspecting sessions
+	// iterates a snapshot and never blocks a session registering itself.
+	private static final CopyOnWriteArrayList<OpenVpnManagementThread> active =
+			new CopyOnWriteArrayList<OpenVpnManagementThread>();
 
-	private static Vector<OpenVpnManagementThread> active=new Vector<OpenVpnManagementThread>();
+	// Seconds between >BYTECOUNT messages, 0 turns them off.
+	// The slow background rate still feeds the per minute TrafficHistory.
+	private static int sBytecountForeground=2;
+	private static int sBytecountBackground=60;
+	// Number of resumed views that show live connection details
+	private static int sVisibleViews=0;
 
 	static private native void jniclose(int fdint);
 	static private native byte[] rsasign(byte[] input,int pkey) throws InvalidKeyException;
 
 	public OpenVpnManagementThread(VpnProfile profile, LocalServerSocket mgmtsocket, OpenVpnService openVpnService) {
 		mProfile = profile;
+		mTimeline = new ConnectionTimeline(profile.mName);
 		mServerSocket = mgmtsocket;
 		mOpenVPNService = openVpnService;
 		
@@ -65,25 +106,39 @@ public class OpenVpnManagementThread implements Runnable {
 		System.loadLibrary("opvpnutil");
 	}
 
-	public void managmentCommand(String cmd) {
-		if(mSocket!=null) {
-			try {
-				mSocket.getOutputStream().write(cmd.getBytes());
-				mSocket.getOutputStream().flush();
-			} catch (IOException e) {
-				// Ignore socket stack traces
-			}
+	/**
+	 * Queues a command for the management interface, safe to call from any thread.
+	 * @return the queued command, completes with the SUCCESS:/ERROR: reply of OpenVPN
+	 */
+	public ManagementCommandChannel.Command managmentCommand(String cmd) {
+		ManagementCommandChannel commands = mCommands;
+		if(commands==null)
+			return ManagementCommandChannel.failed(cmd);
+		return commands.send(cmd);
+	}
+
+	/**
+	 * Queues several commands that are written to the socket in one go.
+	 */
+	public ManagementCommandChannel.Command[] managmentCommands(String... cmds) {
+		ManagementCommandChannel commands = mCommands;
+		if(commands==null) {
+			ManagementCommandChannel.Command[] failed = new ManagementCommandChannel.Command[cmds.length];
+			for (int i = 0; i < cmds.length; i++)
+				failed[i] = ManagementCommandChannel.failed(cmds[i]);
+			return failed;
 		}
+		return commands.send(cmds);
 	}
 
 
 	@Override
 	public void run() {
 		Log.i(TAG, "Managment Socket Thread started");
-		byte [] buffer  =new byte[2048];
+		ManagementLineFramer framer = new ManagementLineFramer();
+		OpenVPN.resetByteCount();
 		//	mSocket.setSoTimeout(5); // Setting a timeout cannot be that bad
 
-		String pendingInput="";
 		active.add(this);
 
 		try {
@@ -91,10 +146,19 @@ public class OpenVpnManagementThread implements Runnable {
 			mSocket= mServerSocket.accept();
 			InputStream instream = mSocket.getInputStream();
 
+			mCommands = new ManagementCommandChannel(mSocket.getOutputStream(),
+					new ManagementCommandChannel.FileDescriptorSender() {
+				@Override
+				public void setFileDescriptorsForSend(FileDescriptor[] fds) {
+					mSocket.setFileDescriptorsForSend(fds);
+				}
+			});
+			new Thread(mCommands, "OpenVPNMgmtWriter").start();
+
 			while(true) {
-				int numbytesread = instream.read(buffer);
+				int numbytesread = framer.read(instream);
 				if(numbytesread==-1)
-					return;
+					break;
 
 				FileDescriptor[] fds = null;
 				try {
@@ -111,19 +175,21 @@ public class OpenVpnManagementThread implements Runnable {
 					}
 				}
 
-				String input = new String(buffer,0,numbytesread,"UTF-8");
-
-				pendingInput += input;
-
-				pendingInput=processInput(pendingInput);
-
-
-
+				// fds have to be queued before the lines are processed, PROTECTFD consumes them
+				framer.drainLines(this);
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		cancelHoldRelease();
+		if(mCommands!=null)
+			mCommands.close();
+		for (Map.Entry<String, LatencyHistogram> latency : ManagementCommandChannel.getLatencies().entrySet())
+			Log.i(TAG, "Management round trip " + latency.getKey() + ": " + latency.getValue());
+		for (Map.Entry<String, LatencyHistogram> phase : ConnectionTimeline.getPhaseLatencies().entrySet())
+			Log.i(TAG, "Connect phase " + phase.getKey() + ": " + phase.getValue());
 		active.remove(this);
+		mStopped.countDown();
 	}
 
 	//! Hack O Rama 2000!
@@ -159,91 +225,228 @@ public class OpenVpnManagementThread implements Runnable {
 		}
 	}
 
-	private String processInput(String pendingInput) {
+	@Override
+	public void processLine(String line) {
+		processCommand(line);
+	}
 
 
-		while(pendingInput.contains("\n")) {
-			String[] tokens = pendingInput.split("\\r?\\n", 2);
-			processCommand(tokens[0]);
-			if(tokens.length == 1)
-				// No second part, newline was at the end
-				pendingInput="";
-			else
-				pendingInput=tokens[1];
+	// Real-time messages of the management interface, see lookupMessage()
+	private static final int MSG_UNKNOWN = -1;
+	private static final int MSG_INFO = 0;
+	private static final int MSG_PASSWORD = 1;
+	private static final int MSG_HOLD = 2;
+	private static final int MSG_NEEDOK = 3;
+	private static final int MSG_BYTECOUNT = 4;
+	private static final int MSG_STATE = 5;
+	private static final int MSG_FATAL = 6;
+	private static final int MSG_PROXY = 7;
+	private static final int MSG_LOG = 8;
+	private static final int MSG_RSA_SIGN = 9;
+
+	/**
+	 * Maps the prefix of a ">PREFIX:..." line to its MSG_ constant. Dispatches on the
+	 * first character and verifies the rest in place, no substring is created.
+	 * @param colon index of the first ':' in line
+	 */
+	private static int lookupMessage(String line, int colon) {
+		int len = colon - 1;
+		if (len < 1)
+			return MSG_UNKNOWN;
+
+		switch (line.charAt(1)) {
+		case 'B':
+			return prefixIs(line, len, "BYTECOUNT") ? MSG_BYTECOUNT : MSG_UNKNOWN;
+		case 'F':
+			return prefixIs(line, len, "FATAL") ? MSG_FATAL : MSG_UNKNOWN;
+		case 'H':
+			return prefixIs(line, len, "HOLD") ? MSG_HOLD : MSG_UNKNOWN;
+		case 'I':
+			return prefixIs(line, len, "INFO") ? MSG_INFO : MSG_UNKNOWN;
+		case 'L':
+			return prefixIs(line, len, "LOG") ? MSG_LOG : MSG_UNKNOWN;
+		case 'N':
+			return prefixIs(line, len, "NEED-OK") ? MSG_NEEDOK : MSG_UNKNOWN;
+		case 'P':
+			if (prefixIs(line, len, "PASSWORD"))
+				return MSG_PASSWORD;
+			return prefixIs(line, len, "PROXY") ? MSG_PROXY : MSG_UNKNOWN;
+		case 'R':
+			return prefixIs(line, len, "RSA_SIGN") ? MSG_RSA_SIGN : MSG_UNKNOWN;
+		case 'S':
+			return prefixIs(line, len, "STATE") ? MSG_STATE : MSG_UNKNOWN;
+		default:
+			return MSG_UNKNOWN;
 		}
-		return pendingInput;
 	}
 
+	private static boolean prefixIs(String line, int len, String prefix) {
+		return len == prefix.length() && line.regionMatches(1, prefix, 0, len);
+	}
 
 	private void processCommand(String command) {
 		Log.d(TAG, "processCommand: " + command);
 
-		if (command.startsWith(">") && command.contains(":")) {
-			String[] parts = command.split(":",2);
-			String cmd = parts[0].substring(1);
-			String argument = parts[1];
-			if(cmd.equals("INFO")) {
+		int colon = command.indexOf(':');
+		if (command.startsWith(">") && colon != -1) {
+			// Handlers get the offset of their argument instead of a split copy
+			int argstart = colon + 1;
+			switch (lookupMessage(command, colon)) {
+			case MSG_INFO:
 				// Ignore greeting from mgmt
 				//logStatusMessage(command);
-			}else if (cmd.equals("PASSWORD")) {
-				processPWCommand(argument);
-			} else if (cmd.equals("HOLD")) {
+				break;
+			case MSG_PASSWORD:
+				processPWCommand(command.substring(argstart));
+				break;
+			case MSG_HOLD:
 				handleHold();
-			} else if (cmd.equals("NEED-OK")) {
-				processNeedCommand(argument);
-			} else if (cmd.equals("BYTECOUNT")){
-				processByteCount(argument);
-			} else if (cmd.equals("STATE")) {
-				processState(argument);
-			} else if (cmd.equals("FATAL")){
-				processState(","+cmd+","); 	//handles FATAL as state
-			} else if (cmd.equals("PROXY")) {
-				processProxyCMD(argument);
-			} else if (cmd.equals("LOG")) {
-				String[] args = argument.split(",",3);
-				// 0 unix time stamp
-				// 1 log level N,I,E etc.
-				// 2 log message
-				OpenVPN.logMessage(0, "",  args[2]);
-			} else if (cmd.equals("RSA_SIGN")) {
-				processSignCommand(argument);
-			} else {
+				break;
+			case MSG_NEEDOK:
+				long needstart = System.currentTimeMillis();
+				String needarg = command.substring(argstart);
+				processNeedCommand(needarg);
+				mTimeline.callback("NEED-OK " + needType(needarg), needstart, System.currentTimeMillis());
+				break;
+			case MSG_BYTECOUNT:
+				processByteCount(command, argstart);
+				break;
+			case MSG_STATE:
+				processState(command, argstart);
+				break;
+			case MSG_FATAL:
+				processState(",FATAL,", 0); 	//handles FATAL as state
+				break;
+			case MSG_PROXY:
+				processProxyCMD(command.substring(argstart));
+				break;
+			case MSG_LOG:
+				processLog(command, argstart);
+				break;
+			case MSG_RSA_SIGN:
+				processSignCommand(command.substring(argstart));
+				break;
+			default:
 				OpenVPN.logMessage(0, "MGMT:", "Got unrecognized command" + command);
 				Log.i(TAG, "Got unrecognized command" + command);
 			}
+		} else if (command.startsWith("ERROR:")) {
+			ManagementCommandChannel.Command failed = mCommands.processReply(command, false);
+			String failedcmd = failed != null ? failed.getCommand().trim() : "?";
+			Log.i(TAG, "Management command " + failedcmd + " failed: " + command);
+			OpenVPN.logMessage(0, "MGMT:", failedcmd + ": " + command);
 		} else if (command.startsWith("SUCCESS:")) { //Fixes bug LEAP #4565
+				mCommands.processReply(command, true);
 				if (command.equals("SUCCESS: signal SIGINT thrown")){
 					Log.d(TAG, "SUCCESS: signal SIGINT thrown");
-					processState(",EXITING,SIGINT,,");
+					processState(",EXITING,SIGINT,,", 0);
 				}
 		} else {
 			Log.i(TAG, "Got unrecognized line from managment" + command);
 			OpenVPN.logMessage(0, "MGMT:", "Got unrecognized line from management:" + command);
 		}
 	}
-	private void handleHold() {
+
+	private void processLog(String line, int offset) {
+		//   >LOG:{UNIX TIME},{LEVEL N,I,E etc.},{MESSAGE}
+		int timeend = line.indexOf(',', offset);
+		int levelend = timeend == -1 ? -1 : line.indexOf(',', timeend + 1);
+		if (levelend == -1) {
+			OpenVPN.logMessage(0, "MGMT:", "Could not parse log line: " + line);
+			return;
+		}
+		int level = levelend > timeend + 1 ? logLevel(line.charAt(timeend + 1)) : LogItem.INFO;
+		// Dropped before the message is cut out of the line
+		if (!OpenVPN.isLoggable(level))
+			return;
+		long time;
+		try {
+			time = parseLong(line, offset, timeend) * 1000;
+		} catch (NumberFormatException e) {
+			time = System.currentTimeMillis();
+		}
+		OpenVPN.logMessage(level, time, line.substring(levelend + 1));
+	}
+
+	// I info, F fatal, N non fatal error, W warning, D debug
+	private static int logLevel(char flag) {
+		switch (flag) {
+		case 'F':
+		case 'N':
+			return LogItem.ERROR;
+		case 'D':
+			return LogItem.VERBOSE;
+		default:
+			return LogItem.INFO;
+		}
+	}
+
+	/**
+	 * Parses the decimal number in line[start,end) without creating a substring.
+	 */
+	static long parseLong(String line, int start, int end) {
+		if (start >= end)
+			throw new NumberFormatException("Empty number in: " + line);
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = line.charAt(i) - '0';
+			if (digit < 0 || digit > 9)
+				throw new NumberFormatException("Invalid number in: " + line);
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private synchronized void handleHold() {
 		if(mReleaseHold) {
 			releaseHoldCmd();
 		} else { 
 			mWaitingForRelease=true;
-			OpenVPN.updateStateString("NONETWORK", "",R.string.state_nonetwork);
+			OpenVPN.updateState(ConnectionState.NONETWORK, "");
 		}
 	}
-	private void releaseHoldCmd() {
-		if ((System.currentTimeMillis()- mLastHoldRelease) < 5000) {
-			try {
-				Thread.sleep(3000);
-			} catch (InterruptedException e) {}
-			
+
+	private synchronized void releaseHoldCmd() {
+		long delay = mLastHoldRelease + HOLD_RELEASE_INTERVAL - System.currentTimeMillis();
+		if (delay <= 0) {
+			sendHoldRelease();
+			return;
 		}
+
+		// Too soon after the last release, let the executor release it later
+		mWaitingForRelease=true;
+		if (mPendingHoldRelease != null)
+			return;
+		mPendingHoldRelease = sHoldReleaser.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (OpenVpnManagementThread.this) {
+					mPendingHoldRelease = null;
+					if(mReleaseHold && mWaitingForRelease)
+						sendHoldRelease();
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void sendHoldRelease() {
+		cancelHoldRelease();
 		mWaitingForRelease=false;
 		mLastHoldRelease  = System.currentTimeMillis();
-		managmentCommand("hold release\n");
-		managmentCommand("bytecount " + mBytecountinterval + "\n");
-		managmentCommand("state on\n");
+		mTimeline.startAttempt(mLastHoldRelease);
+		managmentCommands("hold release\n",
+				"bytecount " + mBytecountinterval + "\n",
+				"state on\n");
+	}
+
+	private synchronized void cancelHoldRelease() {
+		if (mPendingHoldRelease != null) {
+			mPendingHoldRelease.cancel(false);
+			mPendingHoldRelease = null;
+		}
 	}
 	
-	public void releaseHold() {
+	public synchronized void releaseHold() {
 		mReleaseHold=true;
 		if(mWaitingForRelease)
 			releaseHoldCmd();
@@ -274,55 +477,61 @@ public class OpenVpnManagementThread implements Runnable {
 		}
 
 	}
-	private void processState(String argument) {
-		String[] args = argument.split(",",3);
-		String currentstate = args[1];
-		if(args[2].equals(",,")){
-			OpenVPN.updateStateString(currentstate,"");
+	private void processState(String line, int offset) {
+		//   >STATE:{UNIX TIME},{STATE},{MESSAGE}...
+		int timeend = line.indexOf(',', offset);
+		int stateend = timeend == -1 ? -1 : line.indexOf(',', timeend + 1);
+		if (stateend == -1) {
+			OpenVPN.logMessage(0, "MGMT:", "Could not parse state line: " + line);
+			return;
+		}
+		// Parsed once here, everything behind the management interface uses the enum
+		ConnectionState currentstate = ConnectionState.parse(line, timeend + 1, stateend);
+		mTimeline.state(currentstate.name(), System.currentTimeMillis());
+		if (currentstate == ConnectionState.CONNECTED)
+			Log.i(TAG, "Connect phases: " + mTimeline.getBreakdown());
+		int msgstart = stateend + 1;
+		int msgend = line.length();
+
+		String msg;
+		if (msgend - msgstart == 2 && line.startsWith(",,", msgstart)) {
+			msg = "";
 		}
-		else if (args[2].endsWith(",,")){ //fixes LEAP Bug #4546
-			args[2] = (String) args[2].subSequence(0, args[2].length()-2);
-			Log.d(TAG, "processState() STATE: "+ currentstate + "   msg: " + args[2]);
-			OpenVPN.updateStateString(currentstate,args[2]);
+		else if (msgend - msgstart >= 2 && line.endsWith(",,")){ //fixes LEAP Bug #4546
+			msg = line.substring(msgstart, msgend - 2);
+			Log.d(TAG, "processState() STATE: "+ currentstate + "   msg: " + msg);
 		}
 		else{
-			OpenVPN.updateStateString(currentstate,args[2]);
+			msg = line.substring(msgstart);
 		}
+		if (currentstate == ConnectionState.UNKNOWN)
+			msg = line.substring(timeend + 1, stateend) + " " + msg;
+		OpenVPN.updateState(currentstate, msg);
 	}
 
 	private static int repeated_byte_counts = 0;
-	private void processByteCount(String argument) {
+	private void processByteCount(String line, int offset) {
 		//   >BYTECOUNT:{BYTES_IN},{BYTES_OUT}
-		int comma = argument.indexOf(',');
-		long in = Long.parseLong(argument.substring(0, comma));
-		long out = Long.parseLong(argument.substring(comma+1));
+		int comma = line.indexOf(',', offset);
+		long in = parseLong(line, offset, comma);
+		long out = parseLong(line, comma+1, line.length());
 
-		long diffin = in - mLastIn; 
-		long diffout = out - mLastOut;
-		if(diffin == 0 && diffout == 0)
+		if(in == mLastIn && out == mLastOut)
 			repeated_byte_counts++;
 		if(repeated_byte_counts > 3)
 			Log.d("OpenVPN log", "Repeated byte count = " + repeated_byte_counts);
 		mLastIn=in;
 		mLastOut=out;
 
-		String netstat = String.format("In: %8s, %8s/s  Out %8s, %8s/s",
-				humanReadableByteCount(in, false),
-				humanReadableByteCount(diffin, false),
-				humanReadableByteCount(out, false),
-				humanReadableByteCount(diffout, false));
-		OpenVPN.updateStateString("BYTECOUNT",netstat);
-
-
+		// Formatting is left to the views that display the counters
+		OpenVPN.updateByteCount(in, out);
 	}
 
-	// From: http://stackoverflow.com/questions/3758606/how-to-convert-byte-size-into-human-readable-format-in-java
-	public static String humanReadableByteCount(long bytes, boolean si) {
-		int unit = si ? 1000 : 1024;
-		if (bytes < unit) return bytes + " B";
-		int exp = (int) (Math.log(bytes) / Math.log(unit));
-		String pre = (si ? "kMGTPE" : "KMGTPE").charAt(exp-1) + (si ? "" : "i");
-		return String.format("%.1f %sB", bytes / Math.pow(unit, exp), pre);
+	// 'ROUTE' from >NEED-OK:Need 'ROUTE' confirmation MSG:...
+	private static String needType(String argument) {
+		int p1 = argument.indexOf('\'');
+		int p2 = argument.indexOf('\'', p1 + 1);
+		return p1 == -1 || p2 == -1 ? "?" : argument.substring(p1 + 1, p2);
 	}
 
 	private void processNeedCommand(String argument) {
@@ -379,7 +588,9 @@ public class OpenVpnManagementThread implements Runnable {
 
 			return false;
 		}
+		long tunstart = System.currentTimeMillis();
 		ParcelFileDescriptor pfd = mOpenVPNService.openTun(); 
+		mTimeline.callback("openTun", tunstart, System.currentTimeMillis());
 		if(pfd==null)
 			return false;
 
@@ -392,17 +603,20 @@ public class OpenVpnManagementThread implements Runnable {
 			setInt.invoke(fdtosend,fdint);
 
 			FileDescriptor[] fds = {fdtosend};
-			mSocket.setFileDescriptorsForSend(fds);
 
 			Log.d("Openvpn", "Sending FD tosocket: " + fdtosend + " " + fdint + "  " + pfd);
 			// Trigger a send so we can close the fd on our side of the channel
-			// The API documentation fails to mention that it will not reset the file descriptor to
-			// be send and will happily send the file descriptor on every write ...
+			// The writer attaches the fds only to this write and resets them afterwards
 			String cmd = String.format("needok '%s' %s\n", needed, "ok");
-			managmentCommand(cmd);
+			ManagementCommandChannel.Command sent = mCommands.send(cmd, fds);
 
-			// Set the FileDescriptor to null to stop this mad behavior 
-			mSocket.setFileDescriptorsForSend(null);
+			// Our copy of the fd may only be closed once it went over the socket
+			try {
+				if(!sent.awaitWritten(WRITE_TIMEOUT, TimeUnit.MILLISECONDS))
+					OpenVPN.logMessage(0, "", "Timeout sending tun fd over socket");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
 
 			pfd.close();			
 
@@ -469,30 +683,170 @@ public class OpenVpnManagementThread implements Runnable {
 
 
 	private void proccessPWFailed(String needed, String args) {
-		OpenVPN.updateStateString("AUTH_FAILED", needed + args,R.string.state_auth_failed);
+		OpenVPN.updateState(ConnectionState.AUTH_FAILED, needed + args);
 	}
 	private void logStatusMessage(String command) {
 		OpenVPN.logMessage(0,"MGMT:", command);
 	}
 
 
+	public String getProfileUUID() {
+		return mProfile.getUUIDString();
+	}
+
+	/**
+	 * @return snapshot of the running sessions
+	 */
+	public static List<OpenVpnManagementThread> getActiveSessions() {
+		return new ArrayList<OpenVpnManagementThread>(active);
+	}
+
+	/**
+	 * @return the running session of a profile or null
+	 */
+	public static OpenVpnManagementThread getSession(String profileUUID) {
+		for (OpenVpnManagementThread mt: active)
+			if (profileUUID.equals(mt.getProfileUUID()))
+				return mt;
+		return null;
+	}
+
+	/**
+	 * Stops all running sessions.
+	 * @return true if a session was asked to exit
+	 */
 	public static boolean stopOpenVPN() {
-		boolean sendCMD=false;
-		for (OpenVpnManagementThread mt: active){
-			mt.managmentCommand("signal SIGINT\n");
-			sendCMD=true;
-			try {
-				if(mt.mSocket !=null)
-					mt.mSocket.close();
-			} catch (IOException e) {
-				// Ignore close error on already closed socket
+		return stopSessions(null);
+	}
+
+	/**
+	 * Stops the session of one profile.
+	 * @return true if the session was running
+	 */
+	public static boolean stopOpenVPN(String profileUUID) {
+		return stopSessions(profileUUID);
+	}
+
+	private static boolean stopSessions(String profileUUID) {
+		final ArrayList<OpenVpnManagementThread> stopping = new ArrayList<OpenVpnManagementThread>();
+		final ArrayList<ManagementCommandChannel.Command> signals = new ArrayList<ManagementCommandChannel.Command>();
+		for (OpenVpnManagementThread mt: active) {
+			if (profileUUID != null && !profileUUID.equals(mt.getProfileUUID()))
+				continue;
+			mt.cancelHoldRelease();
+			signals.add(mt.managmentCommand("signal SIGINT\n"));
+			stopping.add(mt);
+		}
+
+		if (stopping.isEmpty())
+			return false;
+
+		// Called from the UI thread, the waiting happens elsewhere
+		new Thread("OpenVPN stop") {
+			@Override
+			public void run() {
+				// The writers send their signals in parallel, all of them get one
+				// deadline to do so before the sockets are closed
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT);
+				for (int i = 0; i < stopping.size(); i++) {
+					long left = deadline - System.nanoTime();
+					try {
+						if (left > 0)
+							signals.get(i).awaitWritten(left, TimeUnit.NANOSECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					stopping.get(i).closeSocket();
+				}
+			}
+		}.start();
+		return true;
+	}
+
+	/**
+	 * Waits until all sessions have shut down.
+	 * @param timeout in ms for all sessions together
+	 * @return false if a session was still running at the timeout
+	 */
+	public static boolean awaitStopped(long timeout) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		try {
+			for (OpenVpnManagementThread mt: active) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0 || !mt.mStopped.await(left, TimeUnit.NANOSECONDS))
+					return false;
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+
+	private void closeSocket() {
+		LocalSocket socket = mSocket;
+		try {
+			if(socket !=null)
+				socket.close();
+		} catch (IOException e) {
+			// Ignore close error on already closed socket
 		}
-		return sendCMD;		
 	}
 
-	public void signalusr1() {
+	/**
+	 * Changes the interval of >BYTECOUNT messages, also in the middle of a session.
+	 * @param seconds interval in seconds, 0 disables the messages
+	 */
+	public synchronized void setBytecountInterval(int seconds) {
+		if(seconds == mBytecountinterval)
+			return;
+		mBytecountinterval = seconds;
+		// Before the hold is released the interval is sent by releaseHoldCmd()
+		if(!mWaitingForRelease)
+			managmentCommand("bytecount " + seconds + "\n");
+	}
+
+	/**
+	 * Views showing traffic or connection state call this from onResume/onPause.
+	 * OpenVPN only reports byte counts at the fast rate while one of them is visible.
+	 */
+	public static void setViewVisible(boolean visible) {
+		synchronized (OpenVpnManagementThread.class) {
+			if(visible)
+				sVisibleViews++;
+			else if(sVisibleViews > 0)
+				sVisibleViews--;
+		}
+		applyBytecountInterval();
+	}
+
+	/**
+	 * Sets the byte count policy.
+	 * @param foreground interval while a view is visible
+	 * @param background interval otherwise, 0 disables byte counts
+	 */
+	public static void setBytecountIntervals(int foreground, int background) {
+		synchronized (OpenVpnManagementThread.class) {
+			sBytecountForeground = foreground;
+			sBytecountBackground = background;
+		}
+		applyBytecountInterval();
+	}
+
+	private static synchronized int currentBytecountInterval() {
+		return sVisibleViews > 0 ? sBytecountForeground : sBytecountBackground;
+	}
+
+	private static void applyBytecountInterval() {
+		int interval = currentBytecountInterval();
+		for (OpenVpnManagementThread mt: active)
+			mt.setBytecountInterval(interval);
+	}
+
+	public synchronized void signalusr1() {
 		mReleaseHold=false;
+		// The network is gone, a scheduled release would come too early
+		cancelHoldRelease();
 		if(!mWaitingForRelease)
 			managmentCommand("signal SIGUSR1\n");
 	}
@@ -526,9 +880,8 @@ public class OpenVpnManagementThread implements Runnable {
 
 			byte[] signed_bytes = rsasinger.doFinal(data);
 			String signed_string = Base64.encodeToString(signed_bytes, Base64.NO_WRAP);
-			managmentCommand("rsa-sig\n");
-			managmentCommand(signed_string);
-			managmentCommand("\nEND\n");
+			// One command, OpenVPN replies only once after END
+			managmentCommand("rsa-sig\n" + signed_string + "\nEND\n");
 		} catch (NoSuchAlgorithmException e){
 			err =e;
 		} catch (InvalidKeyException e) {
@@ -569,9 +922,8 @@ public class OpenVpnManagementThread implements Runnable {
 
 			byte[] signed_bytes = rsasign(data, pkey); 
 			String signed_string = Base64.encodeToString(signed_bytes, Base64.NO_WRAP);
-			managmentCommand("rsa-sig\n");
-			managmentCommand(signed_string);
-			managmentCommand("\nEND\n");
+			// One command, OpenVPN replies only once after END
+			managmentCommand("rsa-sig\n" + signed_string + "\nEND\n");
 
 		} catch (NoSuchMethodException e) {
 			err=e;
@@ -14,22 +14,29 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.LocalServerSocket;
 import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
 import android.net.VpnService;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.Handler.Callback;
 import android.os.Build;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import se.leap.openvpn.OpenVPN.ByteCountListener;
+import se.leap.openvpn.OpenVPN.LogItem;
 import se.leap.openvpn.OpenVPN.StateListener;
 
-public class OpenVpnService extends VpnService implements StateListener, Callback {
+public class OpenVpnService extends VpnService implements StateListener, ByteCountListener, Callback {
 	public static final String START_SERVICE = "se.leap.openvpn.START_SERVICE";
 	public static final String RETRIEVE_SERVICE = "se.leap.openvpn.RETRIEVE_SERVICE";
+	public static final String DISPLAY_BYTECOUNT_PREF = "displaybytecount";
 
 	private Thread mProcessThread=null;
 
@@ -51,8 +58,39 @@ public class OpenVpnService extends VpnService implements StateListener, Callbac
 	private String mLocalIPv6=null;
 	private NetworkSateReceiver mNetworkStateReceiver;
 	private NotificationManager mNotificationManager;
+	private Notification.Builder mNotificationBuilder;
+	private final Handler mHandler = new Handler();
+	private final NotificationRenderer mNotificationRenderer = new NotificationRenderer(
+			new NotificationRenderer.Target() {
+				@Override
+				public void post(int icon, String text, String ticker, boolean ongoing) {
+					postNotification(icon, text, ticker, ongoing);
+				}
+
+				@Override
+				public void cancel() {
+					mNotificationManager.cancel(OPENVPN_STATUS);
+				}
+			},
+			new CoalescingSignal.Scheduler() {
+				@Override
+				public void schedule(long delay) {
+					mHandler.postDelayed(mFlushNotification, delay);
+				}
+			}, NOTIFICATION_INTERVAL_MS);
+	private final Runnable mFlushNotification = new Runnable() {
+		@Override
+		public void run() {
+			mNotificationRenderer.flush(SystemClock.elapsedRealtime());
+		}
+	};
 
 	private boolean mDisplayBytecount=false;
+	// Connected and the notification shows the rates
+	private boolean mShowingRate=false;
+	private String mRateTicker;
+	private long mLastRateUpdate=0;
+	private final RateFormatter mRateFormatter = new RateFormatter();
 
 	private boolean mStarting=false;
 
@@ -60,6 +98,10 @@ public class OpenVpnService extends VpnService implements StateListener, Callbac
 
 
 	private static final int OPENVPN_STATUS = 1;
+	// Minimum time between two posts of the status notification
+	private static final long NOTIFICATION_INTERVAL_MS = 1000;
+	// Time between two rate updates in the notification
+	private static final long RATE_INTERVAL_MS = 2000;
 
 	public static final int PROTECT_FD = 0;
 
@@ -102,37 +144,48 @@ public class OpenVpnService extends VpnService implements StateListener, Callbac
 		}
 	}
 
-	private void showNotification(String state, String msg, String tickerText, boolean lowpriority, long when, boolean persistant) {
-		String ns = Context.NOTIFICATION_SERVICE;
-		mNotificationManager = (NotificationManager) getSystemService(ns);
+	private void showNotification(ConnectionState state, String msg, String tickerText, boolean persistant) {
 		int icon;
-		if (state.equals("NOPROCESS") || state.equals("AUTH_FAILED") || state.equals("NONETWORK") || state.equals("EXITING")){
+		switch (state) {
+		case NOPROCESS:
+		case AUTH_FAILED:
+		case NONETWORK:
+		case EXITING:
 			icon = R.drawable.ic_vpn_disconnected;
-		}else{	
+			break;
+		default:
 			icon = R.drawable.ic_stat_vpn;
 		}
-		
-		android.app.Notification.Builder nbuilder = new Notification.Builder(this);
+		long now = SystemClock.elapsedRealtime();
+		if (state == ConnectionState.NOPROCESS || state == ConnectionState.EXITING) {
+			// The service may be destroyed before a scheduled post, and with it
+			// an ongoing notification would stay
+			mNotificationRenderer.updateNow(icon, msg, tickerText, persistant, now);
+		} else {
+			// Posted when it differs from the shown one and the interval is over
+			mNotificationRenderer.update(icon, msg, tickerText, persistant, now);
+		}
+	}
+
+	private void postNotification(int icon, String msg, String tickerText, boolean persistant) {
+		if (mNotificationBuilder == null) {
+			mNotificationBuilder = new Notification.Builder(this);
+			mNotificationBuilder.setOnlyAlertOnce(true);
+			mNotificationBuilder.setContentIntent(getLogPendingIntent());
+			// Try to set the priority available since API 16 (Jellybean)
+			jbNotificationExtras(false, mNotificationBuilder);
+		}
+		Notification.Builder nbuilder = mNotificationBuilder;
 
 		nbuilder.setContentTitle(getString(R.string.notifcation_title,mProfile.mLocation));
 		nbuilder.setContentText(msg);
-		nbuilder.setOnlyAlertOnce(true);
 		nbuilder.setOngoing(persistant);
-		nbuilder.setContentIntent(getLogPendingIntent());
 		nbuilder.setSmallIcon(icon);
-		if(when !=0)
-			nbuilder.setWhen(when);
-
-
-		// Try to set the priority available since API 16 (Jellybean)
-		jbNotificationExtras(lowpriority, nbuilder);
-		if(tickerText!=null)
-			nbuilder.setTicker(tickerText);
+		nbuilder.setTicker(tickerText);
 
 		@SuppressWarnings("deprecation")
 		Notification notification = nbuilder.getNotification();
 
-
 		mNotificationManager.notify(OPENVPN_STATUS, notification);
 	}
 
@@ -217,6 +270,13 @@ public class OpenVpnService extends VpnService implements StateListener, Callbac
 			return START_NOT_STICKY;
 			
 
+		// The service may run in a fresh process, bring back the log of the last one
+		OpenVPN.openLogJournalInBackground(this);
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+		OpenVPN.setLogLevel(prefs.getInt(OpenVPN.LOGLEVEL_PREF, LogItem.VERBOSE));
+		mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+		setDisplayBytecount(prefs.getBoolean(DISPLAY_BYTECOUNT_PREF, false));
+
 		// Extract information from the intent.
 		String prefix = getPackageName();
 		String[] argv = intent.getStringArrayExtra(prefix + ".ARGV");
@@ -234,11 +294,8 @@ public class OpenVpnService extends VpnService implements StateListener, Callbac
 		mStarting=true;
 		// Stop the previous session by interrupting the thread.
 		if(OpenVpnManagementThread.stopOpenVPN()){
-			// an old was asked to exit, wait 2s
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-			}
+			// an old was asked to exit, wait up to 1s for it
+			OpenVpnManagementThread.awaitStopped(1000);
 		}
 
 		if (mProcessThread!=null) {
@@ -286,6 +343,8 @@ public class OpenVpnService extends VpnService implements StateListener, Callbac
 		if (mNetworkStateReceiver!= null) {
 			this.unregisterReceiver(mNetworkStateReceiver);
 		}
+		mHandler.removeCallbacks(mFlushNotification);
+		setDisplayBytecount(false);
 
 	}
 
@@ -465,32 +524,68 @@ public class OpenVpnService extends VpnService implements StateListener, Callbac
 	}
 	
 	@Override
-	public void updateState(String state,String logmessage, int resid) {
+	public void updateState(ConnectionState state, String logmessage) {
 		// If the process is not running, ignore any state, 
 		// Notification should be invisible in this state
 		if(mProcessThread==null)
-			return;	
-		if("CONNECTED".equals(state)) {
-			mNotificationManager.cancel(OPENVPN_STATUS);
-		} else if(!"BYTECOUNT".equals(state)) {
-
-			// Other notifications are shown,
-			// This also mean we are no longer connected, ignore bytecount messages until next
-			// CONNECTED
-			String ticker = getString(resid);
-			boolean persist = false;
-			if (("NOPROCESS".equals(state) ) || ("EXITING").equals(state)){
-				showNotification(state, getString(R.string.eip_state_not_connected), ticker, false, 0, persist);
-			}
-			else if (state.equals("GET_CONFIG") || state.equals("ASSIGN_IP")){ //don't show them in the notification message
+			return;
+		mShowingRate = false;
+		String ticker = getString(state.getResId());
+		switch (state) {
+		case CONNECTED:
+			if (mDisplayBytecount) {
+				// Stays visible, updateByteCount adds the rates
+				mShowingRate = true;
+				mLastRateUpdate = 0;
+				mRateTicker = ticker;
+				mRateFormatter.setPrefix(ticker + "  ");
+				showNotification(state, ticker, ticker, true);
+			} else {
+				mNotificationRenderer.cancel();
 			}
-			else{
-				persist = true;
-				showNotification(state, getString(resid) +" " + logmessage,ticker,false,0,persist);
-			}			 
+			break;
+		case NOPROCESS:
+		case EXITING:
+			showNotification(state, getString(R.string.eip_state_not_connected), ticker, false);
+			break;
+		case GET_CONFIG:
+		case ASSIGN_IP:
+			//don't show them in the notification message
+			break;
+		default:
+			showNotification(state, ticker + " " + logmessage, ticker, true);
 		}
 	}
 
+	/**
+	 * Shows the in/out rate in the notification while connected. Needs
+	 * byte counts at the foreground interval, the service then counts as
+	 * a visible view.
+	 */
+	private void setDisplayBytecount(boolean display) {
+		if (display == mDisplayBytecount)
+			return;
+		mDisplayBytecount = display;
+		if (display)
+			OpenVPN.addByteCountListener(this);
+		else
+			OpenVPN.removeByteCountListener(this);
+		OpenVpnManagementThread.setViewVisible(display);
+	}
+
+	@Override
+	public void updateByteCount(long in, long out, long ratein, long rateout) {
+		if (!mShowingRate || mProcessThread == null)
+			return;
+		long now = SystemClock.elapsedRealtime();
+		if (now - mLastRateUpdate < RATE_INTERVAL_MS)
+			return;
+		mLastRateUpdate = now;
+		// Nothing is allocated unless the text changed
+		if (mRateFormatter.format(ratein, rateout))
+			mNotificationRenderer.update(R.drawable.ic_stat_vpn, mRateFormatter.toString(), mRateTicker, true, now);
+	}
+
 	@Override
 	public boolean handleMessage(Message msg) {
 		Runnable r = msg.getCallback();
@@ -0,0 +1,112 @@
+package se.leap.openvpn;
+
+/**
+ * Formats the in/out rate for the status notification into a buffer that
+ * is reused for every update.
+ *
+ * Only integer arithmetic, no String.format and no boxing. A String is
+ * created only when the text differs from the previous one and the caller
+ * actually needs it.
+ */
+public class RateFormatter {
+
+	private static final String UNITS = "KMGTPE";
+	// Enough for the arrows and two rates like "1023.9 EiB/s"
+	private static final int RATE_CHARS = 48;
+
+	private String mPrefix = "";
+	private char[] mBuffer = new char[RATE_CHARS];
+	private char[] mPrevious = new char[RATE_CHARS];
+	private int mLength = 0;
+	private boolean mHasText = false;
+	private final char[] mDigits = new char[20];
+
+	/**
+	 * @param prefix text in front of the rates, e.g. the localized state
+	 */
+	public void setPrefix(String prefix) {
+		if (prefix.equals(mPrefix))
+			return;
+		mPrefix = prefix;
+		mBuffer = new char[prefix.length() + RATE_CHARS];
+		mPrevious = new char[prefix.length() + RATE_CHARS];
+		mHasText = false;
+	}
+
+	/**
+	 * Formats the rates in bytes per second.
+	 * @return true if the text differs from the one of the previous call
+	 */
+	public boolean format(long ratein, long rateout) {
+		char[] swap = mPrevious;
+		mPrevious = mBuffer;
+		mBuffer = swap;
+		int previousLength = mHasText ? mLength : -1;
+		mLength = 0;
+
+		append(mPrefix);
+		append("\u2193 ");
+		appendRate(ratein);
+		append("  \u2191 ");
+		appendRate(rateout);
+		mHasText = true;
+
+		if (previousLength != mLength)
+			return true;
+		for (int i = 0; i < mLength; i++)
+			if (mBuffer[i] != mPrevious[i])
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return text of the last format() call
+	 */
+	@Override
+	public String toString() {
+		return new String(mBuffer, 0, mLength);
+	}
+
+	private void appendRate(long bytes) {
+		if (bytes < 0)
+			bytes = 0;
+		else if (bytes > Long.MAX_VALUE / 10)
+			bytes = Long.MAX_VALUE / 10;
+		if (bytes < 1024) {
+			appendLong(bytes);
+			append(" B/s");
+			return;
+		}
+		int exp = 0;
+		long scaled = bytes;
+		while (scaled >= 1024 && exp < UNITS.length()) {
+			scaled >>= 10;
+			exp++;
+		}
+		long divisor = 1L << (10 * exp);
+		// One decimal, rounded like %.1f
+		long tenths = (bytes * 10 + divisor / 2) / divisor;
+		appendLong(tenths / 10);
+		mBuffer[mLength++] = '.';
+		mBuffer[mLength++] = (char) ('0' + tenths % 10);
+		mBuffer[mLength++] = ' ';
+		mBuffer[mLength++] = UNITS.charAt(exp - 1);
+		append("iB/s");
+	}
+
+	private void appendLong(long value) {
+		int n = 0;
+		do {
+			mDigits[n++] = (char) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+		while (n > 0)
+			mBuffer[mLength++] = mDigits[--n];
+	}
+
+	private void append(String s) {
+		int len = s.length();
+		s.getChars(0, len, mBuffer, mLength);
+		mLength += len;
+	}
+}
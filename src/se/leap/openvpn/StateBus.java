@@ -0,0 +1,159 @@
+package se.leap.openvpn;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import se.leap.openvpn.OpenVPN.StateListener;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Delivers connection states to listeners, each on its own executor.
+ *
+ * The publisher only queues the state for every listener, a slow listener
+ * never holds up the management thread or other listeners. States equal to
+ * the last one are dropped. When a listener falls behind, consecutive
+ * queued updates of the same state are merged into the newest one.
+ *
+ * Listeners are kept in a copy on write list, registering never waits for
+ * a publish in progress and the reverse.
+ */
+public class StateBus {
+
+	private static class StateEvent {
+		final long mSequence;
+		final ConnectionState mState;
+		final String mMessage;
+
+		StateEvent(long sequence, ConnectionState state, String message) {
+			mSequence = sequence;
+			mState = state;
+			mMessage = message;
+		}
+
+		boolean sameAs(ConnectionState state, String message) {
+			return mState == state && (mMessage == null ? message == null : mMessage.equals(message));
+		}
+	}
+
+	private static class Subscription implements Runnable {
+		final StateListener mListener;
+		final Executor mExecutor;
+		volatile boolean mActive = true;
+
+		// Guarded by this
+		private final ArrayDeque<StateEvent> mQueue = new ArrayDeque<StateEvent>();
+		private boolean mScheduled = false;
+		private long mLastOffered = -1;
+
+		Subscription(StateListener listener, Executor executor) {
+			mListener = listener;
+			mExecutor = executor;
+		}
+
+		void offer(StateEvent event) {
+			synchronized (this) {
+				// The replay of the last state may race with a newer publish
+				if (event.mSequence <= mLastOffered)
+					return;
+				mLastOffered = event.mSequence;
+				StateEvent last = mQueue.peekLast();
+				if (last != null && last.mState == event.mState)
+					mQueue.pollLast();
+				mQueue.addLast(event);
+				if (mScheduled)
+					return;
+				mScheduled = true;
+			}
+			mExecutor.execute(this);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				StateEvent event;
+				synchronized (this) {
+					event = mQueue.pollFirst();
+					if (event == null) {
+						mScheduled = false;
+						return;
+					}
+				}
+				if (mActive)
+					mListener.updateState(event.mState, event.mMessage);
+			}
+		}
+	}
+
+	private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<Subscription>();
+	private final Object mPublishLock = new Object();
+	private long mSequence = 0;
+	private volatile StateEvent mLast;
+
+	private static Executor sMainThread;
+
+	/**
+	 * @return executor running tasks on the main looper
+	 */
+	public static synchronized Executor mainThread() {
+		if (sMainThread == null) {
+			final Handler handler = new Handler(Looper.getMainLooper());
+			sMainThread = new Executor() {
+				@Override
+				public void execute(Runnable command) {
+					handler.post(command);
+				}
+			};
+		}
+		return sMainThread;
+	}
+
+	/**
+	 * Registers a listener, it gets the last state right away on its executor.
+	 */
+	public void subscribe(StateListener listener, Executor executor) {
+		for (Subscription s : mSubscriptions)
+			if (s.mListener == listener)
+				return;
+		Subscription subscription = new Subscription(listener, executor);
+		mSubscriptions.add(subscription);
+		StateEvent last = mLast;
+		if (last != null)
+			subscription.offer(last);
+	}
+
+	/**
+	 * Updates still queued for the listener are not delivered anymore.
+	 */
+	public void unsubscribe(StateListener listener) {
+		for (Subscription s : mSubscriptions) {
+			if (s.mListener == listener) {
+				s.mActive = false;
+				mSubscriptions.remove(s);
+			}
+		}
+	}
+
+	/**
+	 * @return false if the state equals the last one and was dropped
+	 */
+	public boolean publish(ConnectionState state, String message) {
+		synchronized (mPublishLock) {
+			StateEvent last = mLast;
+			if (last != null && last.sameAs(state, message))
+				return false;
+			StateEvent event = new StateEvent(++mSequence, state, message);
+			mLast = event;
+			for (Subscription s : mSubscriptions)
+				s.offer(event);
+			return true;
+		}
+	}
+
+	public ConnectionState getLastState() {
+		StateEvent last = mLast;
+		return last == null ? null : last.mState;
+	}
+}
@@ -0,0 +1,181 @@
+package se.leap.openvpn;
+
+/**
+ * Traffic of the current session as time series for throughput graphs.
+ *
+ * Keeps bytes per second for the last hour and bytes per minute for the last
+ * day in preallocated ring buffers, so the memory footprint is fixed and
+ * adding a sample does not allocate.
+ */
+public class TrafficHistory {
+
+	public static final int SECONDS = 3600;
+	public static final int MINUTES = 1440;
+
+	private final long[] mSecondIn = new long[SECONDS];
+	private final long[] mSecondOut = new long[SECONDS];
+	private final long[] mMinuteIn = new long[MINUTES];
+	private final long[] mMinuteOut = new long[MINUTES];
+
+	// Absolute second and minute of the newest slots
+	private long mSecond = -1;
+	private long mMinute = -1;
+
+	// Counters as reported by OpenVPN at the last sample
+	private long mLastIn = 0;
+	private long mLastOut = 0;
+	private long mLastSample = -1;
+
+	private long mSessionStart = 0;
+	private long mSessionIn = 0;
+	private long mSessionOut = 0;
+
+	/**
+	 * Adds the absolute counters of a >BYTECOUNT message. Traffic since the
+	 * previous sample is spread evenly over the seconds in between.
+	 * @param now time of the sample in milliseconds
+	 */
+	public synchronized void add(long in, long out, long now) {
+		long second = now / 1000;
+		if (mSessionStart == 0)
+			mSessionStart = now;
+
+		long diffin = in - mLastIn;
+		long diffout = out - mLastOut;
+		if (diffin < 0 || diffout < 0) {
+			// OpenVPN restarted its counters
+			diffin = in;
+			diffout = out;
+		}
+		mLastIn = in;
+		mLastOut = out;
+		mSessionIn += diffin;
+		mSessionOut += diffout;
+
+		long span = mLastSample < 0 ? 1 : second - mLastSample;
+		if (span < 1)
+			span = 1;
+		else if (span > SECONDS)
+			span = SECONDS;
+		mLastSample = second;
+
+		advance(second);
+
+		long sharein = diffin / span;
+		long shareout = diffout / span;
+		for (long s = second - span + 1; s <= second; s++) {
+			long partin = sharein;
+			long partout = shareout;
+			if (s == second) {
+				// Rounding remainder goes into the newest second
+				partin = diffin - sharein * (span - 1);
+				partout = diffout - shareout * (span - 1);
+			}
+			int secslot = (int) (s % SECONDS);
+			mSecondIn[secslot] += partin;
+			mSecondOut[secslot] += partout;
+
+			long minute = s / 60;
+			if (mMinute - minute < MINUTES) {
+				int minslot = (int) (minute % MINUTES);
+				mMinuteIn[minslot] += partin;
+				mMinuteOut[minslot] += partout;
+			}
+		}
+	}
+
+	/**
+	 * Copies the bytes per second of the last in.length seconds, oldest first.
+	 * @return number of values copied
+	 */
+	public synchronized int getPerSecond(long[] in, long[] out, long now) {
+		advance(now / 1000);
+		return copy(mSecondIn, mSecondOut, mSecond, in, out);
+	}
+
+	/**
+	 * Copies the bytes per minute of the last in.length minutes, oldest first.
+	 * @return number of values copied
+	 */
+	public synchronized int getPerMinute(long[] in, long[] out, long now) {
+		advance(now / 1000);
+		return copy(mMinuteIn, mMinuteOut, mMinute, in, out);
+	}
+
+	public synchronized long getSessionIn() {
+		return mSessionIn;
+	}
+
+	public synchronized long getSessionOut() {
+		return mSessionOut;
+	}
+
+	/**
+	 * @return start of the session in milliseconds, 0 if there was no traffic yet
+	 */
+	public synchronized long getSessionStart() {
+		return mSessionStart;
+	}
+
+	/**
+	 * Starts a new session.
+	 */
+	public synchronized void reset() {
+		clear(mSecondIn, mSecondOut);
+		clear(mMinuteIn, mMinuteOut);
+		mSecond = mMinute = mLastSample = -1;
+		mLastIn = mLastOut = 0;
+		mSessionStart = mSessionIn = mSessionOut = 0;
+	}
+
+	private void advance(long second) {
+		if (mSecond < 0) {
+			mSecond = second;
+			mMinute = second / 60;
+			return;
+		}
+		mSecond = advance(mSecondIn, mSecondOut, mSecond, second);
+		mMinute = advance(mMinuteIn, mMinuteOut, mMinute, second / 60);
+	}
+
+	// Clears the slots between the newest slot and target, returns the new newest slot
+	private static long advance(long[] in, long[] out, long newest, long target) {
+		if (target <= newest)
+			return newest;
+		if (target - newest >= in.length) {
+			clear(in, out);
+		} else {
+			for (long t = newest + 1; t <= target; t++) {
+				int slot = (int) (t % in.length);
+				in[slot] = 0;
+				out[slot] = 0;
+			}
+		}
+		return target;
+	}
+
+	private static int copy(long[] srcin, long[] srcout, long newest, long[] in, long[] out) {
+		if (newest < 0)
+			return 0;
+		int count = Math.min(Math.min(in.length, out.length), srcin.length);
+		long first = newest - count + 1;
+		for (int i = 0; i < count; i++) {
+			long t = first + i;
+			if (t < 0) {
+				in[i] = out[i] = 0;
+			} else {
+				int slot = (int) (t % srcin.length);
+				in[i] = srcin[slot];
+				out[i] = srcout[slot];
+			}
+		}
+		return count;
+	}
+
+	private static void clear(long[] in, long[] out) {
+		for (int i = 0; i < in.length; i++) {
+			in[i] = 0;
+			out[i] = 0;
+		}
+	}
+}
@@ -0,0 +1,387 @@
+package se.leap.bitmaskclient.test;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import android.util.JsonToken;
+
+import se.leap.bitmaskclient.JsonTokens;
+
+/**
+ * JsonTokens for tests run on a JVM, where android.util.JsonReader is only
+ * a stub. Strict JSON only, errors are IOExceptions.
+ */
+public class JvmJsonTokens implements JsonTokens {
+
+	// What the innermost scope expects next
+	private static final int
+	EMPTY_DOCUMENT = 0,
+	NONEMPTY_DOCUMENT = 1,
+	EMPTY_ARRAY = 2,
+	NONEMPTY_ARRAY = 3,
+	EMPTY_OBJECT = 4,
+	DANGLING_NAME = 5,
+	NONEMPTY_OBJECT = 6
+	;
+
+	private final Reader mReader;
+	private final char[] mBuffer = new char[1024];
+	private int mPos = 0;
+	private int mLimit = 0;
+
+	private int[] mStack = new int[32];
+	private int mStackSize = 1;
+
+	private JsonToken mPeeked = null;
+	// Text of a peeked number, true/false of a peeked boolean
+	private String mLiteral;
+	private boolean mBoolean;
+	private final StringBuilder mString = new StringBuilder();
+
+	public JvmJsonTokens(Reader reader) {
+		mReader = reader;
+		mStack[0] = EMPTY_DOCUMENT;
+	}
+
+	@Override
+	public JsonToken peek() throws IOException {
+		if (mPeeked != null)
+			return mPeeked;
+		int c;
+		switch (mStack[mStackSize - 1]) {
+		case EMPTY_DOCUMENT:
+			mStack[mStackSize - 1] = NONEMPTY_DOCUMENT;
+			return mPeeked = peekValue(nextNonWhitespace());
+		case NONEMPTY_DOCUMENT:
+			if (nextNonWhitespace() != -1)
+				throw syntaxError("Expected end of document");
+			return mPeeked = JsonToken.END_DOCUMENT;
+		case EMPTY_ARRAY:
+			mStack[mStackSize - 1] = NONEMPTY_ARRAY;
+			c = nextNonWhitespace();
+			return mPeeked = c == ']' ? JsonToken.END_ARRAY : peekValue(c);
+		case NONEMPTY_ARRAY:
+			c = nextNonWhitespace();
+			if (c == ']')
+				return mPeeked = JsonToken.END_ARRAY;
+			if (c != ',')
+				throw syntaxError("Expected , or ]");
+			return mPeeked = peekValue(nextNonWhitespace());
+		case EMPTY_OBJECT:
+		case NONEMPTY_OBJECT:
+			c = nextNonWhitespace();
+			if (c == '}')
+				return mPeeked = JsonToken.END_OBJECT;
+			if (mStack[mStackSize - 1] == NONEMPTY_OBJECT) {
+				if (c != ',')
+					throw syntaxError("Expected , or }");
+				c = nextNonWhitespace();
+			}
+			if (c != '"')
+				throw syntaxError("Expected name");
+			mStack[mStackSize - 1] = DANGLING_NAME;
+			return mPeeked = JsonToken.NAME;
+		case DANGLING_NAME:
+			if (nextNonWhitespace() != ':')
+				throw syntaxError("Expected :");
+			mStack[mStackSize - 1] = NONEMPTY_OBJECT;
+			return mPeeked = peekValue(nextNonWhitespace());
+		default:
+			throw new IllegalStateException("Reader is closed");
+		}
+	}
+
+	@Override
+	public boolean hasNext() throws IOException {
+		JsonToken token = peek();
+		return token != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY && token != JsonToken.END_DOCUMENT;
+	}
+
+	@Override
+	public void beginObject() throws IOException {
+		expect(JsonToken.BEGIN_OBJECT);
+		push(EMPTY_OBJECT);
+	}
+
+	@Override
+	public void endObject() throws IOException {
+		expect(JsonToken.END_OBJECT);
+		mStackSize--;
+	}
+
+	@Override
+	public void beginArray() throws IOException {
+		expect(JsonToken.BEGIN_ARRAY);
+		push(EMPTY_ARRAY);
+	}
+
+	@Override
+	public void endArray() throws IOException {
+		expect(JsonToken.END_ARRAY);
+		mStackSize--;
+	}
+
+	@Override
+	public String nextName() throws IOException {
+		expect(JsonToken.NAME);
+		return readString();
+	}
+
+	/**
+	 * @return a string, or the text of a number
+	 */
+	@Override
+	public String nextString() throws IOException {
+		JsonToken token = peek();
+		mPeeked = null;
+		if (token == JsonToken.STRING)
+			return readString();
+		if (token == JsonToken.NUMBER)
+			return mLiteral;
+		throw syntaxError("Expected a string but was " + token);
+	}
+
+	/**
+	 * @return a number, or a string holding one
+	 */
+	@Override
+	public int nextInt() throws IOException {
+		String number = nextString();
+		try {
+			return Integer.parseInt(number);
+		} catch (NumberFormatException e) {
+			double value = parseDouble(number);
+			if ((int) value != value)
+				throw syntaxError("Expected an int but was " + number);
+			return (int) value;
+		}
+	}
+
+	@Override
+	public boolean nextBoolean() throws IOException {
+		expect(JsonToken.BOOLEAN);
+		return mBoolean;
+	}
+
+	/**
+	 * Skips the next value, with everything nested in it.
+	 */
+	@Override
+	public void skipValue() throws IOException {
+		int depth = 0;
+		do {
+			JsonToken token = peek();
+			mPeeked = null;
+			switch (token) {
+			case BEGIN_ARRAY:
+				push(EMPTY_ARRAY);
+				depth++;
+				break;
+			case BEGIN_OBJECT:
+				push(EMPTY_OBJECT);
+				depth++;
+				break;
+			case END_ARRAY:
+			case END_OBJECT:
+				mStackSize--;
+				depth--;
+				break;
+			case NAME:
+			case STRING:
+				skipString();
+				break;
+			case END_DOCUMENT:
+				throw syntaxError("Unexpected end of document");
+			default:
+				break;
+			}
+		} while (depth > 0);
+	}
+
+	@Override
+	public void close() throws IOException {
+		mPeeked = null;
+		mStack[0] = -1;
+		mStackSize = 1;
+		mReader.close();
+	}
+
+	private void expect(JsonToken expected) throws IOException {
+		JsonToken token = peek();
+		if (token != expected)
+			throw syntaxError("Expected " + expected + " but was " + token);
+		mPeeked = null;
+	}
+
+	private void push(int scope) {
+		if (mStackSize == mStack.length) {
+			int[] stack = new int[mStackSize * 2];
+			System.arraycopy(mStack, 0, stack, 0, mStackSize);
+			mStack = stack;
+		}
+		mStack[mStackSize++] = scope;
+	}
+
+	/**
+	 * @param c first character of the value, its opening quote is consumed
+	 */
+	private JsonToken peekValue(int c) throws IOException {
+		switch (c) {
+		case '{':
+			return JsonToken.BEGIN_OBJECT;
+		case '[':
+			return JsonToken.BEGIN_ARRAY;
+		case '"':
+			return JsonToken.STRING;
+		case 't':
+			readKeyword("rue");
+			mBoolean = true;
+			return JsonToken.BOOLEAN;
+		case 'f':
+			readKeyword("alse");
+			mBoolean = false;
+			return JsonToken.BOOLEAN;
+		case 'n':
+			readKeyword("ull");
+			return JsonToken.NULL;
+		case -1:
+			throw syntaxError("Unexpected end of document");
+		default:
+			if (c != '-' && (c < '0' || c > '9'))
+				throw syntaxError("Unexpected character " + (char) c);
+			readNumber((char) c);
+			return JsonToken.NUMBER;
+		}
+	}
+
+	private void readKeyword(String rest) throws IOException {
+		for (int i = 0; i < rest.length(); i++) {
+			if (read() != rest.charAt(i))
+				throw syntaxError("Unexpected literal");
+		}
+	}
+
+	private void readNumber(char first) throws IOException {
+		mString.setLength(0);
+		mString.append(first);
+		while (mPos < mLimit || fill()) {
+			char c = mBuffer[mPos];
+			if ((c < '0' || c > '9') && c != '.' && c != 'e' && c != 'E' && c != '+' && c != '-')
+				break;
+			mString.append(c);
+			mPos++;
+		}
+		mLiteral = mString.toString();
+		parseDouble(mLiteral);
+	}
+
+	private double parseDouble(String number) throws IOException {
+		try {
+			return Double.parseDouble(number);
+		} catch (NumberFormatException e) {
+			throw syntaxError("Malformed number " + number);
+		}
+	}
+
+	/**
+	 * Reads up to the closing quote, the opening one was consumed by peek().
+	 */
+	private String readString() throws IOException {
+		mString.setLength(0);
+		while (true) {
+			int start = mPos;
+			while (mPos < mLimit) {
+				char c = mBuffer[mPos++];
+				if (c == '"') {
+					// Most names and values never leave the buffer
+					if (mString.length() == 0)
+						return new String(mBuffer, start, mPos - start - 1);
+					mString.append(mBuffer, start, mPos - start - 1);
+					return mString.toString();
+				}
+				if (c == '\\') {
+					mString.append(mBuffer, start, mPos - start - 1);
+					mString.append(readEscape());
+					start = mPos;
+				}
+			}
+			mString.append(mBuffer, start, mPos - start);
+			if (!fill())
+				throw syntaxError("Unterminated string");
+		}
+	}
+
+	private void skipString() throws IOException {
+		while (true) {
+			while (mPos < mLimit) {
+				char c = mBuffer[mPos++];
+				if (c == '"')
+					return;
+				if (c == '\\')
+					readEscape();
+			}
+			if (!fill())
+				throw syntaxError("Unterminated string");
+		}
+	}
+
+	private char readEscape() throws IOException {
+		int c = read();
+		switch (c) {
+		case 'u':
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(read(), 16);
+				if (digit == -1)
+					throw syntaxError("Malformed unicode escape");
+				value = (value << 4) | digit;
+			}
+			return (char) value;
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case '"':
+		case '\\':
+		case '/':
+			return (char) c;
+		default:
+			throw syntaxError("Invalid escape sequence");
+		}
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		while (mPos < mLimit || fill()) {
+			char c = mBuffer[mPos++];
+			if (c != ' ' && c != '\n' && c != '\r' && c != '\t')
+				return c;
+		}
+		return -1;
+	}
+
+	private int read() throws IOException {
+		if (mPos == mLimit && !fill())
+			return -1;
+		return mBuffer[mPos++];
+	}
+
+	private boolean fill() throws IOException {
+		mPos = 0;
+		mLimit = 0;
+		int n = mReader.read(mBuffer, 0, mBuffer.length);
+		if (n <= 0)
+			return false;
+		mLimit = n;
+		return true;
+	}
+
+	private IOException syntaxError(String message) {
+		return new IOException(message);
+	}
+}
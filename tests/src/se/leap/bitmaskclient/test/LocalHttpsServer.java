@@ -0,0 +1,242 @@
+package se.leap.bitmaskclient.test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLServerSocket;
+
+/**
+ * Minimal HTTP/1.1 server over TLS standing in for a provider. Serves
+ * fixed documents, keeps connections alive and counts them.
+ *
+ * Only what the provider API uses: Content-Length bodies, keep-alive,
+ * ETag and Last-Modified validation and an optional delay per path.
+ */
+public class LocalHttpsServer {
+
+	public static class Document {
+		volatile int mStatus;
+		volatile String mBody;
+		volatile String mEtag;
+		volatile String mLastModified;
+		volatile long mDelay;
+
+		Document(int status, String body) {
+			mStatus = status;
+			mBody = body;
+		}
+	}
+
+	private final SSLServerSocket mServerSocket;
+	private final Map<String, Document> mDocuments = Collections.synchronizedMap(new HashMap<String, Document>());
+	private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+	private final List<Map<String, String>> mHeaders = Collections.synchronizedList(new ArrayList<Map<String, String>>());
+	private final AtomicInteger mAccepted = new AtomicInteger();
+	private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<Socket>());
+	private volatile boolean mStopped = false;
+
+	public LocalHttpsServer() throws Exception {
+		mServerSocket = (SSLServerSocket) TestCertificates.serverContext().getServerSocketFactory()
+				.createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		// Session ids are only meaningful up to TLS 1.2. Older releases enable
+		// less than that, e.g. only TLSv1 on Android 4.2, keep what they offer.
+		List<String> protocols = new ArrayList<String>();
+		for (String protocol : mServerSocket.getEnabledProtocols()) {
+			if (!protocol.equals("TLSv1.3"))
+				protocols.add(protocol);
+		}
+		mServerSocket.setEnabledProtocols(protocols.toArray(new String[protocols.size()]));
+		Thread acceptor = new Thread("LocalHttpsServer") {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * @return base url like https://localhost:1234
+	 */
+	public String getUrl() {
+		return "https://localhost:" + mServerSocket.getLocalPort();
+	}
+
+	public Document put(String path, int status, String body) {
+		Document document = new Document(status, body);
+		mDocuments.put(path, document);
+		return document;
+	}
+
+	public void setEtag(String path, String etag) {
+		mDocuments.get(path).mEtag = etag;
+	}
+
+	/**
+	 * @param last_modified answers an If-Modified-Since with exactly this date with 304
+	 */
+	public void setLastModified(String path, String last_modified) {
+		mDocuments.get(path).mLastModified = last_modified;
+	}
+
+	public void setDelay(String path, long delay) {
+		mDocuments.get(path).mDelay = delay;
+	}
+
+	/**
+	 * @return connections accepted so far
+	 */
+	public int getAccepted() {
+		return mAccepted.get();
+	}
+
+	/**
+	 * @return "METHOD path" of every request in order
+	 */
+	public List<String> getRequests() {
+		synchronized (mRequests) {
+			return new ArrayList<String>(mRequests);
+		}
+	}
+
+	/**
+	 * @return headers of the last request, names in lower case
+	 */
+	public Map<String, String> getLastHeaders() {
+		synchronized (mHeaders) {
+			return mHeaders.isEmpty() ? null : mHeaders.get(mHeaders.size() - 1);
+		}
+	}
+
+	public void stop() throws IOException {
+		mStopped = true;
+		mServerSocket.close();
+		synchronized (mSockets) {
+			for (Socket s : mSockets)
+				s.close();
+		}
+	}
+
+	private void acceptLoop() {
+		while (!mStopped) {
+			final Socket socket;
+			try {
+				socket = mServerSocket.accept();
+			} catch (IOException e) {
+				return;
+			}
+			mAccepted.incrementAndGet();
+			mSockets.add(socket);
+			Thread connection = new Thread("LocalHttpsServer connection") {
+				@Override
+				public void run() {
+					try {
+						serve(socket);
+					} catch (IOException e) {
+					} finally {
+						try {
+							socket.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			};
+			connection.setDaemon(true);
+			connection.start();
+		}
+	}
+
+	private void serve(Socket socket) throws IOException {
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		OutputStream out = socket.getOutputStream();
+		while (true) {
+			String requestLine = readLine(in);
+			if (requestLine == null || requestLine.length() == 0)
+				return;
+			Map<String, String> headers = new HashMap<String, String>();
+			String line;
+			while ((line = readLine(in)) != null && line.length() > 0) {
+				int colon = line.indexOf(':');
+				if (colon > 0)
+					headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+			String length = headers.get("content-length");
+			if (length != null) {
+				for (long n = Long.parseLong(length); n > 0; n--)
+					in.read();
+			}
+			String[] parts = requestLine.split(" ");
+			String path = parts[1];
+			mHeaders.add(headers);
+			mRequests.add(parts[0] + " " + path);
+
+			respond(out, mDocuments.get(path), headers);
+			if ("close".equalsIgnoreCase(headers.get("connection")))
+				return;
+		}
+	}
+
+	private void respond(OutputStream out, Document document, Map<String, String> headers) throws IOException {
+		int status = 404;
+		String body = "";
+		String etag = null;
+		String last_modified = null;
+		if (document != null) {
+			if (document.mDelay > 0) {
+				try {
+					Thread.sleep(document.mDelay);
+				} catch (InterruptedException e) {
+				}
+			}
+			status = document.mStatus;
+			body = document.mBody;
+			etag = document.mEtag;
+			last_modified = document.mLastModified;
+			if ((etag != null && etag.equals(headers.get("if-none-match")))
+					|| (last_modified != null && last_modified.equals(headers.get("if-modified-since")))) {
+				status = 304;
+				body = "";
+			}
+		}
+		byte[] bytes = body.getBytes("UTF-8");
+		StringBuilder response = new StringBuilder();
+		response.append("HTTP/1.1 ").append(status).append(status == 304 ? " Not Modified" : status < 400 ? " OK" : " Error").append("\r\n");
+		if (etag != null)
+			response.append("ETag: ").append(etag).append("\r\n");
+		if (last_modified != null)
+			response.append("Last-Modified: ").append(last_modified).append("\r\n");
+		if (status != 304)
+			response.append("Content-Type: application/json\r\nContent-Length: ").append(bytes.length).append("\r\n");
+		response.append("\r\n");
+		// One write, a second small record would wait for the delayed ack
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		message.write(response.toString().getBytes("ISO-8859-1"));
+		message.write(bytes);
+		out.write(message.toByteArray());
+		out.flush();
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n')
+				return new String(line.toByteArray(), "ISO-8859-1");
+			if (c != '\r')
+				line.write(c);
+		}
+		return line.size() == 0 ? null : new String(line.toByteArray(), "ISO-8859-1");
+	}
+}
@@ -0,0 +1,151 @@
+package se.leap.bitmaskclient.test;
+
+import java.io.ByteArrayInputStream;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Certificates for tests that talk TLS. SERVER_CA issued the certificate
+ * of LocalHttpsServer for localhost and 127.0.0.1, OTHER_CA is unrelated.
+ */
+public class TestCertificates {
+
+	public static final String SERVER_CA =
+			"-----BEGIN CERTIFICATE-----\n" +
+			"MIIC9zCCAd+gAwIBAgIJAOhM13UTV9DLMA0GCSqGSIb3DQEBCwUAMCAxHjAcBgNV\n" +
+			"BAMTFVRlc3QgUHJvdmlkZXIgUm9vdCBDQTAgFw0yNjEwMTgxNjIxMzFaGA8yMTI2\n" +
+			"MDkyNDE2MjEzMVowIDEeMBwGA1UEAxMVVGVzdCBQcm92aWRlciBSb290IENBMIIB\n" +
+			"IjANBgkqhkiG9w0BAQEFAAOCAQ8AMIIBCgKCAQEAyk5H8dQNdrLrGNxK/ng0wgXG\n" +
+			"GbxF7QxE+JrtBi5OjGAUslat4AH2ldnhsKBwY5sIHZQi54p80KVUZXsT1FczMz04\n" +
+			"BEfZCjpcjRxF8HCPetmrhIsN0nYAOLYPN/63bixuQKt+gCMDy79/0fhepjO0mIkQ\n" +
+			"2n7AmdUDKOgJ7sXfsTE/vZ0+0wxTHeMkeHUYv1Ck+kdqxt8vpzuBbKqJ15RJBE/g\n" +
+			"OtHC4ViPz7lkPArHgislKOR0hstQHWPjMS1U9nXOuad3qjJdX4jZ0UWk7cTC4gdZ\n" +
+			"ymM33iEiQWV33CZUq9iNTEDXTiA1rChurOaLPoedAlw5su5hxEgxFPQ2GlZB1QID\n" +
+			"AQABozIwMDAdBgNVHQ4EFgQU9ySREzJkrjxThxmCSku4SQZm7NgwDwYDVR0TAQH/\n" +
+			"BAUwAwEB/zANBgkqhkiG9w0BAQsFAAOCAQEAVxnFR60t6d2uY0GWwkDmm6GZKjOO\n" +
+			"0q5Iom/TbW7QNzyPMjQOYcDPGhxuA+nOJNsOCLsf2ETpemMgBKlTXDvv6iYHmSKL\n" +
+			"COirUkxqVfanr7k2LQ1ff3hQ7frttNZMitXo6BIFIsBsEIS9fXim8ZZEXxZENVTk\n" +
+			"8TBprxKweOKylmOMROxmUWQ8xt3RI5fcsb0dOnx/9tdld34Hewg+OEDXXwgZ/1Yo\n" +
+			"7xVQQooZozEpA9abAnmGjedFdaqofhxioCmFckH1vOwWhBN9EM4rfLWs3QpSkgNT\n" +
+			"PH42UHOMEBt2wRcL6ZU0fSTnoxkam0p/MM4AAzpZlbHma+Y8cEHjIUACWQ==\n" +
+			"-----END CERTIFICATE-----\n";
+
+	public static final String OTHER_CA =
+			"-----BEGIN CERTIFICATE-----\n" +
+			"MIIC5jCCAc6gAwIBAgIIWk+QAHWrl3EwDQYJKoZIhvcNAQELBQAwGDEWMBQGA1UE\n" +
+			"AxMNT3RoZXIgUm9vdCBDQTAgFw0yNjEwMTgxNjIxMzRaGA8yMTI2MDkyNDE2MjEz\n" +
+			"NFowGDEWMBQGA1UEAxMNT3RoZXIgUm9vdCBDQTCCASIwDQYJKoZIhvcNAQEBBQAD\n" +
+			"ggEPADCCAQoCggEBALeQTw1tNTP3KA3lCXBZohrme2x1XdEizxqSXGQDytuOQJ8s\n" +
+			"Qaqir7hUp1Wuo3FEOVOudnDtWWdygLbjI3CVi/B+T3QqQGeiuzlG1xUXqkAIKTGB\n" +
+			"6SDLcurjvwWs+dzzitYjTYNNDvAdNecinhTnslNGyLoiH/Pu79Bi0onLo9Iry8uS\n" +
+			"0Cj+jjxn+Z79d83jvi1zMoqi3WV35+/WyCcQtwAa81Rq7+uTxhuZMGsIYAdWubqI\n" +
+			"Ja8btQQWgVFauqGdAL6r5hejEMiFetS/SRBUmIFv8Q1uvukZAmHYyGIH5GdyhS5l\n" +
+			"diicCSnwRYSue8le7/XsihL/HE2ou90bAld+tq8CAwEAAaMyMDAwHQYDVR0OBBYE\n" +
+			"FJuWn8KF9jTER2QH9zQnSdPbIc8oMA8GA1UdEwEB/wQFMAMBAf8wDQYJKoZIhvcN\n" +
+			"AQELBQADggEBAIcNt7PY3uHwt919QUMARGAAKauebt8Qh2g4rE8MzmSTPklD+7Mf\n" +
+			"kmTtxzxnSGBahX1MeYs+MkUEIV+XXfCqUv+JG7Nbt+MVHdCCdQZmnfNnPVXCvhF0\n" +
+			"FYEoPoiWXOPCu9rYVkTwRrCbYPxchB0FMFD7xPhJsnU/Et3UZ0Xu/WN7Ikh+TesV\n" +
+			"QdYJY+xnTgK6zA2bt+dNlU0ElF2cWsTUvdOou9nTgBE31Ux7+aXvImAqdRiXirkL\n" +
+			"GyRAkk8wVL/7xLaPwNwodXrbN4B5kt4VOx+whzORqKu1GV4Qki5Ao4rO8JS729tw\n" +
+			"af6m65JOmxEIXtBOWYdGVXyY5UhY0y8z6dw=\n" +
+			"-----END CERTIFICATE-----\n";
+
+	// PKCS12 with the server key and certificate chain, password "changeit".
+	// 3DES and a SHA-1 MAC, the PBES2 files of newer keytools don't load on
+	// older Android releases.
+	private static final String SERVER_KEYSTORE =
+			"MIIMvgIBAzCCDIQGCSqGSIb3DQEHAaCCDHUEggxxMIIMbTCCBwcGCSqGSIb3DQEHBqCCBvgwggb0" +
+			"AgEAMIIG7QYJKoZIhvcNAQcBMBwGCiqGSIb3DQEMAQMwDgQI8GjlY920ltICAggAgIIGwLnsv6DG" +
+			"FDG48LRWs1uYRnGqCxLyijXyK0MlC1rMxlGbtD+JDAUQJ5IzxTtK4WYlJZG967nvW0wlkOmqlzEO" +
+			"a1fFNmTK8Q+AUGTfazoFLBRaUVF67osamlGnpIClzBzeiM7EyduXii8dfbaz8ceF+Lev4x05i0E6" +
+			"gghKqW5G3SOBl/6vnPjpknuobBH6SI/D1q06Uewi9QSV/HsIDWWouQxxA1lJi32YyGQLFALTHtOp" +
+			"S+g4fivgg7VhfoQg7pjOZUN3Xug337GF7hba5OYtanE68VHJbZQhoYTLT2ehqzunqOe9wTdWraQe" +
+			"zZRu8QMk51aCJ0FdASVAeuQttkjFkqOo23KWNBDdMPhW0YaRX60sFCyLkvsvVupDb5zQ9ay8x/+w" +
+			"whgmGY9ZJLU2e437NshnXVqXRSnOn8D8ocwEQfKqHAXTjLU7NVJo960GY9NB78wHIwZPhRXVPSZC" +
+			"f6EYzUpQ2M46HcZRyLSx01PBS4/i/fQ2JfQHYE4fKTlvDxZ/RodJwaa71/rCK3gpI0KLk5qPEmUD" +
+			"pqjmUUQoNxNFxMDq/WMp9kZSS/pDn158oKoKzfdPA0E4PldRbcq2FRYirpDtFIyZVbOJUm0tLMHN" +
+			"y02oSz32PSAzzXDotvh53BHwXO0zx8yDci5At5fvG4mQdm5DJGcWXE0HtRFNmd+GATJZiwLokB51" +
+			"Leg8QDHwiKSI6niIIiCISTw0sNtmpXVOGS3MeVt3XmvQX9jrcusV15UF+2SYlDW37m9bcGo/twO6" +
+			"ou3UYDqQR8PSjNkFJvQ248hPAQVGreczA5l1t3kKHDbkIh2In1UaiXE4FS4g39brZ4QOmE9PxRRW" +
+			"jakNzL2B6tABWopjGA3KllMwK2v0IjLEI9x1MJjj7L2IHoLLleTWf3GDA5QyxlMIdVJ3zuwL1uaj" +
+			"URpnPg20k+g0I5ed6d786D/7jPasQMk5kxzgcHTLtSt/bkDgNqw7dlD9W2yJ2DwBgc566z7idqGr" +
+			"JmM/N0q33ag9FVS0uId7eCArApqD1v//9BJloweVmNnyQ4mvd/Cat4wX2+KQdIGovchS+wg7tmpQ" +
+			"GDH76rCrVqTPYxqfkAnrLpnQl1ojKIEmZ9lX1q/nHmJxvj5U83GmLCNLT04atCQ5b2/liUdS3dm/" +
+			"Ve9w0YLoOv+Lv5w5t7lgboD8MPK1WsI3KG1gy0JvkD8IPRFuFs9QIchBxD74USO1WTdmqjXMlGP5" +
+			"X+DN8gqx4pRbhguxnMUNJak9G3dgGlW/S0khTzjRFU1wGZeU1363wdpLK4RoC3H/m2r8L43TcqKo" +
+			"bpHPXWpsG5V1//ZcXjJKqiFrfi78qrR+G1RslH4o6k9cjMca6e297dIR5JhTBUfWKC4xtmzfnNIZ" +
+			"19gwyNiUMMn1O/tbku9F+SIBTJcErirYIlWJXlfDLexH7PgqbP44jT6URQ7OA4PZerjAMyoSaVYM" +
+			"6lYkmbdrbM586anA9Jh3uo/lQoh1wsbsYDSwC5cngGi2Wb+Cmf+1qlbMWBzDBQ+llP9iYM4nd6z6" +
+			"CZhAse2SHpzU9MNHPJ1nvCEGmRxRDSq8xtTAaY/U50S/L/J9wjxQbtwZL8KxE2gYE+Ku1G5lq9Tx" +
+			"PotiYm93ZNceHvZ0woeW+wu1/ooYecJLfiqFL1DenlPpynby8H+uRfg/tVxY9K5BbV+BnD7rxZs1" +
+			"mtQmZ3Ub4Q8m8a4JI5qPd2l+JD4e3Buv1TXrJW1PGqMV8yBFF8m+Bfbpcu2yukOlWfr3hWfkY0Y6" +
+			"4UtedMy4SE0Tq8mzXBhmX6ILJq78Bi9csn0bti0Lp7mcA1iRuQFKv36JvQtiQ0wl0KqlGt5UTFmW" +
+			"1YfbaLrv6UzhdFU+J/9QudCUdvMCYQmU5Bb1AjCqABJHcbDR7fz1oz/pQx4GGevwzS92tztd6T1b" +
+			"uT/kggMzGCg1+nga7skriaYt0Bl4Fuc+wq45lnFOW+0NmPpfJIkg/+9p3l8yfFhYNwGgRE3vajsl" +
+			"o/38lt75QxibUK8l+BQOBulvwYrJpLA4UlnuvJBdp8eX5QVmY2CGPqxJ//OYFB8ZbE7yQAqoF5Bx" +
+			"CRNso9csc4O76ynUIn60Hq89YvlG2z3U7xn0Bg56reBD5Zs2/9gpe6VLKrjhh4A805GZ+zzQNKx7" +
+			"qAN9Bp75zDXB9ZO3Mc++o+EwuUVTMWH1z0NqVUWY9aeE4pk/d6AzPuFjX5JtGeKjSIHPQe9OTj4U" +
+			"3lgoXMrV3SGcXpJUapcD/9eNhZdVwWWnZqd50vnTRYT84TOGgxJFYnRpNhvlE7uk3ySSB8t8MBld" +
+			"1+M6ROlMbzWSGKWuaDCCBV4GCSqGSIb3DQEHAaCCBU8EggVLMIIFRzCCBUMGCyqGSIb3DQEMCgEC" +
+			"oIIE7jCCBOowHAYKKoZIhvcNAQwBAzAOBAiGk+rA+il/7QICCAAEggTIe7o6CGgHMLKqSG/svSR5" +
+			"Df85v3P4cCUtC1UsGh5cL9ZSRIvRihWe12nVbNrxtAUAgXSI1kbLfOHv8gxqFG90IBO/gaLweOQJ" +
+			"bwj1BruPJtEunCyWPZQWbVKZ+A+/z/UfWNrnUmol9uRgtbXmWvoTndRTw1Cf0Z9DajcM4U7wj5EJ" +
+			"oyTWsKZbyAa2rxFd3NzWqyVJ7w8cGqKzfVlA2lrz4Fq9tCFsfkfZfsdH6q7CSEWXbbN3M7AgsF5f" +
+			"A4ayb1e/rTnWEEmlIUMmNZUn882YslLqjaRTd6yH8UM0tFG//rpVbw0c0W5D5wjW5yWNChJ/gJAR" +
+			"EqN4r+0B+0pdr80fyj5kHiBlpVIfA2bE9K1PB0CHAbmnXScyY+Ornm0R0IRMLXmH4YHdQCLkr1mF" +
+			"K0sS/olhWwY+jTnxeJpUJFEEke5yVl0xIZmvPJPMIEBiWbeWp4YK1rl+1Pm3NHjmRpe9RX0WEoEu" +
+			"F3rY58FMnJ72vzzBubUEhYepoz6TVFz/DXmvkHnr7fAQFZVcEhaSjzRWCsKBDtCjZ5exxivcNOMA" +
+			"A/DlEuGzMr9dIu9il54WG2pr/iu14UE1U0mL0RktTIrEUgvfTTD8oRiL3HomZTAHuK8L4kLA6AXC" +
+			"eb8NPGRx654ZPBoAGhYJvbeSlwEFMHm5PaqtC2egmDCIyItkdPGzvHPKLl2Vu6KQgx/tchthoSii" +
+			"21g1cYNBHMWIVZiP8MWMp60sDYl6oSy4PDBWOnFaZ1Qdi+LfHktXTNvMZq+ypLHbrBqGhDoQVAUT" +
+			"tMHuZ4e0jkDlFGhjmfeCe6+w1VntPTW6m4VowPaiRF3ZTfQF2OPjPo7Ic9Mjs8SBJr3vyr4lTelC" +
+			"x9kGWCu5SEKnx4jsmar1Xzv3sZ2yllagYXhwfVy64gFtcIKDH4hGSp+3CBk6E50OigXDTQbm8hts" +
+			"BLQ8OU+q56IzDdEuyGKpT10ARZiFZxEjf44GJxqHjHyTZvsywCZZfE4GQ4ntzwrQACyrFP/g9ZKL" +
+			"WT+FpfI3D65HVe0/PHydOxETKUVJjQOGz3mC4D3Wea5cFWofj2C2OlzQ6uXPj/fsRAPD4QJvGWsj" +
+			"rhYHigJ3HU158vGe3ZlUJU++gtb6TTvxQIr+eLh7L75EwkQHBSPRMLZIszASjSanbWunbhj4cYTP" +
+			"GVEW6Pv5aU7j9Xf8x3XaUP2DB+ifTDBAbQi3vvDeP/7/4KFc5rqEZUJMXyEoqkJN7B/6t8c2VZTL" +
+			"SRNhol5SOHQQ9Fcg3Cn7D5qc/SYKvG9eU9hJRwAPGJPh3XI+cL+ITvd5vMb2U+bQLxVGLdsev/KG" +
+			"2J4N+qQJvo3AanXUSQGFntz3QG36wy2RHrczc9jXH3WnsswUmMDDhW4XK9YLkcph7AXWrmoZMIpC" +
+			"OlTGIgzXGZflLvOsmk3fx4E67vdJUvFJlULHW6IsKDVquHp8mGS6d4Af+y85EA5j1qeIyqFF8B7l" +
+			"3t4S2/wLV2PUd/LVvANXoEejCsmyNH5ixgy25hZam/FQJFXbZUAH/SUWasNeibS5lCSCHzUS6Tuh" +
+			"hJZcI+E57+wE/A4ALi08Pwql6TqW2YgeIvc9hlDbjPlPlOa6sD4YEhvTPqk6QoPKoaZV1QpHi9X6" +
+			"vP3hgYstN0LMoymVMUIwGwYJKoZIhvcNAQkUMQ4eDABzAGUAcgB2AGUAcjAjBgkqhkiG9w0BCRUx" +
+			"FgQUFr+n6V5p4eG+/iKDc7w8fDO7ByEwMTAhMAkGBSsOAwIaBQAEFL61Su89lasvc3L2wwoeHR6b" +
+			"CKR+BAjQN5VR0AjM5QICCAA=";
+
+	/**
+	 * @return context for a server presenting the certificate issued by SERVER_CA
+	 */
+	public static SSLContext serverContext() throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		keyStore.load(new ByteArrayInputStream(decodeBase64(SERVER_KEYSTORE)), "changeit".toCharArray());
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keyStore, "changeit".toCharArray());
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(kmf.getKeyManagers(), null, null);
+		return context;
+	}
+
+	// Neither android.util.Base64 nor java.util.Base64 is there on both sides
+	private static byte[] decodeBase64(String s) {
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		byte[] out = new byte[s.length() * 3 / 4];
+		int n = 0, bits = 0, value = 0;
+		for (int i = 0; i < s.length(); i++) {
+			int c = alphabet.indexOf(s.charAt(i));
+			if (c < 0)
+				continue;
+			value = (value << 6) | c;
+			bits += 6;
+			if (bits >= 8) {
+				bits -= 8;
+				out[n++] = (byte) (value >> bits);
+			}
+		}
+		byte[] result = new byte[n];
+		System.arraycopy(out, 0, result, 0, n);
+		return result;
+	}
+}
@@ -0,0 +1,90 @@
+package se.leap.bitmaskclient.test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.leap.openvpn.CoalescingSignal;
+import se.leap.openvpn.LogRingBuffer;
+import se.leap.openvpn.OpenVPN.LogItem;
+import se.leap.openvpn.OpenVPN.LogListener;
+
+import junit.framework.TestCase;
+
+public class testCoalescingSignal extends TestCase {
+
+	public void testOnlyOnePendingDrain() {
+		final AtomicInteger scheduled = new AtomicInteger();
+		CoalescingSignal signal = new CoalescingSignal(new CoalescingSignal.Scheduler() {
+			@Override
+			public void schedule(long delay) {
+				scheduled.incrementAndGet();
+			}
+		}, 16);
+
+		for (int i = 0; i < 100; i++)
+			signal.signal();
+		assertEquals(1, scheduled.get());
+
+		signal.beginDrain();
+		signal.signal();
+		signal.signal();
+		assertEquals(2, scheduled.get());
+		assertEquals(2, signal.getScheduled());
+	}
+
+	/**
+	 * Mirrors the log window: the log thread signals for every line, a single
+	 * thread plays the UI looper, drains from its cursor and notifies once per
+	 * drain. Compares messages and notifications with one of each per line.
+	 */
+	public void testBurstBenchmark() throws Exception {
+		final int burst = 200;
+		final LogRingBuffer buffer = new LogRingBuffer(512);
+		final ScheduledExecutorService ui = Executors.newSingleThreadScheduledExecutor();
+		final AtomicInteger notifications = new AtomicInteger();
+		final ArrayList<String> entries = new ArrayList<String>();
+		final long[] cursor = { buffer.getNextSequence() };
+		final CountDownLatch allShown = new CountDownLatch(1);
+
+		final CoalescingSignal[] signal = new CoalescingSignal[1];
+		final Runnable drain = new Runnable() {
+			@Override
+			public void run() {
+				signal[0].beginDrain();
+				ArrayList<LogItem> items = new ArrayList<LogItem>();
+				cursor[0] = buffer.read(cursor[0], items, 512);
+				for (LogItem item : items)
+					entries.add(item.getString(null));
+				if (!items.isEmpty())
+					notifications.incrementAndGet();
+				if (entries.size() == burst)
+					allShown.countDown();
+			}
+		};
+		signal[0] = new CoalescingSignal(new CoalescingSignal.Scheduler() {
+			@Override
+			public void schedule(long delay) {
+				ui.schedule(drain, delay, TimeUnit.MILLISECONDS);
+			}
+		}, 16);
+		buffer.addListener(new LogListener() {
+			@Override
+			public void newLog(LogItem logItem) {
+				signal[0].signal();
+			}
+		});
+
+		for (int i = 0; i < burst; i++)
+			buffer.add(new LogItem("line " + i));
+
+		assertTrue(allShown.await(5, TimeUnit.SECONDS));
+		ui.shutdown();
+		assertEquals("line 199", entries.get(burst - 1));
+		assertTrue(signal[0].getScheduled() <= 3);
+		assertTrue(notifications.get() <= signal[0].getScheduled());
+	}
+}
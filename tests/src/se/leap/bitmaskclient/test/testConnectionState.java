@@ -0,0 +1,23 @@
+package se.leap.bitmaskclient.test;
+
+import se.leap.openvpn.ConnectionState;
+
+import junit.framework.TestCase;
+
+public class testConnectionState extends TestCase {
+
+	public void testParseStateField() {
+		String line = "1384452456,GET_CONFIG,,,";
+		assertEquals(ConnectionState.GET_CONFIG, ConnectionState.parse(line, 11, 21));
+		assertEquals(ConnectionState.CONNECTED, ConnectionState.parse("CONNECTED"));
+		assertEquals(ConnectionState.FATAL, ConnectionState.parse(",FATAL,", 1, 6));
+	}
+
+	public void testPrefixesAreNotMatched() {
+		// AUTH must not match AUTH_FAILED and the reverse
+		assertEquals(ConnectionState.AUTH, ConnectionState.parse("AUTH"));
+		assertEquals(ConnectionState.AUTH_FAILED, ConnectionState.parse("AUTH_FAILED"));
+		assertEquals(ConnectionState.UNKNOWN, ConnectionState.parse("CONNECTE"));
+		assertEquals(ConnectionState.UNKNOWN, ConnectionState.parse(""));
+	}
+}
@@ -0,0 +1,62 @@
+package se.leap.bitmaskclient.test;
+
+import se.leap.openvpn.ConnectionTimeline;
+import se.leap.openvpn.LatencyHistogram;
+
+import junit.framework.TestCase;
+
+public class testConnectionTimeline extends TestCase {
+
+	public void testPhaseDurations() {
+		String gateway = "testPhaseDurations.example.org";
+		ConnectionTimeline timeline = new ConnectionTimeline(gateway);
+		timeline.startAttempt(1000);
+		timeline.state("RESOLVE", 1000);
+		timeline.state("WAIT", 1010);
+		timeline.state("AUTH", 1100);
+		timeline.state("GET_CONFIG", 1600);
+		timeline.callback("openTun", 1650, 1700);
+		timeline.state("ASSIGN_IP", 1700);
+		timeline.state("ADD_ROUTES", 1720);
+		timeline.state("CONNECTED", 1800);
+
+		assertEquals(500, ConnectionTimeline.getPhaseLatency(gateway, "AUTH").getMax());
+		assertEquals(100, ConnectionTimeline.getPhaseLatency(gateway, "GET_CONFIG").getMax());
+		assertEquals(50, ConnectionTimeline.getPhaseLatency(gateway, "openTun").getMax());
+		assertEquals(800, ConnectionTimeline.getPhaseLatency(gateway, ConnectionTimeline.TIME_TO_CONNECTED).getMax());
+		assertTrue(timeline.getBreakdown().contains("AUTH +100ms"));
+		assertTrue(ConnectionTimeline.getPhaseLatencies().containsKey(gateway + " AUTH"));
+
+		// A later state change must not count time spent connected
+		timeline.state("EXITING", 60000);
+		assertEquals(1, ConnectionTimeline.getPhaseLatency(gateway, "ADD_ROUTES").getCount());
+	}
+
+	public void testPercentilesAcrossSessions() {
+		String gateway = "testPercentilesAcrossSessions.example.org";
+		for (int i = 0; i < 10; i++) {
+			ConnectionTimeline timeline = new ConnectionTimeline(gateway);
+			long start = i * 10000;
+			timeline.startAttempt(start);
+			timeline.state("AUTH", start);
+			// One slow handshake out of ten
+			timeline.state("GET_CONFIG", start + (i == 9 ? 3000 : 200));
+			timeline.state("CONNECTED", start + (i == 9 ? 3100 : 300));
+		}
+		LatencyHistogram auth = ConnectionTimeline.getPhaseLatency(gateway, "AUTH");
+		assertEquals(10, auth.getCount());
+		assertEquals(255, auth.getPercentile(50));
+		assertEquals(3000, auth.getPercentile(99));
+	}
+
+	public void testReconnectStartsNewAttempt() {
+		String gateway = "testReconnectStartsNewAttempt.example.org";
+		ConnectionTimeline timeline = new ConnectionTimeline(gateway);
+		timeline.startAttempt(0);
+		timeline.state("WAIT", 0);
+		timeline.state("RECONNECTING", 5000);
+		timeline.state("WAIT", 20000);
+		timeline.state("CONNECTED", 21000);
+		assertEquals(1000, ConnectionTimeline.getPhaseLatency(gateway, ConnectionTimeline.TIME_TO_CONNECTED).getMax());
+	}
+}
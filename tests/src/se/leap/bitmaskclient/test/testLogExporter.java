@@ -0,0 +1,97 @@
+package se.leap.bitmaskclient.test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import se.leap.openvpn.LogExporter;
+import se.leap.openvpn.LogJournal;
+import se.leap.openvpn.OpenVPN.LogItem;
+
+import junit.framework.TestCase;
+
+public class testLogExporter extends TestCase {
+
+	private File dir;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = File.createTempFile("export", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+		super.tearDown();
+	}
+
+	public void testLinesAreWrittenInOrder() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		LogExporter exporter = new LogExporter(out, null);
+		exporter.newLog(new LogItem(LogItem.INFO, "first"));
+		exporter.newLog(new LogItem(LogItem.ERROR, "second \u00fcml"));
+		exporter.close();
+
+		String[] lines = new String(out.toByteArray(), "UTF-8").split("\n");
+		assertEquals(2, lines.length);
+		assertTrue(lines[0], lines[0].matches("\\d\\d-\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d first"));
+		assertTrue(lines[1].endsWith(" second \u00fcml"));
+	}
+
+	public void testGzipStreamFromJournal() throws Exception {
+		LogJournal journal = new LogJournal(dir, 256 * 1024, 1);
+		journal.open();
+		for (int i = 0; i < 1000; i++)
+			journal.append(new LogItem(LogItem.INFO, "line " + i));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		LogExporter exporter = new LogExporter(new GZIPOutputStream(out), null);
+		journal.read(exporter);
+		exporter.close();
+		assertEquals(1000, exporter.getLines());
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())), "UTF-8"));
+		int n = 0;
+		String line;
+		while ((line = in.readLine()) != null)
+			assertTrue(line, line.endsWith(" line " + n++));
+		assertEquals(1000, n);
+	}
+
+	/**
+	 * Export time per line stays the same when the log grows, the old string
+	 * concatenation grew quadratically.
+	 */
+	public void testExportScalesLinearly() throws Exception {
+		long small = timeExport(2000);
+		long large = timeExport(20000);
+		// Ten times the lines, allow for noise but not for n^2
+		assertTrue(large < small * 40);
+	}
+
+	private long timeExport(int lines) throws Exception {
+		LogItem item = new LogItem(LogItem.INFO, "TLS: Initial packet from [AF_INET]198.51.100.7:1194, sid=8c4e2ab7 3fd1a7a9");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		// Warm up
+		LogExporter exporter = new LogExporter(out, null);
+		for (int i = 0; i < lines; i++)
+			exporter.newLog(item);
+		exporter.close();
+
+		out.reset();
+		long start = System.nanoTime();
+		exporter = new LogExporter(out, null);
+		for (int i = 0; i < lines; i++)
+			exporter.newLog(item);
+		exporter.close();
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,139 @@
+package se.leap.bitmaskclient.test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import se.leap.openvpn.LogJournal;
+import se.leap.openvpn.OpenVPN.LogItem;
+
+import junit.framework.TestCase;
+
+public class testLogJournal extends TestCase {
+
+	private File dir;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = File.createTempFile("journal", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+		super.tearDown();
+	}
+
+	public void testItemsSurviveReopen() throws Exception {
+		LogJournal journal = new LogJournal(dir, 64 * 1024, 1);
+		assertEquals(0, journal.open().size());
+		journal.append(new LogItem(LogItem.ERROR, "plain message"));
+		journal.append(new LogItem(LogItem.INFO, 0x7f050001, new Object[] { "SM-G900", 17, 42L }));
+
+		List<LogItem> items = new LogJournal(dir, 64 * 1024, 1).open();
+		assertEquals(2, items.size());
+		assertEquals("plain message", items.get(0).getString(null));
+		assertEquals("Log (no context) resid 2131034113|SM-G900|17|42", items.get(1).getString(null));
+		assertTrue(items.get(0).getTime() > 0);
+	}
+
+	public void testRotationKeepsPreviousSegment() throws Exception {
+		LogJournal journal = new LogJournal(dir, 4096, 1);
+		journal.open();
+		for (int i = 0; i < 1000; i++)
+			journal.append(new LogItem(LogItem.INFO, "line " + i));
+
+		List<LogItem> items = new LogJournal(dir, 4096, 1).open();
+		assertTrue(items.size() > 0 && items.size() < 1000);
+		assertEquals("line 999", items.get(items.size() - 1).getString(null));
+		// Oldest first and without gaps
+		int first = Integer.parseInt(items.get(0).getString(null).substring(5));
+		assertEquals(999 - first + 1, items.size());
+	}
+
+	public void testTornRecordEndsSegment() throws Exception {
+		LogJournal journal = new LogJournal(dir, 4096, 1);
+		journal.open();
+		journal.append(new LogItem(LogItem.INFO, "complete"));
+		journal.append(new LogItem(LogItem.INFO, "torn"));
+
+		// Process death before the length of the second record was written
+		RandomAccessFile raf = new RandomAccessFile(new File(dir, "openvpn-log.0"), "rw");
+		int second = 8 + 4 + (1 + 8 + 4 + 1 + 2 + "complete".length() + 1);
+		raf.seek(second);
+		raf.writeInt(0);
+		raf.close();
+
+		journal = new LogJournal(dir, 4096, 1);
+		List<LogItem> items = journal.open();
+		assertEquals(1, items.size());
+		// Appending continues after the last complete record
+		journal.append(new LogItem(LogItem.INFO, "after"));
+		items = new LogJournal(dir, 4096, 1).open();
+		assertEquals("after", items.get(1).getString(null));
+	}
+
+	public void testResourcesOfOtherVersionBecomeText() throws Exception {
+		LogJournal journal = new LogJournal(dir, 4096, 1);
+		journal.open();
+		journal.append(new LogItem(LogItem.INFO, 0x7f050001, new Object[] { "x" }));
+
+		List<LogItem> items = new LogJournal(dir, 4096, 2).open();
+		assertEquals(1, items.size());
+		assertEquals("Log (no context) resid 2131034113|x", items.get(0).getString(null));
+	}
+
+	public void testClearDropsBothSegments() throws Exception {
+		LogJournal journal = new LogJournal(dir, 4096, 1);
+		journal.open();
+		for (int i = 0; i < 200; i++)
+			journal.append(new LogItem(LogItem.INFO, "line " + i));
+		journal.clear();
+		journal.append(new LogItem(LogItem.INFO, "after"));
+
+		List<LogItem> items = new LogJournal(dir, 4096, 1).open();
+		assertEquals(1, items.size());
+		assertEquals("after", items.get(0).getString(null));
+	}
+
+	public void testCorruptRecordEndsSegment() throws Exception {
+		LogJournal journal = new LogJournal(dir, 4096, 1);
+		journal.open();
+		journal.append(new LogItem(LogItem.INFO, "first"));
+		journal.append(new LogItem(LogItem.INFO, "second"));
+		journal.append(new LogItem(LogItem.INFO, "third"));
+
+		// A negative argument count in the second record
+		RandomAccessFile raf = new RandomAccessFile(new File(dir, "openvpn-log.0"), "rw");
+		int second = 8 + 4 + (1 + 8 + 4 + 1 + 2 + "first".length() + 1);
+		raf.seek(second + 4 + 1 + 8 + 4 + 1 + 2 + "second".length());
+		raf.writeByte(-1);
+		raf.close();
+
+		journal = new LogJournal(dir, 4096, 1);
+		List<LogItem> items = journal.open();
+		assertEquals(1, items.size());
+		assertEquals("first", items.get(0).getString(null));
+		// The unreadable rest is overwritten
+		journal.append(new LogItem(LogItem.INFO, "after"));
+		items = new LogJournal(dir, 4096, 1).open();
+		assertEquals(2, items.size());
+		assertEquals("after", items.get(1).getString(null));
+	}
+
+	public void testAppendCost() throws Exception {
+		LogJournal journal = new LogJournal(dir, 256 * 1024, 1);
+		journal.open();
+		LogItem item = new LogItem(LogItem.INFO, 0x7f050001, new Object[] { "SM-G900", 17, 42L });
+		int appends = 200000;
+		long start = System.nanoTime();
+		for (int i = 0; i < appends; i++)
+			journal.append(item);
+		long elapsed = System.nanoTime() - start;
+		// A copy into the mapping, far below a write() per line
+		assertTrue(elapsed / appends < 20000);
+	}
+}
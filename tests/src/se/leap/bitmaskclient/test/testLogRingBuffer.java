@@ -0,0 +1,166 @@
+package se.leap.bitmaskclient.test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.leap.openvpn.LogRingBuffer;
+import se.leap.openvpn.OpenVPN.LogItem;
+import se.leap.openvpn.OpenVPN.LogListener;
+
+import junit.framework.TestCase;
+
+public class testLogRingBuffer extends TestCase {
+
+	public void testCapacityIsPowerOfTwo() {
+		assertEquals(512, new LogRingBuffer(500).getCapacity());
+		assertEquals(512, new LogRingBuffer(512).getCapacity());
+	}
+
+	public void testReadKeepsOnlyNewestEntries() {
+		LogRingBuffer buffer = new LogRingBuffer(8);
+		for (int i = 0; i < 20; i++)
+			buffer.add(new LogItem("line" + i));
+
+		ArrayList<LogItem> items = new ArrayList<LogItem>();
+		long cursor = buffer.read(0, items, 100);
+		assertEquals(20, cursor);
+		assertEquals(8, items.size());
+		assertEquals("line12", items.get(0).getString(null));
+		assertEquals("line19", items.get(7).getString(null));
+		assertNull(buffer.get(11));
+		assertEquals("line19", buffer.get(19).getString(null));
+	}
+
+	public void testListenerGetsEntriesInOrder() throws Exception {
+		LogRingBuffer buffer = new LogRingBuffer(64);
+		buffer.add(new LogItem("before"));
+		final ArrayList<String> got = new ArrayList<String>();
+		final CountDownLatch done = new CountDownLatch(10);
+		buffer.addListener(new LogListener() {
+			@Override
+			public void newLog(LogItem logItem) {
+				got.add(logItem.getString(null));
+				done.countDown();
+			}
+		});
+		for (int i = 0; i < 10; i++)
+			buffer.add(new LogItem("line" + i));
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(10, got.size());
+		assertEquals("line0", got.get(0));
+		assertEquals("line9", got.get(9));
+	}
+
+	public void testIncrementalReadFromCursor() throws Exception {
+		final LogRingBuffer buffer = new LogRingBuffer(64);
+		for (int i = 0; i < 5; i++)
+			buffer.add(new LogItem("line" + i));
+
+		ArrayList<LogItem> items = new ArrayList<LogItem>();
+		long cursor = buffer.read(0, items, 100);
+		assertEquals(5, items.size());
+		assertEquals(4, items.get(4).getSequence());
+
+		// Only the new entries are read again
+		buffer.add(new LogItem("line5"));
+		items.clear();
+		cursor = buffer.read(cursor, items, 100);
+		assertEquals(1, items.size());
+		assertEquals("line5", items.get(0).getString(null));
+
+		// A listener registered at the cursor misses nothing and sees nothing twice
+		final ArrayList<String> got = new ArrayList<String>();
+		final CountDownLatch done = new CountDownLatch(2);
+		buffer.add(new LogItem("line6"));
+		buffer.addListener(new LogListener() {
+			@Override
+			public void newLog(LogItem logItem) {
+				got.add(logItem.getString(null));
+				done.countDown();
+			}
+		}, cursor);
+		buffer.add(new LogItem("line7"));
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals("line6", got.get(0));
+		assertEquals("line7", got.get(1));
+	}
+
+	/**
+	 * Four producers log as fast as they can while a listener consumes.
+	 * Every entry is either delivered or counted as dropped, and the entries of
+	 * a producer arrive in the order it logged them.
+	 */
+	public void testFourProducers() throws Exception {
+		final int producers = 4;
+		final int perProducer = 250000;
+		final LogRingBuffer buffer = new LogRingBuffer(4096);
+
+		final AtomicLong delivered = new AtomicLong();
+		final int[] lastSeen = new int[producers];
+		final boolean[] ordered = { true };
+		for (int p = 0; p < producers; p++)
+			lastSeen[p] = -1;
+		buffer.addListener(new LogListener() {
+			@Override
+			public void newLog(LogItem logItem) {
+				String s = logItem.getString(null);
+				int producer = s.charAt(0) - '0';
+				int n = Integer.parseInt(s.substring(2));
+				if (n <= lastSeen[producer])
+					ordered[0] = false;
+				lastSeen[producer] = n;
+				delivered.incrementAndGet();
+			}
+		});
+
+		// Preformat so the measurement only covers the buffer
+		final LogItem[][] items = new LogItem[producers][perProducer];
+		for (int p = 0; p < producers; p++)
+			for (int i = 0; i < perProducer; i++)
+				items[p][i] = new LogItem(p + ":" + i);
+
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final int id = p;
+			threads[p] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (LogItem item : items[id])
+						buffer.add(item);
+				}
+			};
+			threads[p].start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		for (Thread t : threads)
+			t.join();
+		long elapsed = System.nanoTime() - begin;
+
+		long total = (long) producers * perProducer;
+		assertEquals(total, buffer.getNextSequence());
+		long deadline = System.currentTimeMillis() + 10000;
+		while (delivered.get() + buffer.getDropped() < total && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+
+		// OpenVPN logs a few lines a second, a million must not take more than seconds
+		assertTrue("adding took " + elapsed / 1000000 + " ms", elapsed < TimeUnit.SECONDS.toNanos(10));
+		assertEquals(total, delivered.get() + buffer.getDropped());
+		assertTrue(ordered[0]);
+
+		// The newest entries are all in the buffer
+		ArrayList<LogItem> newest = new ArrayList<LogItem>();
+		buffer.read(0, newest, buffer.getCapacity());
+		assertEquals(buffer.getCapacity(), newest.size());
+	}
+}
@@ -0,0 +1,200 @@
+package se.leap.bitmaskclient.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import se.leap.openvpn.LatencyHistogram;
+import se.leap.openvpn.ManagementCommandChannel;
+import se.leap.openvpn.ManagementCommandChannel.Command;
+
+import junit.framework.TestCase;
+
+public class testManagementCommandChannel extends TestCase {
+
+	/** Records every write() call separately */
+	private static class RecordingStream extends OutputStream {
+		List<String> writes = new ArrayList<String>();
+		List<Boolean> withFds = new ArrayList<Boolean>();
+		boolean fdsAttached = false;
+		ByteArrayOutputStream current = new ByteArrayOutputStream();
+
+		@Override
+		public synchronized void write(int b) {
+			current.write(b);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			current.write(b, off, len);
+		}
+
+		@Override
+		public synchronized void flush() {
+			writes.add(new String(current.toByteArray()));
+			withFds.add(fdsAttached);
+			current.reset();
+		}
+	}
+
+	private RecordingStream out;
+	private ManagementCommandChannel channel;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		out = new RecordingStream();
+		channel = new ManagementCommandChannel(out, new ManagementCommandChannel.FileDescriptorSender() {
+			@Override
+			public void setFileDescriptorsForSend(FileDescriptor[] fds) {
+				out.fdsAttached = fds != null;
+			}
+		});
+	}
+
+	protected void tearDown() throws Exception {
+		channel.close();
+		super.tearDown();
+	}
+
+	private void startWriter() {
+		new Thread(channel, "testWriter").start();
+	}
+
+	public void testBatchedCommandsAreWrittenOnce() throws Exception {
+		// Queue before the writer runs so all three end up in one batch
+		Command[] sent = channel.send("hold release\n", "bytecount 2\n", "state on\n");
+		startWriter();
+		assertTrue(sent[2].awaitWritten(1, TimeUnit.SECONDS));
+
+		assertEquals(1, out.writes.size());
+		assertEquals("hold release\nbytecount 2\nstate on\n", out.writes.get(0));
+	}
+
+	public void testRepliesCompleteCommandsInOrder() throws Exception {
+		startWriter();
+		Command hold = channel.send("hold release\n");
+		Command proxy = channel.send("proxy FOO\n");
+		assertTrue(proxy.awaitWritten(1, TimeUnit.SECONDS));
+		assertFalse(hold.isDone());
+
+		channel.processReply("SUCCESS: hold release succeeded", true);
+		channel.processReply("ERROR: unknown command", false);
+
+		assertEquals("SUCCESS: hold release succeeded", hold.get(1, TimeUnit.SECONDS));
+		assertTrue(hold.isSuccess());
+		assertEquals("ERROR: unknown command", proxy.get(1, TimeUnit.SECONDS));
+		assertFalse(proxy.isSuccess());
+		assertNull(channel.processReply("SUCCESS: nobody asked", true));
+	}
+
+	public void testRoundTripIsRecordedPerVerb() throws Exception {
+		startWriter();
+		long before = ManagementCommandChannel.getLatency("needok").getCount();
+		Command needok = channel.send("needok 'ROUTE' ok\n");
+		assertEquals("needok", needok.getVerb());
+		assertTrue(needok.awaitWritten(1, TimeUnit.SECONDS));
+		Thread.sleep(20);
+		channel.processReply("SUCCESS: needok command succeeded", true);
+
+		assertTrue(needok.getRoundTrip() >= 20);
+		LatencyHistogram latency = ManagementCommandChannel.getLatency("needok");
+		assertEquals(before + 1, latency.getCount());
+		assertTrue(ManagementCommandChannel.getLatencies().containsKey("needok"));
+	}
+
+	public void testLatencyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentile(50));
+		for (int i = 0; i < 90; i++)
+			histogram.record(10);
+		for (int i = 0; i < 10; i++)
+			histogram.record(1500);
+
+		assertEquals(100, histogram.getCount());
+		assertEquals(1500, histogram.getMax());
+		assertEquals(159, histogram.getMean());
+		// 10 ms falls into the 8..15 ms bucket
+		assertEquals(15, histogram.getPercentile(50));
+		assertEquals(15, histogram.getPercentile(90));
+		assertEquals(1500, histogram.getPercentile(99));
+	}
+
+	public void testFdsOnlyOnTheirOwnWrite() throws Exception {
+		channel.send("state on\n");
+		Command needok = channel.send("needok 'OPENTUN' ok\n", new FileDescriptor[] { new FileDescriptor() });
+		Command after = channel.send("bytecount 2\n");
+		startWriter();
+		assertTrue(after.awaitWritten(1, TimeUnit.SECONDS));
+		assertTrue(needok.awaitWritten(1, TimeUnit.SECONDS));
+
+		assertEquals(3, out.writes.size());
+		assertEquals("state on\n", out.writes.get(0));
+		assertEquals(Boolean.FALSE, out.withFds.get(0));
+		assertEquals("needok 'OPENTUN' ok\n", out.writes.get(1));
+		assertEquals(Boolean.TRUE, out.withFds.get(1));
+		assertEquals(Boolean.FALSE, out.withFds.get(2));
+	}
+
+	public void testConcurrentSendersDoNotInterleave() throws Exception {
+		startWriter();
+		final int threads = 4;
+		final int perThread = 500;
+		Thread[] senders = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			senders[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perThread; i++)
+						channel.send("echo thread" + id + " line" + i + "\n");
+				}
+			};
+			senders[t].start();
+		}
+		for (Thread t : senders)
+			t.join();
+		Command last = channel.send("echo done\n");
+		assertTrue(last.awaitWritten(5, TimeUnit.SECONDS));
+
+		StringBuilder all = new StringBuilder();
+		for (String w : out.writes)
+			all.append(w);
+		String[] lines = all.toString().split("\n");
+		assertEquals(threads * perThread + 1, lines.length);
+		for (String line : lines)
+			assertTrue(line, line.matches("echo (thread\\d line\\d+|done)"));
+	}
+
+	public void testCloseFailsPendingCommands() throws Exception {
+		startWriter();
+		Command pending = channel.send("signal SIGINT\n");
+		assertTrue(pending.awaitWritten(1, TimeUnit.SECONDS));
+		channel.close();
+		assertNull(pending.get(1, TimeUnit.SECONDS));
+		assertFalse(pending.isSuccess());
+
+		Command late = channel.send("signal SIGUSR1\n");
+		assertTrue(late.isDone());
+	}
+
+	public void testWriteErrorFailsCommands() throws Exception {
+		ManagementCommandChannel broken = new ManagementCommandChannel(new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("closed");
+			}
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				throw new IOException("closed");
+			}
+		}, null);
+		Command c = broken.send("hold release\n");
+		new Thread(broken).start();
+		assertNull(c.get(1, TimeUnit.SECONDS));
+		assertFalse(c.isSuccess());
+	}
+}
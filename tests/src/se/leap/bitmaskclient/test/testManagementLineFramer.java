@@ -0,0 +1,138 @@
+package se.leap.bitmaskclient.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import se.leap.openvpn.ManagementLineFramer;
+
+import junit.framework.TestCase;
+
+public class testManagementLineFramer extends TestCase {
+
+	// Recorded from a management session with verb 3 and bytecount 1
+	private static final String[] TRANSCRIPT = {
+		">INFO:OpenVPN Management Interface Version 1 -- type 'help' for more info",
+		">HOLD:Waiting for hold release",
+		"SUCCESS: hold release succeeded",
+		"SUCCESS: bytecount interval changed",
+		"SUCCESS: real-time state notification set to ON",
+		">LOG:1389965225,I,OpenVPN 2.3_master arm-unknown-linux-androideabi [SSL (OpenSSL)] [LZO] [MH] [IPv6] built on Jan 14 2014",
+		">STATE:1389965225,RESOLVE,,,",
+		">NEED-OK:Need 'PROTECTFD' confirmation MSG:protect_fd_nonlocal",
+		">STATE:1389965226,WAIT,,,",
+		">STATE:1389965226,AUTH,,,",
+		">LOG:1389965227,I,[vpn.bitmask.net] Peer Connection Initiated with [AF_INET]198.51.100.7:443",
+		">STATE:1389965228,GET_CONFIG,,,",
+		">STATE:1389965228,ASSIGN_IP,,10.41.0.6,",
+		">NEED-OK:Need 'IFCONFIG' confirmation MSG:10.41.0.6 255.255.248.0 1500 subnet",
+		">NEED-OK:Need 'ROUTE' confirmation MSG:0.0.0.0 0.0.0.0",
+		">NEED-OK:Need 'DNSSERVER' confirmation MSG:10.41.0.1",
+		">NEED-OK:Need 'OPENTUN' confirmation MSG:tun",
+		">STATE:1389965229,CONNECTED,SUCCESS,10.41.0.6,198.51.100.7",
+		">BYTECOUNT:5874,3270",
+		">BYTECOUNT:23412,11002",
+		">LOG:1389965240,W,WARNING: 'link-mtu' is used inconsistently, local='link-mtu 1558', remote='link-mtu 1542' \u00e4\u00f6\u00fc\u20ac",
+		">BYTECOUNT:1048576,524288",
+		"SUCCESS: signal SIGINT thrown",
+		">STATE:1389965250,EXITING,SIGINT,,",
+	};
+
+	private static class CollectingHandler implements ManagementLineFramer.LineHandler {
+		List<String> lines = new ArrayList<String>();
+
+		@Override
+		public void processLine(String line) {
+			lines.add(line);
+		}
+	}
+
+	/** Returns at most chunk bytes per read like a socket under load would */
+	private static class ChunkedInputStream extends InputStream {
+		private final InputStream mIn;
+		private final int mChunk;
+
+		ChunkedInputStream(byte[] data, int chunk) {
+			mIn = new ByteArrayInputStream(data);
+			mChunk = chunk;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return mIn.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return mIn.read(b, off, Math.min(len, mChunk));
+		}
+	}
+
+	private static byte[] transcriptBytes(String lineEnding) throws UnsupportedEncodingException {
+		StringBuilder sb = new StringBuilder();
+		for (String line : TRANSCRIPT)
+			sb.append(line).append(lineEnding);
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	private List<String> replay(byte[] data, int chunk, int bufferSize) throws IOException {
+		ManagementLineFramer framer = new ManagementLineFramer(bufferSize);
+		CollectingHandler handler = new CollectingHandler();
+		InputStream in = new ChunkedInputStream(data, chunk);
+		while (framer.read(in) != -1)
+			framer.drainLines(handler);
+		assertEquals(0, framer.pending());
+		return handler.lines;
+	}
+
+	private void assertTranscript(List<String> lines) {
+		assertEquals(TRANSCRIPT.length, lines.size());
+		for (int i = 0; i < TRANSCRIPT.length; i++)
+			assertEquals(TRANSCRIPT[i], lines.get(i));
+	}
+
+	public void testReplayCRLF() throws IOException {
+		byte[] data = transcriptBytes("\r\n");
+		int[] chunks = {1, 2, 3, 7, 64, 2048};
+		for (int chunk : chunks)
+			assertTranscript(replay(data, chunk, 2048));
+	}
+
+	public void testReplayLF() throws IOException {
+		assertTranscript(replay(transcriptBytes("\n"), 13, 2048));
+	}
+
+	public void testLinesLargerThanBuffer() throws IOException {
+		// Forces both compaction and growth of the buffer
+		assertTranscript(replay(transcriptBytes("\r\n"), 5, 16));
+	}
+
+	public void testPartialLineIsKept() throws UnsupportedEncodingException {
+		ManagementLineFramer framer = new ManagementLineFramer();
+		CollectingHandler handler = new CollectingHandler();
+
+		byte[] first = ">BYTECOUNT:12".getBytes("UTF-8");
+		framer.feed(first, 0, first.length);
+		assertEquals(0, framer.drainLines(handler));
+		assertEquals(first.length, framer.pending());
+
+		byte[] second = "34,56\r\n>STATE:1,".getBytes("UTF-8");
+		framer.feed(second, 0, second.length);
+		assertEquals(1, framer.drainLines(handler));
+		assertEquals(">BYTECOUNT:1234,56", handler.lines.get(0));
+		assertEquals(">STATE:1,".length(), framer.pending());
+	}
+
+	public void testEmptyLines() throws UnsupportedEncodingException {
+		ManagementLineFramer framer = new ManagementLineFramer();
+		CollectingHandler handler = new CollectingHandler();
+		byte[] data = "\r\n\n".getBytes("UTF-8");
+		framer.feed(data, 0, data.length);
+		assertEquals(2, framer.drainLines(handler));
+		assertEquals("", handler.lines.get(0));
+		assertEquals("", handler.lines.get(1));
+	}
+}
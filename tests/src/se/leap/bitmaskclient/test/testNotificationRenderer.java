@@ -0,0 +1,124 @@
+package se.leap.bitmaskclient.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import se.leap.openvpn.CoalescingSignal;
+import se.leap.openvpn.NotificationRenderer;
+
+import junit.framework.TestCase;
+
+public class testNotificationRenderer extends TestCase {
+
+	private static class Recorder implements NotificationRenderer.Target, CoalescingSignal.Scheduler {
+		List<String> posted = new ArrayList<String>();
+		List<Long> scheduled = new ArrayList<Long>();
+		int cancels = 0;
+
+		@Override
+		public void post(int icon, String text, String ticker, boolean ongoing) {
+			posted.add(icon + ":" + text);
+		}
+
+		@Override
+		public void cancel() {
+			cancels++;
+		}
+
+		@Override
+		public void schedule(long delay) {
+			scheduled.add(delay);
+		}
+	}
+
+	private Recorder recorder;
+	private NotificationRenderer renderer;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		recorder = new Recorder();
+		renderer = new NotificationRenderer(recorder, recorder, 1000);
+	}
+
+	public void testFirstUpdateIsPostedRightAway() {
+		renderer.update(1, "WAIT", "WAIT", true, 5000);
+		assertEquals("[1:WAIT]", recorder.posted.toString());
+		assertTrue(recorder.scheduled.isEmpty());
+	}
+
+	public void testSameContentIsNotPostedAgain() {
+		renderer.update(1, "AUTH", "AUTH", true, 0);
+		renderer.update(1, "AUTH", "AUTH", true, 5000);
+		renderer.update(1, "AUTH", "AUTH", true, 10000);
+		assertEquals(1, renderer.getPosts());
+		assertEquals(2, renderer.getDropped());
+	}
+
+	public void testFlappingConnectionIsRateLimited() {
+		renderer.update(1, "RECONNECTING", "", true, 0);
+		// A network flap inside one interval
+		String[] cycle = { "RECONNECTING", "WAIT", "AUTH", "GET_CONFIG" };
+		for (int i = 0; i < 100; i++)
+			renderer.update(1, cycle[i % cycle.length], "", true, 1 + i * 5);
+		assertEquals(1, recorder.posted.size());
+		assertEquals(1, recorder.scheduled.size());
+		assertEquals(Long.valueOf(994), recorder.scheduled.get(0));
+
+		// Only the newest content is posted when the interval is over
+		renderer.flush(1000);
+		assertEquals("[1:RECONNECTING, 1:GET_CONFIG]", recorder.posted.toString());
+		assertEquals(99, renderer.getDropped());
+	}
+
+	public void testEarlyFlushReschedules() {
+		renderer.update(1, "WAIT", "", true, 0);
+		renderer.update(1, "AUTH", "", true, 100);
+		renderer.flush(600);
+		assertEquals(1, recorder.posted.size());
+		assertEquals("[900, 400]", recorder.scheduled.toString());
+		renderer.flush(1000);
+		assertEquals(2, recorder.posted.size());
+	}
+
+	public void testReturningToShownContentDropsPending() {
+		renderer.update(1, "WAIT", "", true, 0);
+		renderer.update(1, "AUTH", "", true, 100);
+		renderer.update(1, "WAIT", "", true, 200);
+		renderer.flush(1000);
+		assertEquals("[1:WAIT]", recorder.posted.toString());
+	}
+
+	/**
+	 * The service is destroyed right after its last state, its scheduled
+	 * flush never runs. The ongoing notification must not stay.
+	 */
+	public void testTerminalUpdateInsideIntervalThenDestroy() {
+		renderer.update(1, "RECONNECTING", "", true, 0);
+		renderer.update(1, "WAIT", "", true, 100);
+		renderer.updateNow(2, "not connected", "", false, 200);
+		// Destroyed, nothing else happens
+		assertEquals("[1:RECONNECTING, 2:not connected]", recorder.posted.toString());
+
+		// A flush that still comes is harmless
+		renderer.flush(1000);
+		assertEquals(2, recorder.posted.size());
+		renderer.updateNow(2, "not connected", "", false, 1100);
+		assertEquals(2, recorder.posted.size());
+	}
+
+	public void testCancelIsImmediate() {
+		renderer.update(1, "WAIT", "", true, 0);
+		renderer.update(1, "AUTH", "", true, 100);
+		renderer.cancel();
+		assertEquals(1, recorder.cancels);
+		renderer.flush(1000);
+		assertEquals(1, recorder.posted.size());
+
+		// Hidden, the same content has to be posted again
+		renderer.update(1, "WAIT", "", true, 2000);
+		assertEquals(2, recorder.posted.size());
+		renderer.cancel();
+		renderer.cancel();
+		assertEquals(2, recorder.cancels);
+	}
+}
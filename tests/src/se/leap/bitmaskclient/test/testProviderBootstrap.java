@@ -0,0 +1,221 @@
+package se.leap.bitmaskclient.test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import se.leap.bitmaskclient.ProviderBootstrap;
+import se.leap.bitmaskclient.ProviderConnections;
+import se.leap.bitmaskclient.ProviderTrust;
+
+import junit.framework.TestCase;
+
+public class testProviderBootstrap extends TestCase {
+
+	private static final long DELAY = 150;
+
+	private LocalHttpsServer server;
+	private SSLSocketFactory factory;
+	private ExecutorService executor;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new LocalHttpsServer();
+		server.put("/ca.crt", 200, TestCertificates.SERVER_CA);
+		server.put("/provider.json", 200, providerJson("1"));
+		server.put("/1/config/eip-service.json", 200, "{\"serial\":1}");
+		server.put("/2/config/eip-service.json", 200, "{\"serial\":2}");
+		ProviderTrust.invalidate();
+		factory = ProviderConnections.getSocketFactory(ProviderTrust.getContext(TestCertificates.SERVER_CA));
+		executor = Executors.newCachedThreadPool();
+		// The first handshake shouldn't count for any run
+		get("/provider.json");
+	}
+
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+		server.stop();
+		super.tearDown();
+	}
+
+	private String providerJson(String api_version) {
+		return "{\"api_uri\":\"" + server.getUrl() + "\",\"api_version\":\"" + api_version + "\"}";
+	}
+
+	private String eipServiceUrl(String api_version) {
+		return server.getUrl() + "/" + api_version + "/config/eip-service.json";
+	}
+
+	private String get(String url_or_path) throws Exception {
+		String url = url_or_path.startsWith("/") ? server.getUrl() + url_or_path : url_or_path;
+		HttpsURLConnection connection = (HttpsURLConnection) new URL(url).openConnection();
+		connection.setSSLSocketFactory(factory);
+		return ProviderConnections.read(connection.getInputStream());
+	}
+
+	/** Like the steps of ProviderAPI.setUpProvider, against the local server */
+	private class FakeSteps implements ProviderBootstrap.Steps {
+		final List<Integer> done = Collections.synchronizedList(new ArrayList<Integer>());
+		volatile String eip_service_json;
+
+		@Override
+		public boolean downloadCACert() throws Exception {
+			return get("/ca.crt").contains("BEGIN CERTIFICATE");
+		}
+
+		@Override
+		public String downloadProviderJson() throws Exception {
+			String provider_json = get("/provider.json");
+			String api_version = provider_json.replaceAll(".*\"api_version\":\"([^\"]*)\".*", "$1");
+			return eipServiceUrl(api_version);
+		}
+
+		@Override
+		public String downloadEipServiceJson(String url) throws Exception {
+			return get(url);
+		}
+
+		@Override
+		public boolean setEipServiceJson(String url, String json) {
+			eip_service_json = json;
+			return json.contains("serial");
+		}
+
+		@Override
+		public void stepDone(int steps) {
+			done.add(steps);
+		}
+	}
+
+	private void delayAll(long delay) {
+		server.setDelay("/ca.crt", delay);
+		server.setDelay("/provider.json", delay);
+		server.setDelay("/1/config/eip-service.json", delay);
+		server.setDelay("/2/config/eip-service.json", delay);
+	}
+
+	/**
+	 * Time to usable provider: without a known eip-service.json url each
+	 * document waits for the one before, with it provider.json and
+	 * eip-service.json overlap.
+	 */
+	public void testKnownProviderOverlapsDownloads() throws Exception {
+		delayAll(DELAY);
+
+		FakeSteps serial_steps = new FakeSteps();
+		ProviderBootstrap serial = new ProviderBootstrap(executor, 5000);
+		assertEquals(ProviderBootstrap.EIP_SERVICE_JSON, serial.run(serial_steps, 0, null, null));
+		long serial_time = serial.getElapsed();
+
+		int requests = server.getRequests().size();
+		FakeSteps parallel_steps = new FakeSteps();
+		ProviderBootstrap parallel = new ProviderBootstrap(executor, 5000);
+		assertEquals(ProviderBootstrap.EIP_SERVICE_JSON, parallel.run(parallel_steps, 0, eipServiceUrl("1"), null));
+		long parallel_time = parallel.getElapsed();
+
+		assertEquals("{\"serial\":1}", parallel_steps.eip_service_json);
+		assertEquals(serial_steps.done, parallel_steps.done);
+		// Still one request per document
+		assertEquals(requests + 3, server.getRequests().size());
+		assertTrue(serial_time >= 3 * DELAY);
+		// One delay saved, minus scheduling noise
+		assertTrue("serial " + serial_time + " ms, overlapped " + parallel_time + " ms",
+				parallel_time < serial_time - DELAY / 2);
+	}
+
+	/**
+	 * The first run has nothing to prefetch, it only looks up the likely api
+	 * host while the CA downloads.
+	 */
+	public void testFirstRunResolvesApiHostDuringCaCert() throws Exception {
+		delayAll(DELAY);
+		FakeSteps steps = new FakeSteps();
+		ProviderBootstrap bootstrap = new ProviderBootstrap(executor, 5000);
+		assertEquals(ProviderBootstrap.EIP_SERVICE_JSON, bootstrap.run(steps, 0, null, "localhost"));
+		String timings = bootstrap.getTimings();
+		assertTrue(timings, timings.startsWith("resolve localhost at "));
+		assertTrue(timings, timings.contains(", ca.crt at "));
+		// Still one document after the other
+		assertTrue(bootstrap.getElapsed() >= 3 * DELAY);
+	}
+
+	public void testChangedEipServiceUrlDropsPrefetch() throws Exception {
+		server.put("/provider.json", 200, providerJson("2"));
+		FakeSteps steps = new FakeSteps();
+		ProviderBootstrap bootstrap = new ProviderBootstrap(executor, 5000);
+		assertEquals(ProviderBootstrap.EIP_SERVICE_JSON, bootstrap.run(steps, 0, eipServiceUrl("1"), null));
+		assertEquals("{\"serial\":2}", steps.eip_service_json);
+		assertTrue(server.getRequests().contains("GET /2/config/eip-service.json"));
+	}
+
+	public void testDoneStepsAreSkipped() throws Exception {
+		int requests = server.getRequests().size();
+		FakeSteps steps = new FakeSteps();
+		ProviderBootstrap bootstrap = new ProviderBootstrap(executor, 5000);
+		assertEquals(ProviderBootstrap.EIP_SERVICE_JSON,
+				bootstrap.run(steps, ProviderBootstrap.PROVIDER_JSON, eipServiceUrl("1"), null));
+		assertEquals(Collections.singletonList(ProviderBootstrap.EIP_SERVICE_JSON), steps.done);
+		assertEquals(requests + 1, server.getRequests().size());
+	}
+
+	public void testUnmodifiedEipServiceIsKept() throws Exception {
+		FakeSteps steps = new FakeSteps() {
+			@Override
+			public String downloadEipServiceJson(String url) throws Exception {
+				get(url);
+				// As if the provider answered 304
+				return null;
+			}
+		};
+		ProviderBootstrap bootstrap = new ProviderBootstrap(executor, 5000);
+		assertEquals(ProviderBootstrap.EIP_SERVICE_JSON, bootstrap.run(steps, 0, eipServiceUrl("1"), null));
+		assertNull(steps.eip_service_json);
+		assertEquals(ProviderBootstrap.EIP_SERVICE_JSON, steps.done.get(steps.done.size() - 1).intValue());
+	}
+
+	public void testSlowStepTimesOut() throws Exception {
+		server.setDelay("/provider.json", 2000);
+		FakeSteps steps = new FakeSteps();
+		ProviderBootstrap bootstrap = new ProviderBootstrap(executor, 300);
+		try {
+			bootstrap.run(steps, 0, null, null);
+			fail();
+		} catch (TimeoutException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("provider.json"));
+		}
+		assertEquals(Collections.singletonList(ProviderBootstrap.CA_CERT), steps.done);
+		assertTrue(bootstrap.getElapsed() < 1500);
+	}
+
+	public void testCancelFromAnotherThread() throws Exception {
+		server.setDelay("/ca.crt", 3000);
+		final ProviderBootstrap bootstrap = new ProviderBootstrap(executor, 5000);
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				bootstrap.cancel();
+			}
+		}.start();
+		FakeSteps steps = new FakeSteps();
+		try {
+			bootstrap.run(steps, 0, null, null);
+			fail();
+		} catch (CancellationException e) {
+		}
+		assertTrue(bootstrap.isCancelled());
+		assertTrue(steps.done.isEmpty());
+		assertTrue(bootstrap.getElapsed() < 1500);
+	}
+}
@@ -0,0 +1,155 @@
+package se.leap.bitmaskclient.test;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import se.leap.bitmaskclient.ProviderCache;
+import se.leap.bitmaskclient.ProviderConnections;
+import se.leap.bitmaskclient.ProviderTrust;
+
+import junit.framework.TestCase;
+
+public class testProviderCache extends TestCase {
+
+	private static final String DOCUMENT = "eip";
+	private static final String LAST_MODIFIED = "Tue, 01 Jul 2014 10:00:00 GMT";
+
+	private LocalHttpsServer server;
+	private SSLSocketFactory factory;
+	private Map<String, String> stored;
+	private ProviderCache cache;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new LocalHttpsServer();
+		server.put("/1/config/eip-service.json", 200, eipService(500));
+		server.setEtag("/1/config/eip-service.json", "\"v1\"");
+		server.put("/provider.json", 200, "{\"api_version\":\"1\"}");
+		server.setLastModified("/provider.json", LAST_MODIFIED);
+		server.put("/plain.json", 200, "{}");
+		ProviderTrust.invalidate();
+		factory = ProviderConnections.getSocketFactory(ProviderTrust.getContext(TestCertificates.SERVER_CA));
+		stored = new HashMap<String, String>();
+		cache = new ProviderCache(new ProviderCache.Store() {
+			@Override
+			public String get(String key) {
+				return stored.get(key);
+			}
+
+			@Override
+			public void put(String key, String value) {
+				stored.put(key, value);
+			}
+
+			@Override
+			public void remove(String key) {
+				stored.remove(key);
+			}
+		});
+	}
+
+	protected void tearDown() throws Exception {
+		server.stop();
+		super.tearDown();
+	}
+
+	static String eipService(int gateways) {
+		StringBuilder json = new StringBuilder("{\"serial\":1,\"version\":1,\"gateways\":[");
+		for (int i = 0; i < gateways; i++) {
+			if (i > 0)
+				json.append(',');
+			json.append("{\"host\":\"gateway").append(i).append(".example.org\",\"ip_address\":\"10.0.")
+					.append(i / 256).append('.').append(i % 256)
+					.append("\",\"location\":\"loc").append(i % 20)
+					.append("\",\"capabilities\":{\"adblock\":false,\"filter_dns\":false,\"limited\":false,")
+					.append("\"ports\":[\"443\",\"80\",\"53\",\"1194\"],\"protocols\":[\"tcp\",\"udp\"],")
+					.append("\"transport\":[\"openvpn\"],\"user_ips\":false}}");
+		}
+		json.append("],\"locations\":{");
+		for (int i = 0; i < 20; i++) {
+			if (i > 0)
+				json.append(',');
+			json.append("\"loc").append(i).append("\":{\"country_code\":\"XX\",\"hemisphere\":\"N\",\"name\":\"Location ")
+					.append(i).append("\",\"timezone\":\"").append(i - 10).append("\"}");
+		}
+		json.append("},\"openvpn_configuration\":{\"auth\":\"SHA1\",\"cipher\":\"AES-128-CBC\",\"tls-cipher\":\"DHE-RSA-AES128-SHA\"}}");
+		return json.toString();
+	}
+
+	/** Like ProviderAPI.downloadWithProviderCA for a stored document */
+	private String fetch(String path) throws Exception {
+		HttpsURLConnection connection = (HttpsURLConnection) new URL(server.getUrl() + path).openConnection();
+		connection.setSSLSocketFactory(factory);
+		cache.prepare(connection, DOCUMENT);
+		return cache.read(connection, DOCUMENT);
+	}
+
+	public void testNotModifiedAfterCommit() throws Exception {
+		String url = server.getUrl() + "/1/config/eip-service.json";
+		String first = fetch("/1/config/eip-service.json");
+		assertEquals(eipService(500), first);
+		assertNull(server.getLastHeaders().get("if-none-match"));
+		cache.commit(DOCUMENT, url);
+
+		assertNull(fetch("/1/config/eip-service.json"));
+		assertEquals("\"v1\"", server.getLastHeaders().get("if-none-match"));
+		assertEquals(1, cache.getNotModified());
+		assertEquals(1, cache.getDownloads());
+
+		// A 304 doesn't disturb the connection for the next request
+		int accepted = server.getAccepted();
+		assertNull(fetch("/1/config/eip-service.json"));
+		assertEquals(accepted, server.getAccepted());
+	}
+
+	public void testNothingIsKeptWithoutCommit() throws Exception {
+		fetch("/1/config/eip-service.json");
+		assertNotNull(fetch("/1/config/eip-service.json"));
+		assertNull(server.getLastHeaders().get("if-none-match"));
+		assertEquals(0, cache.getNotModified());
+	}
+
+	public void testLastModified() throws Exception {
+		fetch("/provider.json");
+		cache.commit(DOCUMENT, server.getUrl() + "/provider.json");
+		assertNull(fetch("/provider.json"));
+		assertEquals(LAST_MODIFIED, server.getLastHeaders().get("if-modified-since"));
+	}
+
+	public void testChangedDocumentIsDownloaded() throws Exception {
+		String url = server.getUrl() + "/1/config/eip-service.json";
+		fetch("/1/config/eip-service.json");
+		cache.commit(DOCUMENT, url);
+		server.put("/1/config/eip-service.json", 200, eipService(2));
+		server.setEtag("/1/config/eip-service.json", "\"v2\"");
+		assertEquals(eipService(2), fetch("/1/config/eip-service.json"));
+		cache.commit(DOCUMENT, url);
+		assertNull(fetch("/1/config/eip-service.json"));
+		assertEquals("\"v2\"", server.getLastHeaders().get("if-none-match"));
+	}
+
+	public void testOtherUrlIsNotConditional() throws Exception {
+		fetch("/1/config/eip-service.json");
+		cache.commit(DOCUMENT, server.getUrl() + "/1/config/eip-service.json");
+		// Same document key, stored from another url before
+		server.put("/2/config/eip-service.json", 200, "{}");
+		server.setEtag("/2/config/eip-service.json", "\"v1\"");
+		assertEquals("{}", fetch("/2/config/eip-service.json"));
+		assertNull(server.getLastHeaders().get("if-none-match"));
+	}
+
+	public void testNoValidatorsForgetsOldOnes() throws Exception {
+		fetch("/1/config/eip-service.json");
+		cache.commit(DOCUMENT, server.getUrl() + "/1/config/eip-service.json");
+		assertFalse(stored.isEmpty());
+		fetch("/plain.json");
+		cache.commit(DOCUMENT, server.getUrl() + "/plain.json");
+		assertTrue(stored.isEmpty());
+		cache.forget(DOCUMENT);
+		assertNotNull(fetch("/1/config/eip-service.json"));
+	}
+}
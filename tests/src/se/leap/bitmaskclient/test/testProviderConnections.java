@@ -0,0 +1,139 @@
+package se.leap.bitmaskclient.test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Scanner;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import se.leap.bitmaskclient.ProviderConnections;
+import se.leap.bitmaskclient.ProviderTrust;
+
+import junit.framework.TestCase;
+
+public class testProviderConnections extends TestCase {
+
+	private LocalHttpsServer server;
+	private SSLSocketFactory factory;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new LocalHttpsServer();
+		server.put("/provider.json", 200, "{\"api_uri\":\"" + server.getUrl() + "\",\"api_version\":\"1\"}");
+		server.put("/1/config/eip-service.json", 200, "{\"serial\":1}");
+		server.put("/1/sessions.json", 200, "{\"salt\":\"ab\",\"B\":\"cd\"}");
+		server.put("/1/denied.json", 422, "{\"errors\":\"wrong password\"}");
+		ProviderTrust.invalidate();
+		factory = ProviderConnections.getSocketFactory(ProviderTrust.getContext(TestCertificates.SERVER_CA));
+	}
+
+	protected void tearDown() throws Exception {
+		server.stop();
+		super.tearDown();
+	}
+
+	private HttpsURLConnection open(String path) throws Exception {
+		HttpsURLConnection connection = (HttpsURLConnection) new URL(server.getUrl() + path).openConnection();
+		connection.setSSLSocketFactory(factory);
+		return connection;
+	}
+
+	private String get(String path) throws Exception {
+		return ProviderConnections.read(open(path).getInputStream());
+	}
+
+	/** Like ProviderAPI.sendToServer */
+	private String post(String path, String parameters) throws Exception {
+		HttpsURLConnection connection = open(path);
+		connection.setRequestMethod("POST");
+		byte[] body = parameters.getBytes("UTF-8");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(body.length);
+		OutputStream out = connection.getOutputStream();
+		out.write(body);
+		out.close();
+		try {
+			return ProviderConnections.read(connection.getInputStream());
+		} catch (java.io.IOException e) {
+			return ProviderConnections.read(connection.getErrorStream());
+		}
+	}
+
+	public void testFactoryIsSharedPerContext() throws Exception {
+		assertSame(factory, ProviderConnections.getSocketFactory(ProviderTrust.getContext(TestCertificates.SERVER_CA)));
+		assertNotSame(factory, ProviderConnections.getSocketFactory(ProviderTrust.getContext(TestCertificates.OTHER_CA)));
+	}
+
+	public void testBootstrapAndLoginShareOneConnection() throws Exception {
+		ProviderConnections.Flow flow = ProviderConnections.beginFlow("bootstrap");
+		assertTrue(get("/provider.json").contains("api_uri"));
+		assertEquals("{\"serial\":1}", get("/1/config/eip-service.json"));
+		flow.end();
+		assertEquals(1, flow.getConnections());
+
+		flow = ProviderConnections.beginFlow("login");
+		assertTrue(post("/1/sessions.json", "login=user&&A=0123").contains("salt"));
+		assertTrue(post("/1/sessions.json", "login=user&&client_auth=4567").contains("salt"));
+		flow.end();
+		// Still the connection of the bootstrap
+		assertEquals(0, flow.getConnections());
+		assertEquals(1, server.getAccepted());
+		assertEquals(4, server.getRequests().size());
+	}
+
+	public void testErrorResponseKeepsConnection() throws Exception {
+		assertTrue(post("/1/denied.json", "login=user").contains("wrong password"));
+		assertEquals("{\"serial\":1}", get("/1/config/eip-service.json"));
+		assertEquals(1, server.getAccepted());
+	}
+
+	public void testClosedConnectionResumesSession() throws Exception {
+		ProviderConnections.Flow flow = ProviderConnections.beginFlow("reconnect");
+		for (int i = 0; i < 3; i++) {
+			HttpsURLConnection connection = open("/provider.json");
+			connection.setRequestProperty("Connection", "close");
+			ProviderConnections.read(connection.getInputStream());
+		}
+		// Resumption is reported by the handshake listener thread
+		for (int i = 0; i < 100 && flow.end().getResumed() < 2; i++)
+			Thread.sleep(20);
+		assertEquals(3, flow.getConnections());
+		assertEquals(2, flow.getResumed());
+	}
+
+	/**
+	 * What the requests cost before: a new factory for every request and
+	 * responses nobody closed.
+	 */
+	public void testHandshakesAndTimeComparedToUnpooled() throws Exception {
+		int rounds = 10;
+		get("/provider.json");
+
+		long start = System.nanoTime();
+		int accepted = server.getAccepted();
+		for (int i = 0; i < rounds; i++) {
+			HttpsURLConnection connection = (HttpsURLConnection) new URL(server.getUrl() + "/1/config/eip-service.json").openConnection();
+			ProviderTrust.invalidate();
+			connection.setSSLSocketFactory(ProviderTrust.getContext(TestCertificates.SERVER_CA).getSocketFactory());
+			InputStream is = connection.getInputStream();
+			new Scanner(is).useDelimiter("\\A").next();
+		}
+		long unpooled = System.nanoTime() - start;
+		int unpooledHandshakes = server.getAccepted() - accepted;
+
+		factory = ProviderConnections.getSocketFactory(ProviderTrust.getContext(TestCertificates.SERVER_CA));
+		get("/provider.json");
+		ProviderConnections.Flow flow = ProviderConnections.beginFlow("pooled");
+		for (int i = 0; i < rounds; i++)
+			get("/1/config/eip-service.json");
+		flow.end();
+
+		assertEquals(rounds, unpooledHandshakes);
+		assertEquals(0, flow.getConnections());
+		// Ten full handshakes against none
+		assertTrue("pooled " + flow.getMillis() + " ms, unpooled " + unpooled / 1000000 + " ms",
+				flow.getMillis() * 1000000 < unpooled);
+	}
+}
@@ -0,0 +1,204 @@
+package se.leap.bitmaskclient.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.util.Scanner;
+
+import org.json.JSONObject;
+
+import se.leap.bitmaskclient.EipServiceDefinition;
+import se.leap.bitmaskclient.JsonTokens;
+import se.leap.bitmaskclient.PlatformJsonTokens;
+import se.leap.bitmaskclient.ProviderDefinition;
+
+import junit.framework.TestCase;
+
+public class testProviderDefinitions extends TestCase {
+
+	private static final String PROVIDER_JSON = "{\"api_uri\":\"https://api.example.org:4430\",\"api_version\":\"1\","
+			+ "\"ca_cert_fingerprint\":\"SHA256: 0f17\",\"ca_cert_uri\":\"https://example.org/ca.crt\","
+			+ "\"default_language\":\"en\",\"description\":{\"en\":\"A provider\",\"es\":\"Un proveedor\"},"
+			+ "\"domain\":\"example.org\",\"enrollment_policy\":\"open\",\"languages\":[\"en\",\"es\"],"
+			+ "\"name\":{\"en\":\"Example\"},\"service\":{\"allow_anonymous\":true,\"allow_free\":true,"
+			+ "\"allow_registration\":false,\"bandwidth_limit\":102400,\"levels\":[{\"name\":\"free\"}]},"
+			+ "\"services\":[\"openvpn\"]}";
+
+	/**
+	 * @return the platform reader on the device, a JVM one elsewhere
+	 */
+	private static JsonTokens tokens(Reader reader) {
+		if ("Dalvik".equals(System.getProperty("java.vm.name")))
+			return new PlatformJsonTokens(reader);
+		return new JvmJsonTokens(reader);
+	}
+
+	public void testProviderJson() throws IOException {
+		ProviderDefinition provider = ProviderDefinition.read(tokens(new StringReader(PROVIDER_JSON)));
+		assertEquals("https://api.example.org:4430/1/config/eip-service.json", provider.getEipServiceUrl());
+		assertEquals("example.org", provider.getDomain());
+		assertTrue(provider.allowsAnonymous());
+
+		ProviderDefinition plain_name = ProviderDefinition.read(tokens(new StringReader(
+				"{\"name\":\"Plain\",\"api_uri\":\"u\",\"api_version\":1,\"service\":{\"allow_anonymous\":false}}")));
+		assertFalse(plain_name.allowsAnonymous());
+		assertEquals("u/1/config/eip-service.json", plain_name.getEipServiceUrl());
+	}
+
+	public void testErrorAnswersAreRejected() {
+		String[] answers = { "", "{\"errors\":\"Not found\"}", "<html></html>", "{\"serial\":1" };
+		for (String answer : answers) {
+			try {
+				ProviderDefinition.read(tokens(new StringReader(answer)));
+				fail(answer);
+			} catch (IOException e) {
+			}
+			try {
+				EipServiceDefinition.read(tokens(new StringReader(answer)));
+				fail(answer);
+			} catch (IOException e) {
+			}
+			try {
+				EipServiceDefinition.readSerial(tokens(new StringReader(answer)));
+				fail(answer);
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	public void testEipServiceJson() throws IOException {
+		EipServiceDefinition eip_service = EipServiceDefinition.read(tokens(new StringReader(testProviderCache.eipService(500))));
+		assertEquals(1, eip_service.getSerial());
+		assertEquals(500, eip_service.getGateways().size());
+		EipServiceDefinition.Gateway gateway = eip_service.getGateways().get(257);
+		assertEquals("gateway257.example.org", gateway.getHost());
+		assertEquals("10.0.1.1", gateway.getIpAddress());
+		assertEquals("openvpn", gateway.getTransport().get(0));
+		assertEquals(4, gateway.getPorts().size());
+		assertEquals("udp", gateway.getProtocols().get(1));
+		assertEquals("Location 17", eip_service.getLocationName(gateway.getLocation()));
+		assertEquals("AES-128-CBC", eip_service.getOpenvpnConfiguration().get("cipher"));
+		assertEquals(1, EipServiceDefinition.readSerial(tokens(new StringReader(testProviderCache.eipService(500)))));
+	}
+
+	/**
+	 * Parse time, memory allocated and memory held at the end, for a
+	 * 500-gateway eip-service.json:
+	 * - the old way, Scanner to String to JSONObject and back to a String
+	 *   for SharedPreferences, all three alive at the end
+	 * - ProviderAPI now, the downloaded String checked by streaming over it
+	 *   and stored as it is, only the String is alive at the end
+	 * - the EipServiceDefinition streamed from the bytes, for code that
+	 *   needs the gateways
+	 */
+	public void testBenchmark500Gateways() throws Exception {
+		final byte[] document = testProviderCache.eipService(500).getBytes("UTF-8");
+		Parse tree = new Parse() {
+			Object run() throws Exception {
+				String downloaded = new Scanner(new ByteArrayInputStream(document), "UTF-8").useDelimiter("\\A").next();
+				JSONObject parsed = new JSONObject(downloaded);
+				String stored = parsed.toString();
+				return new Object[] { downloaded, parsed, stored };
+			}
+		};
+		Parse checked = new Parse() {
+			Object run() throws Exception {
+				String downloaded = read(new InputStreamReader(new ByteArrayInputStream(document), "UTF-8"));
+				EipServiceDefinition.readSerial(tokens(new StringReader(downloaded)));
+				return downloaded;
+			}
+		};
+		Parse streamed = new Parse() {
+			Object run() throws Exception {
+				return EipServiceDefinition.read(tokens(new InputStreamReader(new ByteArrayInputStream(document), "UTF-8")));
+			}
+		};
+		tree.measure();
+		checked.measure();
+		streamed.measure();
+
+		if (tree.mAllocated > 0) {
+			assertTrue("checked " + checked + ", tree " + tree, checked.mAllocated < tree.mAllocated);
+			assertTrue("streamed " + streamed + ", tree " + tree, streamed.mAllocated < tree.mAllocated);
+		}
+		assertTrue("checked " + checked + ", tree " + tree, checked.mRetained < tree.mRetained);
+		assertTrue("streamed " + streamed + ", tree " + tree, streamed.mRetained < tree.mRetained);
+		assertTrue("checked " + checked + ", tree " + tree, checked.mMicros < tree.mMicros);
+		assertTrue("streamed " + streamed + ", tree " + tree, streamed.mMicros < tree.mMicros);
+	}
+
+	private abstract static class Parse {
+		static final int HELD = 10;
+		long mMicros;
+		long mAllocated;
+		long mRetained;
+
+		abstract Object run() throws Exception;
+
+		void measure() throws Exception {
+			// Warm up, then the best of a few rounds
+			for (int i = 0; i < 30; i++)
+				run();
+			mMicros = Long.MAX_VALUE;
+			for (int i = 0; i < 20; i++) {
+				long start = System.nanoTime();
+				run();
+				mMicros = Math.min(mMicros, (System.nanoTime() - start) / 1000);
+			}
+			long allocated = allocatedBytes();
+			run();
+			mAllocated = allocatedBytes() - allocated;
+
+			// Several results held at once, one is lost in the noise of a collection
+			Object[] results = new Object[HELD];
+			long before = usedMemory();
+			for (int i = 0; i < HELD; i++)
+				results[i] = run();
+			mRetained = (usedMemory() - before) / HELD;
+			assertNotNull(results[HELD - 1]);
+		}
+
+		@Override
+		public String toString() {
+			return mMicros + " us, " + mAllocated / 1024 + " KiB allocated, " + mRetained / 1024 + " KiB held";
+		}
+	}
+
+	private static String read(java.io.Reader reader) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		char[] buffer = new char[4096];
+		int n;
+		while ((n = reader.read(buffer)) != -1)
+			sb.append(buffer, 0, n);
+		return sb.toString();
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * @return bytes allocated by this thread, -1 if the VM can't tell
+	 */
+	private static long allocatedBytes() throws Exception {
+		Object threadBean;
+		Method allocated;
+		try {
+			Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+			threadBean = factory.getMethod("getThreadMXBean").invoke(null);
+			// Declared by the exported interface, the implementing class may be inaccessible
+			Class<?> hotspotBean = Class.forName("com.sun.management.ThreadMXBean");
+			allocated = hotspotBean.getMethod("getThreadAllocatedBytes", long.class);
+		} catch (ClassNotFoundException e) {
+			// Not available on Dalvik
+			return -1;
+		}
+		return (Long) allocated.invoke(threadBean, Thread.currentThread().getId());
+	}
+}
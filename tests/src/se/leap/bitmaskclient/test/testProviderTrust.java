@@ -0,0 +1,55 @@
+package se.leap.bitmaskclient.test;
+
+import java.security.cert.CertificateException;
+
+import javax.net.ssl.SSLContext;
+
+import se.leap.bitmaskclient.ProviderTrust;
+
+import junit.framework.TestCase;
+
+public class testProviderTrust extends TestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		ProviderTrust.invalidate();
+	}
+
+	public void testContextIsBuiltOncePerCA() throws Exception {
+		int builds = ProviderTrust.getBuilds();
+		SSLContext first = ProviderTrust.getContext(TestCertificates.SERVER_CA);
+		for (int i = 0; i < 10; i++)
+			assertSame(first, ProviderTrust.getContext(TestCertificates.SERVER_CA));
+		assertEquals(builds + 1, ProviderTrust.getBuilds());
+		// Same session cache for every request
+		assertSame(first.getClientSessionContext(), ProviderTrust.getContext(TestCertificates.SERVER_CA).getClientSessionContext());
+	}
+
+	public void testSameCertificateInDifferentTextIsNotRebuilt() throws Exception {
+		SSLContext first = ProviderTrust.getContext(TestCertificates.SERVER_CA);
+		String fingerprint = ProviderTrust.getFingerprint();
+		int builds = ProviderTrust.getBuilds();
+		SSLContext second = ProviderTrust.getContext("\n" + TestCertificates.SERVER_CA + "\n");
+		assertSame(first, second);
+		assertEquals(fingerprint, ProviderTrust.getFingerprint());
+		assertEquals(builds, ProviderTrust.getBuilds());
+	}
+
+	public void testNewCAGetsNewContext() throws Exception {
+		SSLContext first = ProviderTrust.getContext(TestCertificates.SERVER_CA);
+		String fingerprint = ProviderTrust.getFingerprint();
+		SSLContext second = ProviderTrust.getContext(TestCertificates.OTHER_CA);
+		assertNotSame(first, second);
+		assertFalse(fingerprint.equals(ProviderTrust.getFingerprint()));
+		assertEquals(64, ProviderTrust.getFingerprint().length());
+	}
+
+	public void testInvalidCertificateKeepsNothing() throws Exception {
+		try {
+			ProviderTrust.getContext("not a certificate");
+			fail();
+		} catch (CertificateException e) {
+		}
+		assertNull(ProviderTrust.getFingerprint());
+	}
+}
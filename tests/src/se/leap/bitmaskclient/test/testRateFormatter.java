@@ -0,0 +1,82 @@
+package se.leap.bitmaskclient.test;
+
+import java.lang.reflect.Method;
+
+import se.leap.openvpn.RateFormatter;
+
+import junit.framework.TestCase;
+
+public class testRateFormatter extends TestCase {
+
+	public void testUnits() {
+		RateFormatter formatter = new RateFormatter();
+		formatter.format(0, 1023);
+		assertEquals("\u2193 0 B/s  \u2191 1023 B/s", formatter.toString());
+		formatter.format(1024, 1536);
+		assertEquals("\u2193 1.0 KiB/s  \u2191 1.5 KiB/s", formatter.toString());
+		formatter.format(5L * 1024 * 1024 + 100 * 1024, 3L * 1024 * 1024 * 1024);
+		assertEquals("\u2193 5.1 MiB/s  \u2191 3.0 GiB/s", formatter.toString());
+		// Rounded up like %.1f
+		formatter.format(1024 * 10 - 1, -5);
+		assertEquals("\u2193 10.0 KiB/s  \u2191 0 B/s", formatter.toString());
+	}
+
+	public void testChangeIsDetected() {
+		RateFormatter formatter = new RateFormatter();
+		formatter.setPrefix("Connected  ");
+		assertTrue(formatter.format(2048, 100));
+		assertEquals("Connected  \u2193 2.0 KiB/s  \u2191 100 B/s", formatter.toString());
+		// Different bytes, same text
+		assertFalse(formatter.format(2049, 100));
+		assertTrue(formatter.format(2049, 101));
+		assertFalse(formatter.format(2049, 101));
+
+		formatter.setPrefix("Verbunden  ");
+		assertTrue(formatter.format(2049, 101));
+		assertTrue(formatter.toString().startsWith("Verbunden  "));
+	}
+
+	/**
+	 * Bounds the work of one notification update: formatting an unchanged
+	 * rate allocates nothing and takes a few microseconds at most.
+	 */
+	public void testCostPerUpdate() throws Exception {
+		RateFormatter formatter = new RateFormatter();
+		formatter.setPrefix("Connected  ");
+		int rounds = 200000;
+		// Warm up
+		for (int i = 0; i < rounds; i++)
+			formatter.format(1234567 + (i & 1), 7654321);
+
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++)
+			formatter.format(1234567 + (i & 1), 7654321);
+		long perUpdate = (System.nanoTime() - start) / rounds;
+		allocated = allocatedBytes() - allocated;
+
+		assertTrue("per update " + perUpdate + " ns", perUpdate < 5000);
+		if (allocated >= 0)
+			// Allow for the measurement itself, not for a String per update
+			assertTrue("allocated " + allocated, allocated < rounds);
+	}
+
+	/**
+	 * @return bytes allocated by this thread, -1 if the VM can't tell
+	 */
+	private static long allocatedBytes() throws Exception {
+		Object threadBean;
+		Method allocated;
+		try {
+			Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+			threadBean = factory.getMethod("getThreadMXBean").invoke(null);
+			// Declared by the exported interface, the implementing class may be inaccessible
+			Class<?> hotspotBean = Class.forName("com.sun.management.ThreadMXBean");
+			allocated = hotspotBean.getMethod("getThreadAllocatedBytes", long.class);
+		} catch (ClassNotFoundException e) {
+			// Not available on Dalvik
+			return -1;
+		}
+		return (Long) allocated.invoke(threadBean, Thread.currentThread().getId());
+	}
+}
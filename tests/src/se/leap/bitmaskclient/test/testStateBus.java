@@ -0,0 +1,186 @@
+package se.leap.bitmaskclient.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import se.leap.openvpn.ConnectionState;
+import se.leap.openvpn.OpenVPN.StateListener;
+import se.leap.openvpn.StateBus;
+
+import junit.framework.TestCase;
+
+public class testStateBus extends TestCase {
+
+	/** Runs queued tasks only when asked to, like a busy looper */
+	private static class ManualExecutor implements Executor {
+		List<Runnable> tasks = new ArrayList<Runnable>();
+
+		@Override
+		public void execute(Runnable command) {
+			tasks.add(command);
+		}
+
+		void runAll() {
+			while (!tasks.isEmpty())
+				tasks.remove(0).run();
+		}
+	}
+
+	private static class Recorder implements StateListener {
+		List<String> states = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void updateState(ConnectionState state, String logmessage) {
+			states.add(state + ":" + logmessage);
+		}
+	}
+
+	private StateBus bus;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		bus = new StateBus();
+	}
+
+	public void testPublishDoesNotCallListenerDirectly() {
+		ManualExecutor executor = new ManualExecutor();
+		Recorder recorder = new Recorder();
+		bus.subscribe(recorder, executor);
+
+		bus.publish(ConnectionState.WAIT, "");
+		assertTrue(recorder.states.isEmpty());
+		assertEquals(1, executor.tasks.size());
+
+		executor.runAll();
+		assertEquals("[WAIT:]", recorder.states.toString());
+	}
+
+	public void testDuplicatesAreDropped() {
+		ManualExecutor executor = new ManualExecutor();
+		Recorder recorder = new Recorder();
+		bus.subscribe(recorder, executor);
+
+		assertTrue(bus.publish(ConnectionState.CONNECTED, "SUCCESS"));
+		assertFalse(bus.publish(ConnectionState.CONNECTED, "SUCCESS"));
+		executor.runAll();
+		assertEquals("[CONNECTED:SUCCESS]", recorder.states.toString());
+	}
+
+	public void testSlowListenerGetsConflatedStates() {
+		ManualExecutor executor = new ManualExecutor();
+		Recorder recorder = new Recorder();
+		bus.subscribe(recorder, executor);
+
+		bus.publish(ConnectionState.WAIT, "1");
+		bus.publish(ConnectionState.WAIT, "2");
+		bus.publish(ConnectionState.AUTH, "");
+		bus.publish(ConnectionState.GET_CONFIG, "a");
+		bus.publish(ConnectionState.GET_CONFIG, "b");
+		bus.publish(ConnectionState.CONNECTED, "");
+		// One pending task however many states
+		assertEquals(1, executor.tasks.size());
+
+		executor.runAll();
+		assertEquals("[WAIT:2, AUTH:, GET_CONFIG:b, CONNECTED:]", recorder.states.toString());
+	}
+
+	public void testNewListenerGetsLastState() {
+		bus.publish(ConnectionState.AUTH, "");
+		bus.publish(ConnectionState.CONNECTED, "SUCCESS");
+
+		ManualExecutor executor = new ManualExecutor();
+		Recorder recorder = new Recorder();
+		bus.subscribe(recorder, executor);
+		// Registered twice, still one subscription
+		bus.subscribe(recorder, executor);
+		executor.runAll();
+		assertEquals("[CONNECTED:SUCCESS]", recorder.states.toString());
+		assertEquals(ConnectionState.CONNECTED, bus.getLastState());
+	}
+
+	public void testRemovedListenerGetsNothingQueued() {
+		ManualExecutor executor = new ManualExecutor();
+		Recorder recorder = new Recorder();
+		bus.subscribe(recorder, executor);
+		bus.publish(ConnectionState.EXITING, "");
+		bus.unsubscribe(recorder);
+		executor.runAll();
+		assertTrue(recorder.states.isEmpty());
+	}
+
+	public void testListenersDoNotBlockEachOther() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		ExecutorService slowThread = Executors.newSingleThreadExecutor();
+		ExecutorService fastThread = Executors.newSingleThreadExecutor();
+		bus.subscribe(new StateListener() {
+			@Override
+			public void updateState(ConnectionState state, String logmessage) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+				}
+			}
+		}, slowThread);
+		final CountDownLatch fastGotAll = new CountDownLatch(1);
+		bus.subscribe(new StateListener() {
+			@Override
+			public void updateState(ConnectionState state, String logmessage) {
+				if (state == ConnectionState.CONNECTED)
+					fastGotAll.countDown();
+			}
+		}, fastThread);
+
+		bus.publish(ConnectionState.WAIT, "");
+		bus.publish(ConnectionState.AUTH, "");
+		bus.publish(ConnectionState.CONNECTED, "");
+		assertTrue(fastGotAll.await(5, TimeUnit.SECONDS));
+
+		release.countDown();
+		slowThread.shutdown();
+		fastThread.shutdown();
+	}
+
+	public void testConcurrentRegistrationAndPublish() throws Exception {
+		final int listeners = 200;
+		final Recorder[] recorders = new Recorder[listeners];
+		Thread registering = new Thread() {
+			@Override
+			public void run() {
+				Executor direct = new Executor() {
+					@Override
+					public void execute(Runnable command) {
+						command.run();
+					}
+				};
+				for (int i = 0; i < listeners; i++) {
+					recorders[i] = new Recorder();
+					bus.subscribe(recorders[i], direct);
+				}
+			}
+		};
+		registering.start();
+		for (int i = 0; i < 1000; i++)
+			bus.publish(ConnectionState.WAIT, Integer.toString(i));
+		registering.join();
+		bus.publish(ConnectionState.CONNECTED, "");
+
+		// Whenever it registered, every listener ends with the last state in order
+		for (Recorder r : recorders) {
+			assertEquals("CONNECTED:", r.states.get(r.states.size() - 1));
+			int previous = -1;
+			for (String s : r.states) {
+				if (!s.startsWith("WAIT:"))
+					continue;
+				int n = Integer.parseInt(s.substring(5));
+				assertTrue(n > previous);
+				previous = n;
+			}
+		}
+	}
+}
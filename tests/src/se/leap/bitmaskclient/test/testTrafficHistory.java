@@ -0,0 +1,132 @@
+package se.leap.bitmaskclient.test;
+
+import java.lang.reflect.Method;
+
+import se.leap.openvpn.TrafficHistory;
+
+import junit.framework.TestCase;
+
+public class testTrafficHistory extends TestCase {
+
+	// 2014-01-17 12:00:00 UTC, a full minute
+	private static final long START = 1389960000000L;
+
+	private TrafficHistory history;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		history = new TrafficHistory();
+	}
+
+	public void testSessionTotals() {
+		history.add(1000, 500, START);
+		history.add(3000, 1500, START + 2000);
+		assertEquals(3000, history.getSessionIn());
+		assertEquals(1500, history.getSessionOut());
+		assertEquals(START, history.getSessionStart());
+
+		// OpenVPN restarted its counters, totals keep growing
+		history.add(100, 50, START + 4000);
+		assertEquals(3100, history.getSessionIn());
+		assertEquals(1550, history.getSessionOut());
+
+		history.reset();
+		assertEquals(0, history.getSessionIn());
+		assertEquals(0, history.getSessionStart());
+	}
+
+	public void testTrafficIsSpreadOverInterval() {
+		history.add(0, 0, START);
+		history.add(2000, 1000, START + 2000);
+
+		long[] in = new long[3];
+		long[] out = new long[3];
+		assertEquals(3, history.getPerSecond(in, out, START + 2000));
+		assertEquals(0, in[0]);
+		assertEquals(1000, in[1]);
+		assertEquals(1000, in[2]);
+		assertEquals(500, out[1]);
+		assertEquals(500, out[2]);
+	}
+
+	public void testIdleSecondsAreZero() {
+		history.add(0, 0, START);
+		history.add(1000, 1000, START + 1000);
+
+		long[] in = new long[5];
+		long[] out = new long[5];
+		history.getPerSecond(in, out, START + 4000);
+		assertEquals(1000, in[1]);
+		assertEquals(0, in[2]);
+		assertEquals(0, in[4]);
+	}
+
+	public void testPerMinute() {
+		history.add(0, 0, START);
+		history.add(6000, 600, START + 60000);
+		history.add(7200, 720, START + 120000);
+
+		long[] in = new long[3];
+		long[] out = new long[3];
+		history.getPerMinute(in, out, START + 120000);
+		// 59 seconds of the first interval fall into the first minute
+		assertEquals(5900, in[0]);
+		assertEquals(100 + 1180, in[1]);
+		assertEquals(20, in[2]);
+		assertEquals(720, out[0] + out[1] + out[2]);
+	}
+
+	public void testWrapAround() {
+		long in = 0;
+		long now = START;
+		for (int i = 0; i < TrafficHistory.SECONDS * 3; i++) {
+			in += 10;
+			now += 1000;
+			history.add(in, in, now);
+		}
+		long[] secin = new long[TrafficHistory.SECONDS];
+		long[] secout = new long[TrafficHistory.SECONDS];
+		assertEquals(TrafficHistory.SECONDS, history.getPerSecond(secin, secout, now));
+		for (long v : secin)
+			assertEquals(10, v);
+		assertEquals(in, history.getSessionIn());
+	}
+
+	/**
+	 * Appending must not allocate. Uses the HotSpot allocation counter when the
+	 * VM provides it, otherwise only the time per append is bounded.
+	 */
+	public void testAppendDoesNotAllocate() throws Exception {
+		int samples = 1000000;
+		long now = START;
+		// Warm up
+		for (int i = 0; i < samples; i++)
+			history.add(i * 100L, i * 50L, now + i * 1000L);
+
+		Object threadBean = null;
+		Method allocated = null;
+		try {
+			Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+			threadBean = factory.getMethod("getThreadMXBean").invoke(null);
+			Class<?> hotspotBean = Class.forName("com.sun.management.ThreadMXBean");
+			allocated = hotspotBean.getMethod("getThreadAllocatedBytes", long.class);
+		} catch (ClassNotFoundException e) {
+			// Not available on Dalvik
+		}
+
+		long tid = Thread.currentThread().getId();
+		long before = allocated != null ? (Long) allocated.invoke(threadBean, tid) : 0;
+		long start = System.nanoTime();
+		for (int i = samples; i < 2 * samples; i++)
+			history.add(i * 100L, i * 50L, now + i * 1000L);
+		long elapsed = System.nanoTime() - start;
+		long after = allocated != null ? (Long) allocated.invoke(threadBean, tid) : 0;
+
+		// A sample a second, a few microseconds each even on a slow device
+		assertTrue("append took " + elapsed / samples + " ns", elapsed / samples < 5000);
+		if (allocated != null) {
+			// Leave room for the allocation counter's own bookkeeping
+			assertTrue("append allocated " + (after - before) + " bytes", after - before < 1024);
+		}
+	}
+}